@@ -0,0 +1,23 @@
+package ch.maxant.rules.benchmarks;
+
+/**
+ * The input which the benchmarked rules are evaluated against.
+ */
+public final class Applicant {
+
+	private final int age;
+	private final String product;
+
+	public Applicant(int age, String product) {
+		this.age = age;
+		this.product = product;
+	}
+
+	public int getAge() {
+		return age;
+	}
+
+	public String getProduct() {
+		return product;
+	}
+}
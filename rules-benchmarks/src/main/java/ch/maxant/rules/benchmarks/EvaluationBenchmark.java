@@ -0,0 +1,62 @@
+package ch.maxant.rules.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.maxant.rules.AbstractAction;
+import ch.maxant.rules.Engine;
+import ch.maxant.rules.Rule;
+
+/**
+ * Evaluates all of the rules of an engine for one input, using each of the methods which applications mainly call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EvaluationBenchmark {
+
+	@Param({RuleSets.MVEL, RuleSets.JAVASCRIPT})
+	public String engineType;
+
+	@Param({"10", "100", "1000", "10000", "100000"})
+	public int ruleCount;
+
+	private Engine engine;
+	private List<AbstractAction<Applicant, Integer>> actions;
+
+	@Setup
+	public void setup() throws Exception {
+		engine = RuleSets.builder(engineType, RuleSets.rules(ruleCount, 10)).build();
+		actions = RuleSets.actions();
+	}
+
+	@Benchmark
+	public List<Rule> getMatchingRules() {
+		return engine.getMatchingRules(RuleSets.INPUT);
+	}
+
+	@Benchmark
+	public String getBestOutcome() throws Exception {
+		return engine.getBestOutcome(RuleSets.INPUT);
+	}
+
+	@Benchmark
+	public void executeAllActions() throws Exception {
+		engine.executeAllActions(RuleSets.INPUT, actions);
+	}
+}
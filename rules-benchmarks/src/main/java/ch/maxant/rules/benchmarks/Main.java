@@ -0,0 +1,33 @@
+package ch.maxant.rules.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks like JMH's own main class, which takes the same arguments, but always with the GC profiler
+ * (<code>-prof gc</code>), so that the bytes allocated per operation are reported alongside the throughput.
+ */
+public final class Main {
+
+	private Main() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		List<String> arguments = new ArrayList<String>(Arrays.asList(args));
+		if(!isProfilingGc(arguments)){
+			arguments.add("-prof");
+			arguments.add("gc");
+		}
+		org.openjdk.jmh.Main.main(arguments.toArray(new String[arguments.size()]));
+	}
+
+	private static boolean isProfilingGc(List<String> arguments) {
+		for(int i = 0; i < arguments.size() - 1; i++){
+			if(arguments.get(i).equals("-prof") && arguments.get(i + 1).startsWith("gc")){
+				return true;
+			}
+		}
+		return false;
+	}
+}
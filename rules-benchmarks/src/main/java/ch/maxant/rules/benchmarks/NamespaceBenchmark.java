@@ -0,0 +1,74 @@
+package ch.maxant.rules.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.maxant.rules.Engine;
+import ch.maxant.rules.Rule;
+
+/**
+ * Evaluates only the rules in the namespaces which match a pattern, when the rules are spread over many namespaces.
+ * The cost should depend on the number of rules which are selected, rather than on the total number of rules.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NamespaceBenchmark {
+
+	@Param({RuleSets.MVEL, RuleSets.JAVASCRIPT})
+	public String engineType;
+
+	@Param({"1000", "10000", "100000"})
+	public int ruleCount;
+
+	@Param({"10", "100"})
+	public int namespaces;
+
+	/**
+	 * "exact" selects a single namespace, and "prefix" those whose number starts with 1, both of which are resolved
+	 * without regular expressions.  "regex" selects the same namespaces as "prefix", but using a character class,
+	 * which needs a {@link java.util.regex.Pattern}.  Each pattern is resolved once and then cached, until the rules
+	 * change.
+	 */
+	@Param({"exact", "prefix", "regex"})
+	public String patternType;
+
+	private Engine engine;
+	private String pattern;
+
+	@Setup
+	public void setup() throws Exception {
+		List<Rule> rules = RuleSets.rules(ruleCount, namespaces);
+		engine = RuleSets.builder(engineType, rules).build();
+		String namespace = RuleSets.NAMESPACE.replace(".", "\\.");
+		if("exact".equals(patternType)){
+			pattern = RuleSets.namespace(1);
+		}else if("prefix".equals(patternType)){
+			pattern = namespace + "1.*";
+		}else if("regex".equals(patternType)){
+			pattern = namespace + "1[0-9]*";
+		}else{
+			throw new IllegalArgumentException("Unknown pattern type " + patternType);
+		}
+	}
+
+	@Benchmark
+	public List<Rule> getMatchingRules() {
+		return engine.getMatchingRules(pattern, RuleSets.INPUT);
+	}
+}
@@ -0,0 +1,71 @@
+package ch.maxant.rules.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import ch.maxant.rules.AbstractAction;
+import ch.maxant.rules.Engine;
+import ch.maxant.rules.JavascriptEngine;
+import ch.maxant.rules.Rule;
+
+/**
+ * Builds the rules and engines which the benchmarks use.
+ */
+final class RuleSets {
+
+	static final String MVEL = "mvel";
+	static final String JAVASCRIPT = "javascript";
+
+	static final String NAMESPACE = "ch.maxant.benchmarks.ns";
+
+	/** the number of different outcomes, each of which has an action */
+	static final int OUTCOMES = 20;
+
+	/** matches about one in twenty of the rules built by {@link #rules(int, int)} */
+	static final Applicant INPUT = new Applicant(50, "P3");
+
+	private RuleSets() {
+	}
+
+	/**
+	 * @return rules which each compare both properties of the input with constants, spread evenly over the given
+	 * number of namespaces, see {@link #namespace(int)}.
+	 */
+	static List<Rule> rules(int count, int namespaces) {
+		List<Rule> rules = new ArrayList<Rule>(count);
+		for(int i = 0; i < count; i++){
+			String expression = "input.age > " + (i % 100) + " && input.product == \"P" + (i % 10) + "\"";
+			rules.add(new Rule("r" + i, expression, "o" + (i % OUTCOMES), i, namespace(i % namespaces)));
+		}
+		return rules;
+	}
+
+	static String namespace(int n) {
+		return NAMESPACE + n;
+	}
+
+	/** @return a builder for the engine of the given type, either {@link #MVEL} or {@link #JAVASCRIPT} */
+	static Engine.Builder builder(String engineType, Collection<Rule> rules) {
+		if(MVEL.equals(engineType)){
+			return new Engine.Builder(rules).withThrowExceptionIfCompilationFails(true);
+		}else if(JAVASCRIPT.equals(engineType)){
+			return new JavascriptEngine.Builder(rules).withThrowExceptionIfCompilationFails(true);
+		}
+		throw new IllegalArgumentException("Unknown engine type " + engineType);
+	}
+
+	/** @return an action for each outcome */
+	static List<AbstractAction<Applicant, Integer>> actions() {
+		List<AbstractAction<Applicant, Integer>> actions = new ArrayList<AbstractAction<Applicant, Integer>>();
+		for(int i = 0; i < OUTCOMES; i++){
+			actions.add(new AbstractAction<Applicant, Integer>("o" + i) {
+				@Override
+				public Integer execute(Applicant input) {
+					return input.getAge();
+				}
+			});
+		}
+		return actions;
+	}
+}
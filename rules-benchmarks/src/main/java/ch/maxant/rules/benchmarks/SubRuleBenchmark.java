@@ -0,0 +1,76 @@
+package ch.maxant.rules.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.maxant.rules.Engine;
+import ch.maxant.rules.Rule;
+import ch.maxant.rules.SubRule;
+
+/**
+ * Evaluates rules which all reference the top of a chain of subrules, each of which references the one below it,
+ * either with the subrules copied into every rule, or memoized, see {@link Engine.Builder#withMemoizedSubRules()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubRuleBenchmark {
+
+	/** old enough to satisfy every level of the chain */
+	private static final Applicant INPUT = new Applicant(100, "P3");
+
+	@Param({RuleSets.MVEL, RuleSets.JAVASCRIPT})
+	public String engineType;
+
+	/** the number of subrules in the chain */
+	@Param({"1", "4", "16", "64"})
+	public int depth;
+
+	@Param({"false", "true"})
+	public boolean memoized;
+
+	@Param({"100"})
+	public int ruleCount;
+
+	private Engine engine;
+
+	@Setup
+	public void setup() throws Exception {
+		String namespace = RuleSets.namespace(0);
+		List<Rule> rules = new ArrayList<Rule>();
+		rules.add(new SubRule("level0", "input.age > 0", namespace));
+		for(int level = 1; level < depth; level++){
+			rules.add(new SubRule("level" + level, "#level" + (level - 1) + " && input.age > " + level, namespace));
+		}
+		for(int i = 0; i < ruleCount; i++){
+			String expression = "#level" + (depth - 1) + " && input.product == \"P" + (i % 10) + "\"";
+			rules.add(new Rule("r" + i, expression, "o" + (i % RuleSets.OUTCOMES), i, namespace));
+		}
+		Engine.Builder builder = RuleSets.builder(engineType, rules);
+		if(memoized){
+			builder.withMemoizedSubRules();
+		}
+		engine = builder.build();
+	}
+
+	@Benchmark
+	public List<Rule> getMatchingRules() {
+		return engine.getMatchingRules(INPUT);
+	}
+}
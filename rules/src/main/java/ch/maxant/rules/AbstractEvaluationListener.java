@@ -0,0 +1,34 @@
+package ch.maxant.rules;
+
+/**
+ * An implementation of {@link EvaluationListener} which does nothing, so that applications 
+ * only need to override the callbacks which they are interested in.
+ */
+public abstract class AbstractEvaluationListener implements EvaluationListener {
+
+	/** {@inheritDoc} */
+	@Override
+	public void onCompile(Rule rule) {
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void onCompileFailure(Rule rule, String message) {
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void onMatch(Rule rule, Object input, long nanos) {
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void onNoMatch(Rule rule, Object input, long nanos) {
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void onError(Rule rule, Object input, Exception e, long nanos) {
+	}
+
+}
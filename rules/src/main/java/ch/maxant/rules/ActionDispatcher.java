@@ -0,0 +1,189 @@
+package ch.maxant.rules;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * A set of actions which has been bound to an {@link Engine} and validated once,
+ * so that it can be used over and over again, without the validation being repeated
+ * every time the engine is asked to execute actions.  Create one using
+ * {@link Engine#prepareActions(java.util.Collection)}:<br>
+ * <br>
+ * <code>
+ * ActionDispatcher&lt;TarifRequest, BigDecimal&gt; dispatcher = engine.prepareActions(actions);<br>
+ * ...<br>
+ * BigDecimal price = dispatcher.executeBestAction(request);<br>
+ * </code>
+ * <br>
+ * Instances are immutable and thread safe, so long as the actions themselves are thread safe.
+ *
+ * @param <Input> The type of input to the actions.
+ * @param <Output> The type of output from the actions.
+ */
+public final class ActionDispatcher<Input, Output> {
+
+	private final Engine engine;
+
+	/** maps each outcome to the position of its action in {@link #actions} */
+	private final Map<String, Integer> slots;
+	private final IAction<Input, Output>[] actions;
+	/** the positions of the actions of the engine's rules, resolved when the rules change, rather than per evaluation */
+	private volatile RuleSlots ruleSlots;
+
+	@SuppressWarnings("unchecked")
+	ActionDispatcher(Engine engine, Map<String, IAction<Input, Output>> actionsByOutcome) {
+		this.engine = engine;
+		this.slots = new HashMap<String, Integer>();
+		this.actions = (IAction<Input, Output>[]) new IAction<?, ?>[actionsByOutcome.size()];
+		for(Map.Entry<String, IAction<Input, Output>> e : actionsByOutcome.entrySet()){
+			actions[slots.size()] = e.getValue();
+			slots.put(e.getKey(), slots.size());
+		}
+		this.ruleSlots = new RuleSlots(engine.getCurrentRules(), slots);
+	}
+
+	/**
+	 * See {@link #executeBestAction(String, Object)}, except that all namespaces will be considered.
+	 */
+	public Output executeBestAction(Input input) throws NoMatchingRuleFoundException, NoActionFoundException {
+		return executeBestAction(null, input);
+	}
+
+	/**
+	 * Same as {@link Engine#executeBestAction(String, Object, java.util.Collection)}, using the actions held by this dispatcher.
+	 * @param nameSpacePattern optional.  if not null, then only rules with matching namespaces are evaluated.
+	 * @param input the Object containing all inputs to the expression language rule.
+	 * @return The result of the {@link IAction} with the same name as the winning rules outcome.
+	 * @throws NoMatchingRuleFoundException If no matching rule was found.  Rules must evaluate to true in order to be candidates.
+	 * @throws NoActionFoundException If no action with a name matching the winning rules outcome was found.
+	 */
+	public Output executeBestAction(String nameSpacePattern, Input input) throws NoMatchingRuleFoundException, NoActionFoundException {
+		RuleSlots ruleSlots = ruleSlots();
+		List<Rule> matches = engine.getMatchingRules(nameSpacePattern, input, 1);
+		if(matches == null || matches.isEmpty()){
+			throw new NoMatchingRuleFoundException();
+		}
+		return actions[slot(ruleSlots, matches.get(0))].execute(input);
+	}
+
+	/**
+	 * See {@link #executeAllActions(String, Object)}, except that all namespaces will be considered.
+	 * <b>NOTE THAT THIS METHOD DISREGARDS ANY RETURN VALUES OF ACTIONS!!</b>
+	 */
+	public void executeAllActions(Input input) throws NoActionFoundException {
+		executeAllActions(null, input);
+	}
+
+	/**
+	 * Same as {@link Engine#executeAllActions(String, Object, java.util.Collection)}, using the actions held by this dispatcher.
+	 * Any outcome is only ever executed once!<br>
+	 * <br>
+	 * <b>NOTE THAT THIS METHOD DISREGARDS ANY RETURN VALUES OF ACTIONS!!</b>
+	 * @param nameSpacePattern optional.  if not null, then only rules with matching namespaces are evaluated.
+	 * @param input the Object containing all inputs to the expression language rule.
+	 * @throws NoActionFoundException If no action with a name matching the winning rules outcome was found.
+	 */
+	public void executeAllActions(String nameSpacePattern, Input input) throws NoActionFoundException {
+		executeActions(engine.getMatchingRules(nameSpacePattern, input), input);
+	}
+
+	/**
+	 * See {@link #executeAllActionsInBatch(String, Collection, Executor, int)}, except that all inputs are evaluated on the calling thread.
+	 */
+	public void executeAllActionsInBatch(String nameSpacePattern, Collection<Input> inputs) throws NoActionFoundException {
+		executeAllActionsInBatch(nameSpacePattern, inputs, null, 1);
+	}
+
+	/**
+	 * The same as calling {@link #executeAllActions(String, Object)} for each input, except that the rules are evaluated 
+	 * for all inputs first, using {@link Engine#getMatchingRulesInBatch(String, Collection, Executor, int)}.  The actions 
+	 * are then executed on the calling thread, in the order of the inputs.<br>
+	 * <br>
+	 * <b>NOTE THAT THIS METHOD DISREGARDS ANY RETURN VALUES OF ACTIONS!!</b>
+	 * @param nameSpacePattern optional.  if not null, then only rules with matching namespaces are evaluated.
+	 * @param inputs the inputs.
+	 * @param executor optional. used to evaluate the rules, see {@link Engine#getMatchingRulesInBatch(String, Collection, Executor, int)}.
+	 * @param parallelism the number of slices into which the inputs are split, if an executor is given.
+	 * @throws NoActionFoundException If no action with a name matching the winning rules outcome was found.
+	 */
+	public void executeAllActionsInBatch(String nameSpacePattern, Collection<Input> inputs, Executor executor, int parallelism) throws NoActionFoundException {
+		List<List<Rule>> matchingRules = engine.getMatchingRulesInBatch(nameSpacePattern, inputs, executor, parallelism);
+		Iterator<List<Rule>> it = matchingRules.iterator();
+		for(Input input : inputs){
+			executeActions(it.next(), input);
+		}
+	}
+
+	private void executeActions(List<Rule> matchingRules, Input input) throws NoActionFoundException {
+		RuleSlots ruleSlots = ruleSlots();
+		boolean[] executed = new boolean[actions.length];
+		for(Rule r : matchingRules){
+			int slot = slot(ruleSlots, r);
+			//only run, if not already run!
+			if(!executed[slot]){
+				actions[slot].execute(input);
+				executed[slot] = true;
+			}
+		}
+	}
+
+	/** @return the engine to which the actions are bound */
+	public Engine getEngine() {
+		return engine;
+	}
+
+	/** @return the slots for the engine's current rules, resolving them again if the rules have changed */
+	private RuleSlots ruleSlots() {
+		List<Rule> rules = engine.getCurrentRules();
+		RuleSlots current = ruleSlots;
+		if(current.rules != rules){
+			//threads which race here simply resolve the same slots
+			current = new RuleSlots(rules, slots);
+			ruleSlots = current;
+		}
+		return current;
+	}
+
+	private int slot(RuleSlots ruleSlots, Rule rule) throws NoActionFoundException {
+		Integer slot = ruleSlots.slots.get(rule);
+		if(slot == null){
+			//e.g. the rules changed between resolving the slots and evaluating them
+			return slot(rule.getOutcome());
+		}
+		return slot;
+	}
+
+	private int slot(String outcome) throws NoActionFoundException {
+		Integer slot = slots.get(outcome);
+		if(slot == null){
+			//the outcome is null, or belongs to a rule which was added to the engine after this dispatcher was created,
+			//since all other outcomes were validated then
+			throw new NoActionFoundException("No action has been associated with the outcome \"" + outcome + "\"");
+		}
+		return slot;
+	}
+
+	/** the positions of the actions of a version of the engine's rules */
+	private static final class RuleSlots {
+		/** the rules of the engine, which the slots were resolved for */
+		private final List<Rule> rules;
+		/** maps the rules, by identity, to the positions of the actions of their outcomes. excludes rules whose outcome has no action. */
+		private final Map<Rule, Integer> slots;
+
+		private RuleSlots(List<Rule> rules, Map<String, Integer> slotsByOutcome) {
+			this.rules = rules;
+			this.slots = new IdentityHashMap<Rule, Integer>(rules.size());
+			for(Rule r : rules){
+				Integer slot = slotsByOutcome.get(r.getOutcome());
+				if(slot != null){
+					slots.put(r, slot);
+				}
+			}
+		}
+	}
+}
@@ -1,9 +1,27 @@
 package ch.maxant.rules;
 
 import org.mvel2.MVEL;
+import org.mvel2.ParserContext;
+import org.mvel2.compiler.CompiledExpression;
+import org.mvel2.compiler.ExecutableStatement;
+import org.mvel2.integration.VariableResolverFactory;
 
+import java.io.File;
 import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -90,11 +108,25 @@ public class Engine {
 
 	private static final Logger log = Logger.getLogger(Engine.class.getName());
 
+	private static final EvaluationListener[] NO_LISTENERS = new EvaluationListener[0];
+
     /** static variable bindings to be used in addition to the input when executing rules */
     protected final Map<String, Object> statics;
 
-    private List<CompiledRule> rules;
+	/** 
+	 * the compiled rules, which are replaced as a whole when rules are added, removed or replaced, so that every 
+	 * evaluation sees one consistent version of them.  null in subclasses which compile rules themselves.
+	 */
+	private final AtomicReference<RuleSet> ruleSet = new AtomicReference<RuleSet>();
+	/** the rules as they were given, by their fully qualified names, in the order in which they were added. only used while holding the lock on this engine. */
+	private Map<String, Rule> sources = new LinkedHashMap<String, Rule>();
+	/** the outcomes of the current rules. immutable, and replaced as a whole, like {@link #ruleSet} */
+	private volatile Set<String> outcomes = Collections.emptySet();
+	/** the current rules, with references to subrules replaced, i.e. the ones which evaluation returns. immutable, and replaced as a whole, like {@link #outcomes} */
+	private volatile List<Rule> currentRules = Collections.emptyList();
+	/** the outcomes of the current rules. only modified while holding the lock on this engine. */
 	protected final Set<String> uniqueOutcomes = new HashSet<String>();
+	/** the current rules, with references to subrules replaced. only modified while holding the lock on this engine. */
 	protected List<Rule> parsedRules;
 
 	protected final boolean throwExceptionIfCompilationFails;
@@ -104,6 +136,50 @@ public class Engine {
 	protected final String[] javascriptFilesToLoad;
 	protected final Integer poolSize;
 
+	/** copy on write, so that evaluation can read it without locking. empty, rather than null, if there are none. */
+	private volatile EvaluationListener[] listeners = NO_LISTENERS;
+
+	/** if not null, used to evaluate chunks of the candidate rules in parallel. See {@link Builder#withParallelEvaluation(Executor, int, int)} */
+	private final Executor evaluationExecutor;
+	/** the number of chunks into which the candidate rules are split, when evaluating in parallel */
+	private final int parallelism;
+	/** the minimum number of candidate rules, below which rules are always evaluated sequentially */
+	private final int parallelThreshold;
+
+	/** if not null, rules are compiled into bytecode where possible. See {@link Builder#withBytecodeCompilation(Class)} */
+	private final Class<?> bytecodeInputType;
+
+	/** if not null, rules are compiled with strict typing. See {@link Builder#withTypedCompilation(Class, Map)} */
+	private final Class<?> typedInputType;
+	/** the declared types of statics and variables, when compiling with strict typing */
+	private final Map<String, Class<?>> variableTypes;
+
+	/** if true, referenced rules are evaluated at most once per input. See {@link Builder#withMemoizedSubRules()} */
+	protected final boolean memoizeSubRules;
+	/** when memoizing subrules, the rules which other rules reference, indexed by slot, with their own references already replaced */
+	protected List<Rule> referencedRules;
+
+	/** if true, rules are indexed by the constants which they compare properties of the input with. See {@link Builder#withEqualityIndex()} */
+	private final boolean indexEqualities;
+	/** if true, rules are indexed by the ranges which they allow properties of the input to have. See {@link Builder#withIntervalIndex()} */
+	private final boolean indexIntervals;
+
+	/** the number of threads which compile rules. See {@link Builder#withParallelCompilation(int)} */
+	protected final int compilationThreads;
+
+	/** 
+	 * if not null, rules are compiled when their namespace is first used, apart from those in namespaces matching 
+	 * these patterns. See {@link Builder#withLazyCompilation(String...)} 
+	 */
+	private final Pattern[] warmNamespaces;
+
+	/** if not null, the file containing the compiled rules. See {@link Builder#withSnapshot(File)} */
+	private final File snapshotFile;
+	/** while rules are being restored from a snapshot, their compiled expressions, by expression. Guarded by the engine */
+	private Map<String, Serializable> restoredRules;
+	/** while rules are being restored from a snapshot, the compiled expressions of the referenced rules. Guarded by the engine */
+	private Map<String, Serializable> restoredSubRules;
+
 	/**
 	 * @param rules The rules which define the system.
 	 * @param throwExceptionIfCompilationFails if true, and a rule cannot be compiled, then a {@link CompileException} will be thrown.
@@ -141,6 +217,7 @@ public class Engine {
      * </code>
      *
      * @param statics a map containing variable bindings which do not change, e.g. constants or static methods (functions).
+     * 			The bindings are shared by all evaluations, rather than being copied each time, and rules cannot modify them.
      */
 	public Engine(final Collection<Rule> rules, String inputName, boolean throwExceptionIfCompilationFails, Map<String, Object > statics) throws DuplicateNameException, CompileException, ParseException {
 	    this(rules, inputName, throwExceptionIfCompilationFails, null, null, statics);
@@ -152,18 +229,165 @@ public class Engine {
 		this.javascriptFilesToLoad = javascriptFilesToLoad;
 		this.poolSize = poolSize;
 		this.statics = statics;
+		this.evaluationExecutor = null;
+		this.parallelism = 1;
+		this.parallelThreshold = Integer.MAX_VALUE;
+		this.bytecodeInputType = null;
+		this.typedInputType = null;
+		this.variableTypes = null;
+		this.memoizeSubRules = false;
+		this.indexEqualities = false;
+		this.indexIntervals = false;
+		this.compilationThreads = 1;
+		this.warmNamespaces = null;
+		this.snapshotFile = null;
 		init(rules);
 	}
+
+	/**
+	 * See {@link Builder}.
+	 */
+	protected Engine(Builder builder) throws DuplicateNameException, CompileException, ParseException {
+		this(builder, null, null);
+	}
+
+	/**
+	 * Used by subclasses whose builders extend {@link Builder}.
+	 */
+	protected Engine(Builder builder, Integer poolSize, String[] javascriptFilesToLoad) throws DuplicateNameException, CompileException, ParseException {
+		this.inputName = builder.inputName;
+		this.throwExceptionIfCompilationFails = builder.throwExceptionIfCompilationFails;
+		this.javascriptFilesToLoad = javascriptFilesToLoad;
+		this.poolSize = poolSize;
+		this.statics = builder.statics;
+		this.listeners = builder.evaluationListeners.toArray(new EvaluationListener[builder.evaluationListeners.size()]);
+		this.evaluationExecutor = builder.evaluationExecutor;
+		this.parallelism = builder.parallelism;
+		this.parallelThreshold = builder.parallelThreshold;
+		this.bytecodeInputType = builder.bytecodeInputType;
+		this.typedInputType = builder.typedInputType;
+		this.variableTypes = builder.variableTypes;
+		this.memoizeSubRules = builder.memoizeSubRules;
+		this.indexEqualities = builder.indexEqualities;
+		this.indexIntervals = builder.indexIntervals;
+		this.compilationThreads = builder.compilationThreads;
+		if(builder.warmNamespaces != null){
+			this.warmNamespaces = new Pattern[builder.warmNamespaces.length];
+			for(int i = 0; i < warmNamespaces.length; i++){
+				this.warmNamespaces[i] = Pattern.compile(builder.warmNamespaces[i]);
+			}
+		}else{
+			this.warmNamespaces = null;
+		}
+		this.snapshotFile = builder.snapshotFile;
+		configure(builder);
+		init(builder.rules);
+	}
+
+	/**
+	 * Called by the constructor which takes a builder, before the rules are loaded, so that subclasses can read the
+	 * options of their builders which they need while compiling.  Fields which are set here must not have initialisers,
+	 * since those only run after the constructor of this class.
+	 * @throws CompileException if the options are invalid
+	 */
+	protected void configure(Builder builder) throws CompileException {
+	}
 	
 	/** handles the initialisation */
 	protected void init(Collection<Rule> rules) throws DuplicateNameException, CompileException, ParseException {
 		log.info("\r\n\r\n*****Initialising rule engine...*****");
+		long start = System.currentTimeMillis();
+
+		synchronized(this){
+			if(snapshotFile == null){
+				load(rules);
+			}else{
+				loadUsingSnapshot(rules);
+			}
+		}
+
+		log.info("*****Engine initialisation completed in " + (System.currentTimeMillis()-start) + " ms*****\r\n");
+	}
+
+	/**
+	 * Adds the given rules to those which the engine already has, and compiles them, without recompiling the others.  
+	 * The engine continues to use the current rules until all of the new ones have been compiled, and then switches to 
+	 * them atomically, so that evaluations which are in progress, or start in the mean time, are not affected.  If 
+	 * anything fails, the engine continues to use the current rules.<br>
+	 * <br>
+	 * Note that an {@link ActionDispatcher} which was prepared before new outcomes were added, needs to be prepared again.
+	 * @param rules the rules to add
+	 * @throws DuplicateNameException if any of the rules has the same name as an existing rule, or another one of the given rules
+	 * @throws CompileException see {@link #Engine(Collection, boolean)}
+	 * @throws ParseException see {@link #Engine(Collection, boolean)}
+	 */
+	public synchronized void addRules(Collection<Rule> rules) throws DuplicateNameException, CompileException, ParseException {
+		Map<String, Rule> updated = new LinkedHashMap<String, Rule>(sources);
+		for(Rule r : rules){
+			if(updated.put(r.getFullyQualifiedName(), r) != null){
+				throw new DuplicateNameException("The name " + r.getFullyQualifiedName() + " was found in a different rule.");
+			}
+		}
+		load(updated.values());
+	}
 
+	/**
+	 * Replaces the rules which have the same fully qualified names as the given rules, keeping their places in the order 
+	 * in which rules were defined.  Only the given rules, and the rules which reference any given subrules, are recompiled.
+	 * See {@link #addRules(Collection)} for how the engine switches to the new rules.
+	 * @param rules the new versions of existing rules
+	 * @throws IllegalArgumentException if there is no existing rule with the same name as one of the given rules
+	 * @throws DuplicateNameException if more than one of the given rules has the same name
+	 * @throws CompileException see {@link #Engine(Collection, boolean)}
+	 * @throws ParseException see {@link #Engine(Collection, boolean)}
+	 */
+	public synchronized void replaceRules(Collection<Rule> rules) throws DuplicateNameException, CompileException, ParseException {
+		Map<String, Rule> updated = new LinkedHashMap<String, Rule>(sources);
+		Set<String> replaced = new HashSet<String>();
+		for(Rule r : rules){
+			String fullyQualifiedName = r.getFullyQualifiedName();
+			if(!updated.containsKey(fullyQualifiedName)){
+				throw new IllegalArgumentException("No rule named " + fullyQualifiedName + " was found");
+			}
+			if(!replaced.add(fullyQualifiedName)){
+				throw new DuplicateNameException("The name " + fullyQualifiedName + " was found in a different rule.");
+			}
+			updated.put(fullyQualifiedName, r);
+		}
+		load(updated.values());
+	}
+
+	/**
+	 * Removes the rules with the given fully qualified names (see {@link Rule#getFullyQualifiedName()}).
+	 * See {@link #addRules(Collection)} for how the engine switches to the remaining rules.
+	 * @param fullyQualifiedNames the names of the rules to remove
+	 * @throws IllegalArgumentException if there is no rule with one of the given names
+	 * @throws CompileException see {@link #Engine(Collection, boolean)}
+	 * @throws ParseException if a remaining rule references a removed subrule
+	 */
+	public synchronized void removeRules(Collection<String> fullyQualifiedNames) throws CompileException, ParseException {
+		Map<String, Rule> updated = new LinkedHashMap<String, Rule>(sources);
+		for(String fullyQualifiedName : fullyQualifiedNames){
+			if(updated.remove(fullyQualifiedName) == null){
+				throw new IllegalArgumentException("No rule named " + fullyQualifiedName + " was found");
+			}
+		}
+		try{
+			load(updated.values());
+		}catch(DuplicateNameException e){
+			throw new IllegalStateException(e); //should never happen, since the names are the keys of the map
+		}
+	}
+
+	/**
+	 * Parses and compiles the given rules, which replace all current rules once they have been compiled.  
+	 * If anything fails, the current rules remain in use.  Must be called while holding the lock on this engine.
+	 */
+	private void load(Collection<Rule> rules) throws DuplicateNameException, CompileException, ParseException {
         Set<String> illegalWordSet = initIllegalWords();
 
-		this.rules = new ArrayList<CompiledRule>();
-		long start = System.currentTimeMillis();
-		Map<String, Rule> names = new HashMap<String, Rule>();
+		Map<String, Rule> names = new LinkedHashMap<String, Rule>();
+		Set<String> outcomes = new HashSet<String>();
 		for(Rule r : rules){
             verifyLegal(r, illegalWordSet);
 
@@ -172,78 +396,392 @@ public class Engine {
 				throw new DuplicateNameException("The name " + fullyQualifiedName + " was found in a different rule.");
 			}
 			names.put(r.getFullyQualifiedName(), r);
-		    uniqueOutcomes.add(r.getOutcome());
+		    outcomes.add(r.getOutcome());
 		}
 		
-		parsedRules = new ArrayList<Rule>();
+		List<Rule> previousParsedRules = parsedRules;
+		List<Rule> previousReferencedRules = referencedRules;
+		boolean loaded = false;
+		try{
+			if(memoizeSubRules){
+				replaceReferencesWithMemoizedSubRules(names.values(), names);
+			}else{
+				replaceReferencesWithExpressions(names.values(), names);
+			}
+			
+			compile();
+			loaded = true;
+		}finally{
+			if(!loaded){
+				parsedRules = previousParsedRules;
+				referencedRules = previousReferencedRules;
+			}
+		}
 		
-		//now replace all rule references with the actual rule, contained within brackets
-		while(true){
-			boolean foundRuleReference = false;
-			for(Rule r : rules){
-				int idx1 = r.getExpression().indexOf('#');
-                if(idx1 > -1){
-					foundRuleReference = true;
-
-					//search to end of expression for next symbol
-					int idx2 = idx1 + 1; //to skip #
-					while(true){
-						idx2++;
-						if(idx2 >= r.getExpression().length()){
-							break;
-						}
-						char c = r.getExpression().charAt(idx2);
-						if(
-								c == ' ' || c == '&' || 
-								c == '|' || c == '.' || 
-								c == '(' || c == ')' || 
-								c == '[' || c == ']' || 
-								c == '{' || c == '}' || 
-								c == '+' || c == '-' || 
-								c == '/' || c == '*' || 
-								c == '=' || c == '!'
-						){
-							//end of token
-							break;
-						}
-					}
-					
-					String token = r.getExpression().substring(idx1+1, idx2);
-					String fullyQualifiedRuleRef = r.getNamespace() + "." + token;
-					Rule toAdd = names.get(fullyQualifiedRuleRef);
-					if(toAdd == null){
-						throw new ParseException("Error while attempting to add subrule to rule " + r.getFullyQualifiedName() + ".  Unable to replace #" + token + " with subrule " + fullyQualifiedRuleRef + " because no subrule with that fully qualified name was found");
-					}
-					String newExpression = "";
-					if(idx1 > 0){
-						newExpression += r.getExpression().substring(0, idx1);
-					}
-					newExpression += "(" + toAdd.getExpression() + ")";
-					if(idx2 < r.getExpression().length()){
-						newExpression += r.getExpression().substring(idx2);
+		sources = names;
+		uniqueOutcomes.clear();
+		uniqueOutcomes.addAll(outcomes);
+		this.outcomes = Collections.unmodifiableSet(outcomes);
+		this.currentRules = Collections.unmodifiableList(new ArrayList<Rule>(parsedRules));
+	}
+
+	/** 
+	 * restores the rules from the snapshot, if it was written for the same rules and settings, otherwise loads them as 
+	 * usual, and replaces the snapshot with one containing them.
+	 */
+	private void loadUsingSnapshot(Collection<Rule> rules) throws DuplicateNameException, CompileException, ParseException {
+		byte[] key = snapshotKey(rules);
+		RuleSetSnapshot snapshot = RuleSetSnapshot.read(snapshotFile, key);
+		if(snapshot != null){
+			restore(rules, snapshot);
+			log.info("Restored the rules from the snapshot " + snapshotFile);
+		}else{
+			load(rules);
+			if(writeSnapshot(rules, key)){
+				log.info("Wrote the rules to the snapshot " + snapshotFile);
+			}
+		}
+	}
+
+	/**
+	 * @return a hash of the rules, and of everything else which affects how they are checked, resolved and compiled,
+	 * so that a snapshot is only used for exactly the same rules and settings.
+	 */
+	private byte[] snapshotKey(Collection<Rule> rules) {
+		MessageDigest digest = RuleSetSnapshot.newDigest();
+		RuleSetSnapshot.update(digest, getClass().getName());
+		RuleSetSnapshot.update(digest, MVEL.VERSION + "." + MVEL.VERSION_SUB + "/" + MVEL.class.getPackage().getImplementationVersion());
+		RuleSetSnapshot.update(digest, inputName);
+		RuleSetSnapshot.update(digest, String.valueOf(memoizeSubRules));
+		RuleSetSnapshot.update(digest, subRuleReference(0));
+		RuleSetSnapshot.update(digest, typedInputType == null ? null : typedInputType.getName());
+		if(typedInputType != null){
+			for(Map.Entry<String, Class<?>> e : new TreeMap<String, Class<?>>(variableTypes).entrySet()){
+				RuleSetSnapshot.update(digest, e.getKey());
+				RuleSetSnapshot.update(digest, e.getValue().getName());
+			}
+			//the types of statics are those of their values
+			for(Map.Entry<String, Object> e : new TreeMap<String, Object>(statics).entrySet()){
+				RuleSetSnapshot.update(digest, e.getKey());
+				RuleSetSnapshot.update(digest, e.getValue() instanceof Method ? e.getValue().toString() : e.getValue() == null ? null : e.getValue().getClass().getName());
+			}
+		}
+		for(String word : new TreeSet<String>(initIllegalWords())){
+			RuleSetSnapshot.update(digest, word);
+		}
+		RuleSetSnapshot.updateInt(digest, rules.size());
+		for(Rule r : rules){
+			RuleSetSnapshot.update(digest, r.getClass().getName());
+			RuleSetSnapshot.update(digest, r.getNamespace());
+			RuleSetSnapshot.update(digest, r.getName());
+			RuleSetSnapshot.update(digest, r.getExpression());
+			RuleSetSnapshot.update(digest, r.getOutcome());
+			RuleSetSnapshot.updateInt(digest, r.getPriority());
+			RuleSetSnapshot.update(digest, r.getDescription());
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Uses the resolved and compiled expressions in the snapshot, rather than checking, resolving and compiling the
+	 * rules.  Only rules whose expressions are not in the snapshot, because they failed to compile, are compiled again.
+	 */
+	private void restore(Collection<Rule> rules, RuleSetSnapshot snapshot) throws CompileException {
+		Map<String, Rule> names = new LinkedHashMap<String, Rule>();
+		Set<String> outcomes = new HashSet<String>();
+		List<Rule> parsed = new ArrayList<Rule>(rules.size());
+		int i = 0;
+		for(Rule r : rules){
+			names.put(r.getFullyQualifiedName(), r);
+			outcomes.add(r.getOutcome());
+			String expression = snapshot.resolvedExpressions[i++];
+			parsed.add(expression == null ? r : withExpression(r, expression));
+		}
+		parsedRules = parsed;
+		if(snapshot.referencedRules != null){
+			referencedRules = new ArrayList<Rule>(snapshot.referencedRules.length);
+			for(int position : snapshot.referencedRules){
+				referencedRules.add(parsed.get(position));
+			}
+		}
+		
+		restoredRules = snapshot.compiledRules;
+		restoredSubRules = snapshot.compiledSubRules;
+		try{
+			compile();
+		}finally{
+			restoredRules = null;
+			restoredSubRules = null;
+		}
+
+		sources = names;
+		uniqueOutcomes.clear();
+		uniqueOutcomes.addAll(outcomes);
+		this.outcomes = Collections.unmodifiableSet(outcomes);
+		this.currentRules = Collections.unmodifiableList(new ArrayList<Rule>(parsedRules));
+	}
+
+	/** @return true if the resolved and compiled rules were written to the {@link #snapshotFile} */
+	private boolean writeSnapshot(Collection<Rule> rules, byte[] key) {
+		//the parsed rules are in the same order as the given ones, and are the same instances, unless they had references
+		String[] resolvedExpressions = new String[rules.size()];
+		Map<String, Integer> positions = new HashMap<String, Integer>();
+		int i = 0;
+		for(Rule r : rules){
+			Rule parsed = parsedRules.get(i);
+			resolvedExpressions[i] = parsed == r ? null : parsed.getExpression();
+			positions.put(r.getFullyQualifiedName(), i++);
+		}
+		int[] referenced = null;
+		if(memoizeSubRules){
+			referenced = new int[referencedRules.size()];
+			for(int slot = 0; slot < referenced.length; slot++){
+				referenced[slot] = positions.get(referencedRules.get(slot).getFullyQualifiedName());
+			}
+		}
+		
+		//subclasses like the JavascriptEngine compile rules in their own way, in which case only the resolution is saved
+		Map<String, Serializable> compiledRules = new HashMap<String, Serializable>();
+		Map<String, Serializable> compiledSubRules = new HashMap<String, Serializable>();
+		RuleSet current = ruleSet.get();
+		if(current != null){
+			for(Map.Entry<String, CompiledRule> e : current.compiledRules.entrySet()){
+				compiledRules.put(e.getKey(), e.getValue().compiled);
+			}
+			compiledSubRules.putAll(current.compiledSubRules);
+		}
+		return new RuleSetSnapshot(resolvedExpressions, referenced, compiledRules, compiledSubRules).write(snapshotFile, key);
+	}
+
+	/** replaces every reference in every rule with the expression of the referenced rule, contained within brackets, and fills {@link #parsedRules} */
+	private void replaceReferencesWithExpressions(Collection<Rule> rules, Map<String, Rule> names) throws ParseException {
+		Map<String, List<Reference>> references = findReferences(rules, names);
+		
+		//resolve the referenced rules before the rules which reference them, so that every rule is only resolved once
+		Map<String, String> resolved = new HashMap<String, String>();
+		for(Rule r : orderByDependencies(rules, references)){
+			String expression = r.getExpression();
+			List<Reference> refs = references.get(r.getFullyQualifiedName());
+			if(!refs.isEmpty()){
+				StringBuilder newExpression = new StringBuilder(expression.length() * 2);
+				int from = 0;
+				for(Reference ref : refs){
+					newExpression.append(expression, from, ref.start)
+						.append('(').append(resolved.get(ref.rule.getFullyQualifiedName())).append(')');
+					from = ref.end;
+				}
+				newExpression.append(expression, from, expression.length());
+				expression = newExpression.toString();
+			}
+			resolved.put(r.getFullyQualifiedName(), expression);
+		}
+		
+		parsedRules = new ArrayList<Rule>(rules.size());
+		for(Rule r : rules){
+			if(references.get(r.getFullyQualifiedName()).isEmpty()){
+				parsedRules.add(r);
+			}else{
+				parsedRules.add(withExpression(r, resolved.get(r.getFullyQualifiedName())));
+			}
+		}
+	}
+
+	/** @return a copy of the rule, with the given expression */
+	private static Rule withExpression(Rule r, String expression) {
+		if(r instanceof SubRule){
+			return new SubRule(r.getName(), expression, r.getNamespace(), r.getDescription());
+		}
+		return new Rule(r.getName(), expression, r.getOutcome(), r.getPriority(), r.getNamespace(), r.getDescription());
+	}
+
+	/** 
+	 * @return the references in the expression of each rule, by the fully qualified name of the rule, in the order in which they occur.
+	 * @throws ParseException if a referenced rule does not exist 
+	 */
+	private static Map<String, List<Reference>> findReferences(Collection<Rule> rules, Map<String, Rule> names) throws ParseException {
+		Map<String, List<Reference>> references = new HashMap<String, List<Reference>>();
+		for(Rule r : rules){
+			String expression = r.getExpression();
+			List<Reference> refs = Collections.emptyList();
+			int idx1 = expression.indexOf('#');
+			if(idx1 > -1){
+				refs = new ArrayList<Reference>();
+				while(idx1 > -1){
+					int idx2 = endOfReference(expression, idx1);
+					String token = expression.substring(idx1+1, idx2);
+					refs.add(new Reference(idx1, idx2, getReferencedRule(r, token, names)));
+					idx1 = expression.indexOf('#', idx2);
+				}
+			}
+			references.put(r.getFullyQualifiedName(), refs);
+		}
+		return references;
+	}
+
+	/**
+	 * Sorts the rules topologically, using a depth first search which visits each rule and reference once.
+	 * @return the rules, ordered so that every rule comes after the rules which it references.
+	 * @throws ParseException if rules reference each other in a cycle, which could never be resolved
+	 */
+	private static List<Rule> orderByDependencies(Collection<Rule> rules, Map<String, List<Reference>> references) throws ParseException {
+		List<Rule> ordered = new ArrayList<Rule>(rules.size());
+		Set<String> done = new HashSet<String>();
+		//the path from the rule where the search started, to the rule being visited, and the next reference to follow from each
+		List<Rule> path = new ArrayList<Rule>();
+		List<Integer> nextReference = new ArrayList<Integer>();
+		Set<String> onPath = new HashSet<String>();
+		for(Rule root : rules){
+			if(done.contains(root.getFullyQualifiedName())){
+				continue;
+			}
+			path.add(root);
+			nextReference.add(0);
+			onPath.add(root.getFullyQualifiedName());
+			while(!path.isEmpty()){
+				int last = path.size() - 1;
+				Rule r = path.get(last);
+				List<Reference> refs = references.get(r.getFullyQualifiedName());
+				int next = nextReference.get(last);
+				if(next < refs.size()){
+					nextReference.set(last, next + 1);
+					Rule referenced = refs.get(next).rule;
+					String name = referenced.getFullyQualifiedName();
+					if(onPath.contains(name)){
+						throw new ParseException("Error while attempting to add subrule to rule " + r.getFullyQualifiedName() + ".  Unable to replace #" + referenced.getName() + " because the rules reference each other in a cycle: " + describeCycle(path, referenced));
 					}
-					if(r instanceof SubRule){
-					    parsedRules.add(new SubRule(r.getName(), newExpression, r.getNamespace(), r.getDescription()));
-					}else{
-					    parsedRules.add(new Rule(r.getName(), newExpression, r.getOutcome(), r.getPriority(), r.getNamespace(), r.getDescription()));
+					if(!done.contains(name)){
+						path.add(referenced);
+						nextReference.add(0);
+						onPath.add(name);
 					}
 				}else{
-				    parsedRules.add(r);
+					//all of the rules which it references have been ordered
+					ordered.add(r);
+					done.add(r.getFullyQualifiedName());
+					onPath.remove(r.getFullyQualifiedName());
+					path.remove(last);
+					nextReference.remove(last);
 				}
 			}
-			if(!foundRuleReference){
-				//yay, all done!
+		}
+		return ordered;
+	}
+
+	/** @return e.g. "a.b -&gt; a.c -&gt; a.b" */
+	private static String describeCycle(List<Rule> path, Rule start) {
+		StringBuilder sb = new StringBuilder();
+		boolean inCycle = false;
+		for(Rule r : path){
+			inCycle = inCycle || r.getFullyQualifiedName().equals(start.getFullyQualifiedName());
+			if(inCycle){
+				sb.append(r.getFullyQualifiedName()).append(" -> ");
+			}
+		}
+		return sb.append(start.getFullyQualifiedName()).toString();
+	}
+
+	/** @return the position after the end of the reference which starts with the '#' at the given position */
+	private static int endOfReference(String expression, int idx1) {
+		//search to end of expression for next symbol
+		int idx2 = idx1 + 1; //to skip #
+		while(true){
+			idx2++;
+			if(idx2 >= expression.length()){
 				break;
-			}else{
-			    //go thru again, because there are still rules which need substituting
-			    rules = parsedRules;
-			    parsedRules = new ArrayList<Rule>();
 			}
+			char c = expression.charAt(idx2);
+			if(
+					c == ' ' || c == '&' || 
+					c == '|' || c == '.' || 
+					c == '(' || c == ')' || 
+					c == '[' || c == ']' || 
+					c == '{' || c == '}' || 
+					c == '+' || c == '-' || 
+					c == '/' || c == '*' || 
+					c == '=' || c == '!'
+			){
+				//end of token
+				break;
+			}
+		}
+		return idx2;
+	}
+	
+	private static Rule getReferencedRule(Rule r, String token, Map<String, Rule> names) throws ParseException {
+		String fullyQualifiedRuleRef = r.getNamespace() + "." + token;
+		Rule toAdd = names.get(fullyQualifiedRuleRef);
+		if(toAdd == null){
+			throw new ParseException("Error while attempting to add subrule to rule " + r.getFullyQualifiedName() + ".  Unable to replace #" + token + " with subrule " + fullyQualifiedRuleRef + " because no subrule with that fully qualified name was found");
 		}
+		return toAdd;
+	}
+	
+	/**
+	 * Replaces every reference in every rule with {@link #subRuleReference(int)}, rather than with the 
+	 * expression of the referenced rule, and fills {@link #parsedRules} and {@link #referencedRules}.
+	 */
+	private void replaceReferencesWithMemoizedSubRules(Collection<Rule> rules, Map<String, Rule> names) throws ParseException {
+		Map<String, List<Reference>> references = findReferences(rules, names);
+		//a cycle would only fail when the rules are evaluated
+		orderByDependencies(rules, references);
 		
-		compile();
+		Map<String, Integer> slots = new HashMap<String, Integer>();
+		List<String> referencedNames = new ArrayList<String>();
+		Map<String, Rule> replaced = new HashMap<String, Rule>();
+		parsedRules = new ArrayList<Rule>();
+		for(Rule r : rules){
+			String expression = r.getExpression();
+			List<Reference> refs = references.get(r.getFullyQualifiedName());
+			if(refs.isEmpty()){
+				parsedRules.add(r);
+				replaced.put(r.getFullyQualifiedName(), r);
+				continue;
+			}
+			StringBuilder newExpression = new StringBuilder();
+			int from = 0;
+			for(Reference ref : refs){
+				String fullyQualifiedRuleRef = ref.rule.getFullyQualifiedName();
+				Integer slot = slots.get(fullyQualifiedRuleRef);
+				if(slot == null){
+					slot = referencedNames.size();
+					slots.put(fullyQualifiedRuleRef, slot);
+					referencedNames.add(fullyQualifiedRuleRef);
+				}
+				newExpression.append(expression, from, ref.start).append(subRuleReference(slot));
+				from = ref.end;
+			}
+			newExpression.append(expression.substring(from));
+			Rule parsed = withExpression(r, newExpression.toString());
+			parsedRules.add(parsed);
+			replaced.put(r.getFullyQualifiedName(), parsed);
+		}
+		referencedRules = new ArrayList<Rule>(referencedNames.size());
+		for(String name : referencedNames){
+			referencedRules.add(replaced.get(name));
+		}
+	}
 
-		log.info("*****Engine initialisation completed in " + (System.currentTimeMillis()-start) + " ms*****\r\n");
+	/** a reference to a rule, i.e. "#name", in the expression of another rule */
+	private static final class Reference {
+		/** the position of the '#' */
+		private final int start;
+		/** the position after the end of the reference */
+		private final int end;
+		private final Rule rule;
+		private Reference(int start, int end, Rule rule) {
+			this.start = start;
+			this.end = end;
+			this.rule = rule;
+		}
+	}
+
+	/**
+	 * When memoizing subrules, references in rules are replaced by what this method returns, rather than by the 
+	 * expression of the referenced rule.
+	 * @param slot the position of the referenced rule in {@link #referencedRules}
+	 */
+	protected String subRuleReference(int slot) {
+		return MemoizedSubRules.variableName(slot);
 	}
 
 	/** override this if you want to change the illegal words that are checked. only rules without these words may be used. */
@@ -267,25 +805,374 @@ public class Engine {
     }
 
 
+	/**
+	 * Compiles the {@link #parsedRules} and publishes them as the rules which the engine uses.  Expressions which
+	 * the rules in use already contain are not compiled again.  The new expressions are compiled first, possibly in 
+	 * parallel, and the results are then handled in the order of the rules, so that listeners are notified, and failures
+	 * are reported, exactly as if the rules had been compiled one after the other.
+	 */
     protected void compile() throws CompileException {
+		RuleSet previous = ruleSet.get();
+		PredicateCompiler predicateCompiler = bytecodeInputType == null ? null : new PredicateCompiler(inputName, bytecodeInputType);
+		
+		Map<String, Compilation> subRuleCompilations = new HashMap<String, Compilation>();
+		Map<String, Compilation> ruleCompilations = new HashMap<String, Compilation>();
+		List<Compilation> compilations = new ArrayList<Compilation>();
+		if(memoizeSubRules){
+			for(Rule r : referencedRules){
+				if((previous == null || !previous.compiledSubRules.containsKey(r.getExpression())) && !subRuleCompilations.containsKey(r.getExpression())){
+					Compilation c = new Compilation(r, null, restoredSubRules == null ? null : restoredSubRules.get(r.getExpression()));
+					subRuleCompilations.put(r.getExpression(), c);
+					compilations.add(c);
+				}
+			}
+		}
+		Map<String, Boolean> eagerNamespaces = new HashMap<String, Boolean>();
+		for(Rule r : parsedRules){
+			if(!(r instanceof SubRule) && (previous == null || !previous.compiledRules.containsKey(r.getExpression())) && !ruleCompilations.containsKey(r.getExpression())
+					&& isCompiledEagerly(r.getNamespace(), eagerNamespaces)){
+				Compilation c = new Compilation(r, predicateCompiler, restoredRules == null ? null : restoredRules.get(r.getExpression()));
+				ruleCompilations.put(r.getExpression(), c);
+				compilations.add(c);
+			}
+		}
+		compileAll(compilations);
+		
+		MemoizedSubRules memoizedSubRules = null;
+		Map<String, Serializable> compiledSubRules = new HashMap<String, Serializable>();
+		if(memoizeSubRules){
+			Serializable[] compiled = new Serializable[referencedRules.size()];
+			for(int i = 0; i < compiled.length; i++){
+				Rule r = referencedRules.get(i);
+				compiled[i] = previous == null ? null : previous.compiledSubRules.get(r.getExpression());
+				if(compiled[i] == null){
+					Compilation c = subRuleCompilations.get(r.getExpression());
+					if(c.failure != null){
+						handleCompileFailure(r, c.failure);
+						continue;
+					}
+					compiled[i] = c.compiled;
+				}
+				compiledSubRules.put(r.getExpression(), compiled[i]);
+			}
+			memoizedSubRules = new MemoizedSubRules(referencedRules, compiled);
+		}
+		
+		List<CompiledRule> rules = new ArrayList<CompiledRule>();
+		Map<String, CompiledRule> compiledRules = new HashMap<String, CompiledRule>();
+		Set<String> pendingNamespaces = new HashSet<String>();
 		for(Rule r : parsedRules){
 			if(r instanceof SubRule){
 				continue;
 			}
-			addCompiledRule(throwExceptionIfCompilationFails, r);
+			CompiledRule compiled = compiledRules.get(r.getExpression());
+			if(compiled == null && previous != null){
+				compiled = previous.compiledRules.get(r.getExpression());
+			}
+			if(compiled == null){
+				Compilation c = ruleCompilations.get(r.getExpression());
+				if(c == null){
+					//compiled when its namespace is first used
+					pendingNamespaces.add(r.getNamespace());
+					rules.add(new CompiledRule(r, null, null));
+					continue;
+				}
+				if(c.failure != null){
+					handleCompileFailure(r, c.failure);
+					continue;
+				}
+				compiled = new CompiledRule(r, c.compiled, c.predicate);
+				if(!c.restored){
+					fireCompiled(r);
+				}
+			}else{
+				//the expression is unchanged, but other attributes of the rule, like its priority, might not be
+				compiled = new CompiledRule(r, compiled.compiled, compiled.predicate);
+			}
+			compiledRules.put(r.getExpression(), compiled);
+			rules.add(compiled);
 		}
+
+		//keep the rules ordered by priority, so that evaluation can stop as soon as enough matches are known.
+		//the sort is stable, so rules with the same priority stay in the order in which they were defined.
+		Collections.sort(rules, new Comparator<CompiledRule>() {
+			@Override
+			public int compare(CompiledRule o1, CompiledRule o2) {
+				return o1.getRule().compareTo(o2.getRule());
+			}
+		});
+		
+		List<String> namespaces = new ArrayList<String>(rules.size());
+		List<String> expressions = new ArrayList<String>(rules.size());
+		for(CompiledRule r : rules){
+			namespaces.add(r.getRule().getNamespace());
+			expressions.add(r.getRule().getExpression());
+		}
+		List<RuleIndex> indexes = new ArrayList<RuleIndex>();
+		if(indexEqualities){
+			addIndex(indexes, EqualityIndex.build(expressions, inputName));
+		}
+		if(indexIntervals){
+			addIndex(indexes, IntervalIndex.build(expressions, inputName));
+		}
+		
+		ruleSet.set(new RuleSet(rules, new NamespaceIndex(namespaces), indexes.toArray(new RuleIndex[indexes.size()]), 
+				memoizedSubRules, new StaticsVariableResolverFactory(statics), compiledRules, compiledSubRules, pendingNamespaces));
 	}
 
-	private void addCompiledRule(boolean throwExceptionIfCompilationFails, Rule r) throws CompileException {
+	/**
+	 * @param cache the results so far, by namespace
+	 * @return true unless rules are compiled lazily, and the namespace is not one of those to compile eagerly. 
+	 * See {@link Builder#withLazyCompilation(String...)}
+	 */
+	protected final boolean isCompiledEagerly(String namespace, Map<String, Boolean> cache) {
+		if(warmNamespaces == null){
+			return true;
+		}
+		Boolean eager = cache.get(namespace);
+		if(eager == null){
+			eager = false;
+			for(Pattern p : warmNamespaces){
+				eager = eager || p.matcher(namespace).matches();
+			}
+			cache.put(namespace, eager);
+		}
+		return eager;
+	}
+
+	/**
+	 * Compiles the rules in the namespaces which the pattern selects, which have not been compiled yet, and publishes them.
+	 * Runs under the lock of the engine, so that each namespace is only compiled once, even if several threads use it 
+	 * for the first time at once, and so that rules cannot be added or replaced at the same time.
+	 * @return the current rules, in which those which the pattern selects have been compiled.
+	 * @throws IllegalStateException if a rule fails to compile, and exceptions are to be thrown, in which case the
+	 * 			namespace is compiled again, the next time it is used.
+	 */
+	private synchronized RuleSet compileNamespaces(String nameSpacePattern) {
+		RuleSet current = ruleSet.get();
+		if(current.isCompiled(nameSpacePattern)){
+			return current; //by another thread, in the mean time
+		}
+		Set<String> namespaces = new HashSet<String>();
+		for(int position : current.namespaceIndex.resolve(nameSpacePattern)){
+			String namespace = current.rules.get(position).getRule().getNamespace();
+			if(current.pendingNamespaces.contains(namespace)){
+				namespaces.add(namespace);
+			}
+		}
+		log.info("Compiling the rules in the namespaces " + namespaces);
+		
+		PredicateCompiler predicateCompiler = bytecodeInputType == null ? null : new PredicateCompiler(inputName, bytecodeInputType);
+		Map<String, Compilation> ruleCompilations = new HashMap<String, Compilation>();
+		List<Compilation> compilations = new ArrayList<Compilation>();
+		for(CompiledRule cr : current.rules){
+			Rule r = cr.getRule();
+			if(cr.compiled == null && namespaces.contains(r.getNamespace()) 
+					&& !current.compiledRules.containsKey(r.getExpression()) && !ruleCompilations.containsKey(r.getExpression())){
+				Compilation c = new Compilation(r, predicateCompiler, null);
+				ruleCompilations.put(r.getExpression(), c);
+				compilations.add(c);
+			}
+		}
+		compileAll(compilations);
+		
+		List<CompiledRule> rules = new ArrayList<CompiledRule>(current.rules);
+		Map<String, CompiledRule> compiledRules = new HashMap<String, CompiledRule>(current.compiledRules);
+		for(int i = 0; i < rules.size(); i++){
+			Rule r = rules.get(i).getRule();
+			if(rules.get(i).compiled != null || !namespaces.contains(r.getNamespace())){
+				continue;
+			}
+			CompiledRule compiled = compiledRules.get(r.getExpression());
+			if(compiled == null){
+				Compilation c = ruleCompilations.get(r.getExpression());
+				if(c.failure != null){
+					try{
+						handleCompileFailure(r, c.failure);
+					}catch(CompileException e){
+						throw new IllegalStateException("Failed to compile the rules in the namespaces " + namespaces, e);
+					}
+					continue;
+				}
+				compiled = new CompiledRule(r, c.compiled, c.predicate);
+				compiledRules.put(r.getExpression(), compiled);
+				fireCompiled(r);
+			}
+			rules.set(i, new CompiledRule(r, compiled.compiled, compiled.predicate));
+		}
+		
+		Set<String> pendingNamespaces = new HashSet<String>(current.pendingNamespaces);
+		pendingNamespaces.removeAll(namespaces);
+		RuleSet next = new RuleSet(rules, current.namespaceIndex, current.indexes, current.memoizedSubRules, 
+				current.staticsFactory, compiledRules, current.compiledSubRules, pendingNamespaces);
+		ruleSet.set(next);
+		return next;
+	}
+
+	/** @return the current rules, in which those which the pattern selects have been compiled, see {@link Builder#withLazyCompilation(String...)} */
+	private RuleSet ruleSetFor(String nameSpacePattern) {
+		RuleSet ruleSet = this.ruleSet.get();
+		if(ruleSet.isCompiled(nameSpacePattern)){
+			return ruleSet;
+		}
+		return compileNamespaces(nameSpacePattern);
+	}
+
+	private static void addIndex(List<RuleIndex> indexes, RuleIndex index) {
+		if(index != null){
+			indexes.add(index);
+		}
+	}
+
+	/** compiles the expressions, on {@link #compilationThreads} threads */
+	private void compileAll(List<Compilation> compilations) {
 		try{
-			this.rules.add(new CompiledRule(r));
-			log.info("added rule: " + r);
-		}catch(org.mvel2.CompileException ex){
-			log.warning("Failed to compile " + r.getFullyQualifiedName() + ": " + ex.getMessage());
-			if(throwExceptionIfCompilationFails){
-				throw new CompileException(ex.getMessage());
+			runCompilationTasks(compilations);
+		}catch(RuntimeException e){
+			throw e;
+		}catch(Exception e){
+			throw new IllegalStateException(e); //should never happen, since compilations record their failures
+		}
+	}
+
+	/**
+	 * Runs the tasks on {@link #compilationThreads} threads, which only exist while they run, or on the calling thread,
+	 * if there is only one.
+	 * @throws Exception the exception thrown by the first of the tasks which failed, in the order of the given list, 
+	 * 			so that it does not depend on which thread happened to be quickest.
+	 */
+	protected final void runCompilationTasks(List<? extends Callable<Void>> tasks) throws Exception {
+		runCompilationTasks(tasks, compilationThreads);
+	}
+
+	/**
+	 * Like {@link #runCompilationTasks(List)}, but on the given number of threads.
+	 */
+	protected final void runCompilationTasks(List<? extends Callable<Void>> tasks, int numThreads) throws Exception {
+		int threads = Math.min(numThreads, tasks.size());
+		if(threads <= 1){
+			for(Callable<Void> task : tasks){
+				task.call();
+			}
+			return;
+		}
+		final AtomicInteger threadNumber = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "rule-compiler-" + threadNumber.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try{
+			for(Future<Void> f : executor.invokeAll(tasks)){
+				try{
+					f.get();
+				}catch(ExecutionException e){
+					if(e.getCause() instanceof Error){
+						throw (Error)e.getCause();
+					}
+					throw (Exception)e.getCause();
+				}
+			}
+		}finally{
+			executor.shutdown();
+		}
+	}
+
+	/** logs the failure and notifies listeners, and throws a {@link CompileException} if required */
+	private void handleCompileFailure(Rule r, RuntimeException failure) throws CompileException {
+		if(!(failure instanceof org.mvel2.CompileException)){
+			//a bug rather than an invalid expression
+			throw failure;
+		}
+		log.warning("Failed to compile " + r.getFullyQualifiedName() + ": " + failure.getMessage());
+		fireCompileFailure(r, failure.getMessage());
+		if(throwExceptionIfCompilationFails){
+			throw new CompileException(failure.getMessage());
+		}
+	}
+
+	/** 
+	 * compiles the expression of a rule, recording the result or the failure, so that they can be handled in 
+	 * the order of the rules, regardless of which thread compiled the expression.
+	 */
+	private final class Compilation implements Callable<Void> {
+		private final Rule rule;
+		/** not null, if the expression should also be compiled into bytecode */
+		private final PredicateCompiler predicateCompiler;
+		/** true if the expression was restored from a snapshot, rather than being compiled by MVEL */
+		private final boolean restored;
+		private Serializable compiled;
+		private RulePredicate predicate;
+		private RuntimeException failure;
+
+		/** @param restored optional. the expression compiled by MVEL, from a snapshot */
+		private Compilation(Rule rule, PredicateCompiler predicateCompiler, Serializable restored) {
+			this.rule = rule;
+			this.predicateCompiler = predicateCompiler;
+			this.restored = restored != null;
+			this.compiled = restored;
+		}
+
+		@Override
+		public Void call() {
+			try{
+				if(compiled == null){
+					compiled = compileExpression(rule);
+				}
+				if(predicateCompiler != null){
+					predicate = predicateCompiler.compile(rule.getExpression());
+				}
+			}catch(RuntimeException e){
+				failure = e;
+			}
+			return null;
+		}
+	}
+
+	private Serializable compileExpression(Rule r) {
+		if(typedInputType == null){
+			return MVEL.compileExpression(r.getExpression());
+		}
+		Serializable compiled = MVEL.compileExpression(r.getExpression(), newTypedParserContext());
+		
+		//MVEL only knows the type of the result reliably if the expression is a single statement
+		if(!(compiled instanceof CompiledExpression) || ((CompiledExpression)compiled).isSingleNode()){
+			Class<?> type = ((ExecutableStatement)compiled).getKnownEgressType();
+			if(type != null && type != Boolean.class && type != boolean.class && type != Object.class){
+				throw new org.mvel2.CompileException("The rule does not evaluate to a boolean, but to " + type.getName(), r.getExpression().toCharArray(), 0);
+			}
+		}
+		return compiled;
+	}
+	
+	/** @return a context which declares the types of the input, statics and variables. A new one is needed for each rule, since MVEL modifies it. */
+	private ParserContext newTypedParserContext() {
+		ParserContext ctx = new ParserContext();
+		ctx.setStrongTyping(true);
+		ctx.setStrictTypeEnforcement(true);
+		ctx.addInput(inputName, typedInputType);
+		for(Map.Entry<String, Object> e : statics.entrySet()){
+			if(variableTypes.containsKey(e.getKey())){
+				continue;
+			}else if(e.getValue() instanceof Method){
+				//a function, see MVEL#getStaticMethod
+				ctx.addImport(e.getKey(), (Method) e.getValue());
+			}else{
+				ctx.addInput(e.getKey(), e.getValue() == null ? Object.class : e.getValue().getClass());
+			}
+		}
+		for(Map.Entry<String, Class<?>> e : variableTypes.entrySet()){
+			ctx.addInput(e.getKey(), e.getValue());
+		}
+		if(referencedRules != null){
+			for(int i = 0; i < referencedRules.size(); i++){
+				ctx.addInput(MemoizedSubRules.variableName(i), Boolean.class);
 			}
 		}
+		return ctx;
 	}
 
 	/**
@@ -297,7 +1184,8 @@ public class Engine {
 	}
 
 	/**
-	 * Evaluates all rules against the input and returns the result of the outcome associated with the rule having the highest priority.
+	 * Evaluates rules against the input and returns the result of the outcome associated with the rule having the highest priority.
+	 * Rules are evaluated in order of priority and evaluation stops as soon as the first matching rule is found.
 	 * @param <Input> An input object to match against rules.
 	 * @param nameSpacePattern optional.  if not null, then only rules with matching namespaces are evaluated.
 	 * @param input the Object containing all inputs to the expression language rule.
@@ -305,8 +1193,16 @@ public class Engine {
 	 * @throws NoMatchingRuleFoundException If no matching rule was found.  Rules must evaluate to true in order to be candidates.
 	 */
 	public <Input> String getBestOutcome(String nameSpacePattern, Input input) throws NoMatchingRuleFoundException {
+		return getBestOutcome(nameSpacePattern, input, null);
+	}
+	
+	/**
+	 * Like {@link #getBestOutcome(String, Object)}, but with further variables which rules may use, 
+	 * in addition to the input and the statics. See {@link #getMatchingRules(String, Object, Map, int)}.
+	 */
+	public <Input> String getBestOutcome(String nameSpacePattern, Input input, Map<String, Object> variables) throws NoMatchingRuleFoundException {
 
-		List<Rule> matches = getMatchingRules(nameSpacePattern, input);
+		List<Rule> matches = getMatchingRules(nameSpacePattern, input, variables, 1);
 		if(matches == null || matches.isEmpty()){
 			throw new NoMatchingRuleFoundException();
 		}else{
@@ -323,6 +1219,7 @@ public class Engine {
 
 	/**
 	 * Evaluates all rules against the input and returns the result of the action associated with the rule having the highest priority.
+	 * The actions are validated every time this method is called - see {@link #prepareActions(Collection)} to avoid that.
 	 * @param nameSpacePattern optional.  if not null, then only rules with matching namespaces are evaluated.
 	 * @param input the Object containing all inputs to the expression language rule.
 	 * @param actions a collection of actions containing one action per possible outcome.  The action whose name is equal to the winning outcome will be executed.
@@ -332,10 +1229,7 @@ public class Engine {
 	 * @throws DuplicateNameException if any actions have the same name.
 	 */
 	public <Input, Output> Output executeBestAction(String nameSpacePattern, Input input, Collection<? extends IAction<Input, Output>> actions) throws NoMatchingRuleFoundException, NoActionFoundException, DuplicateNameException {
-		
-		Map<String, IAction<Input, Output>> actionsMap = validateActions(actions);
-		
-		return actionsMap.get(getBestOutcome(nameSpacePattern, input)).execute(input);
+		return prepareActions(actions).executeBestAction(nameSpacePattern, input);
 	}
 	
 	/**
@@ -361,25 +1255,44 @@ public class Engine {
 	 * @throws DuplicateNameException if any actions have the same name.
 	 */
 	public <Input, Output> void executeAllActions(String nameSpacePattern, Input input, Collection<? extends IAction<Input, Output>> actions) throws NoActionFoundException, DuplicateNameException {
-		
-		Map<String, IAction<Input, Output>> actionsMap = validateActions(actions);
-		
-		List<Rule> matchingRules = getMatchingRules(nameSpacePattern, input);
-		
-		Set<String> executedOutcomes = new HashSet<String>();
-		for(Rule r : matchingRules){
-			//only run, if not already run!
-			if(!executedOutcomes.contains(r.getOutcome())){
-				
-				actionsMap.get(r.getOutcome()).execute(input);
-				
-				executedOutcomes.add(r.getOutcome());
-			}
-		}
-		
+		prepareActions(actions).executeAllActions(nameSpacePattern, input);
+	}
 	
+	/**
+	 * The same as calling {@link #executeAllActions(String, Object, Collection)} for each input, in the order of the 
+	 * given collection, except that the actions are only validated once and the rules are evaluated using 
+	 * {@link #getMatchingRulesInBatch(String, Collection)}.<br>
+	 * <br>
+	 * <b>NOTE THAT THIS METHOD DISREGARDS ANY RETURN VALUES OF ACTIONS!!</b>
+	 */
+	public <Input, Output> void executeAllActionsInBatch(String nameSpacePattern, Collection<Input> inputs, Collection<? extends IAction<Input, Output>> actions) throws NoActionFoundException, DuplicateNameException {
+		prepareActions(actions).executeAllActionsInBatch(nameSpacePattern, inputs);
 	}
 	
+	/**
+	 * Validates the given actions against the outcomes of the rules in this engine and binds them to it, 
+	 * so that they can be executed over and over again, without the validation being repeated every time.
+	 * Use this instead of {@link #executeBestAction(String, Object, Collection)} and 
+	 * {@link #executeAllActions(String, Object, Collection)} if the actions do not change between calls. 
+	 * @param <Input> The type of input to the actions.
+	 * @param <Output> The type of output from the actions.
+	 * @param actions a collection of actions containing one action per possible outcome.
+	 * @return a reusable and thread safe dispatcher which executes the actions associated with matching rules.
+	 * @throws NoActionFoundException If no action with a name matching the outcome of a rule was found.
+	 * @throws DuplicateNameException if any actions have the same name.
+	 */
+	public <Input, Output> ActionDispatcher<Input, Output> prepareActions(Collection<? extends IAction<Input, Output>> actions) throws NoActionFoundException, DuplicateNameException {
+		return new ActionDispatcher<Input, Output>(this, validateActions(actions));
+	}
+	
+	/** 
+	 * @return the current rules, as returned by evaluation, so that an {@link ActionDispatcher} can resolve their actions 
+	 * up front.  A different list whenever the rules change.
+	 */
+	final List<Rule> getCurrentRules() {
+		return currentRules;
+	}
+
 	private <Input, Output> Map<String, IAction<Input, Output>> validateActions(Collection<? extends IAction<Input, Output>> actions) throws DuplicateNameException, NoActionFoundException{
 		//do any actions have duplicate names?
 		Map<String, IAction<Input, Output>> actionsMap = new HashMap<String, IAction<Input, Output>>();
@@ -394,7 +1307,7 @@ public class Engine {
 		//do we have at least one action for every possible outcome?  
 		//better to test now, rather than in production...
 		//n.b. subrules have outcome == null, so skip them
-		for(String outcome : uniqueOutcomes){
+		for(String outcome : outcomes){
 			if(outcome != null && !actionsMap.containsKey(outcome)){
 				throw new NoActionFoundException("No action has been associated with the outcome \"" + outcome + "\"");
 			}
@@ -417,55 +1330,701 @@ public class Engine {
 	 * @return an ordered list of Rules which evaluated to "true", sorted by {@link Rule#getPriority()}, with the highest priority rules first in the list.
 	 */
 	public <Input> List<Rule> getMatchingRules(String nameSpacePattern, Input input) {
+		return getMatchingRules(nameSpacePattern, input, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Like {@link #getMatchingRules(String, Object)}, but only the best matching rules are returned.
+	 * Rules are evaluated in order of priority, and evaluation stops as soon as <code>maxMatches</code> 
+	 * rules have matched, so that rules which can never be amongst the best are not evaluated at all.
+	 * Rules with the same priority are evaluated in the order in which they were given to the engine.
+	 * @param <Input> the type of input
+	 * @param nameSpacePattern optional.  if not null, then only rules with matching namespaces are evaluated.
+	 * @param input the Object containing all inputs to the expression language rule.
+	 * @param maxMatches the maximum number of rules to return, e.g. 1 if only the winner is required.
+	 * @return an ordered list of at most <code>maxMatches</code> Rules which evaluated to "true", with the highest priority rules first in the list.
+	 */
+	public <Input> List<Rule> getMatchingRules(String nameSpacePattern, Input input, int maxMatches) {
+		return getMatchingRules(nameSpacePattern, input, null, maxMatches);
+	}
+	
+	/**
+	 * Like {@link #getMatchingRules(String, Object)}, but with further variables which rules may use, 
+	 * in addition to the input and the statics.
+	 */
+	public <Input> List<Rule> getMatchingRules(String nameSpacePattern, Input input, Map<String, Object> variables) {
+		return getMatchingRules(nameSpacePattern, input, variables, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Like {@link #getMatchingRules(String, Object, int)}, but with further variables which rules may use, 
+	 * in addition to the input and the statics.  Useful for values which change from call to call, 
+	 * but are not part of the input. The variables are neither copied nor modified by the engine, 
+	 * and hide statics with the same name.
+	 * @param <Input> the type of input
+	 * @param nameSpacePattern optional.  if not null, then only rules with matching namespaces are evaluated.
+	 * @param input the Object containing all inputs to the expression language rule.
+	 * @param variables optional. variables which rules may refer to by name.
+	 * @param maxMatches the maximum number of rules to return, e.g. 1 if only the winner is required.
+	 * @return an ordered list of at most <code>maxMatches</code> Rules which evaluated to "true", with the highest priority rules first in the list.
+	 */
+	public <Input> List<Rule> getMatchingRules(String nameSpacePattern, Input input, Map<String, Object> variables, int maxMatches) {
+		if(maxMatches < 1){
+			throw new IllegalArgumentException("maxMatches must be at least 1");
+		}
+		
+		//read once, so that the whole call uses the same version of the rules, even if they are replaced in the mean time
+		RuleSet ruleSet = ruleSetFor(nameSpacePattern);
+		int[] candidates = ruleSet.namespaceIndex.resolve(nameSpacePattern);
+		EvaluationListener[] listeners = this.listeners;
 		
-		Pattern pattern = null;
-		if(nameSpacePattern != null){
-			pattern = Pattern.compile(nameSpacePattern);
+		//the statics are shared rather than copied. only the input and variables created by rules belong to this call.
+		VariableResolverFactory vars = new InputVariableResolverFactory(inputName, input, variables, ruleSet.staticsFactory, ruleSet.memoizedSubRules);
+		candidates = ruleSet.select(candidates, vars);
+		
+		if(evaluationExecutor != null && candidates.length >= parallelThreshold){
+			return evaluateInParallel(ruleSet, candidates, input, variables, maxMatches, listeners);
 		}
 		
-		Map<String, Object> vars = new HashMap<String, Object>(statics); // initialise with static stuff
-		vars.put(inputName, input);
-
 		List<Rule> matchingRules = new ArrayList<Rule>();
-		for(CompiledRule r : rules){
-			
-			if(pattern != null){
-				if(!pattern.matcher(r.getRule().getNamespace()).matches()){
-					continue;
+		evaluate(ruleSet, candidates, 0, candidates.length, input, vars, maxMatches, listeners, matchingRules, null, 0);
+		
+		//no need to sort, since the rules are already ordered by priority
+		return matchingRules;
+	}
+	
+	/**
+	 * See {@link #getMatchingRulesInBatch(String, Collection, Executor, int)}, except that all inputs are evaluated on the calling thread.
+	 */
+	public <Input> List<List<Rule>> getMatchingRulesInBatch(String nameSpacePattern, Collection<Input> inputs) {
+		return getMatchingRulesInBatch(nameSpacePattern, inputs, null, 1);
+	}
+
+	/**
+	 * Evaluates the rules against each of the inputs, with the same result as calling {@link #getMatchingRules(String, Object)}
+	 * once per input, but without redoing the work which does not depend on the input, like resolving the namespace pattern, 
+	 * for every input.
+	 * @param nameSpacePattern optional.  if not null, then only rules with matching namespaces are evaluated.
+	 * @param inputs the inputs to evaluate
+	 * @param executor optional. if not null, the inputs are split into <code>parallelism</code> contiguous slices, and all but
+	 * 			the first are evaluated on this executor, while the calling thread evaluates the first.
+	 * @param parallelism the number of slices into which the inputs are split, if an executor is given.
+	 * @return one list of matching rules per input, in the same order as the inputs. Each list is ordered like the result of {@link #getMatchingRules(String, Object)}.
+	 * If evaluating more than one input fails, then the problem with the first of those inputs is thrown.
+	 */
+	public <Input> List<List<Rule>> getMatchingRulesInBatch(final String nameSpacePattern, Collection<Input> inputs, Executor executor, int parallelism) {
+		if(parallelism < 1){
+			throw new IllegalArgumentException("parallelism must be at least 1");
+		}
+		final List<Input> inputList = new ArrayList<Input>(inputs);
+		@SuppressWarnings("unchecked")
+		final List<Rule>[] results = (List<Rule>[]) new List<?>[inputList.size()];
+		if(inputList.isEmpty()){
+			return Arrays.asList(results);
+		}
+		
+		//once per batch, so that every slice uses the same version of the rules, even if they are replaced in the mean time
+		final Batch batch = prepareBatch(nameSpacePattern);
+		int numSlices = executor == null ? 1 : Math.min(parallelism, inputList.size());
+		int sliceSize = (inputList.size() + numSlices - 1) / numSlices;
+		List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(numSlices);
+		for(int i = 0; i < numSlices; i++){
+			final int from = i * sliceSize;
+			final int to = Math.min(from + sliceSize, inputList.size());
+			tasks.add(new FutureTask<Void>(new Callable<Void>() {
+				@Override
+				public Void call() {
+					getMatchingRulesInBatch(batch, inputList, from, to, results);
+					return null;
 				}
+			}));
+		}
+		for(int i = 1; i < tasks.size(); i++){
+			executor.execute(tasks.get(i));
+		}
+		tasks.get(0).run();
+		for(FutureTask<Void> task : tasks){
+			await(task);
+		}
+		return Arrays.asList(results);
+	}
+	
+	/**
+	 * Does the setup which does not depend on the inputs, once per batch, on the calling thread, before the slices of 
+	 * the batch are evaluated.  Subclasses override this along with {@link #getMatchingRulesInBatch(Batch, List, int, int, List[])}.
+	 * @return the version of the rules which every slice of the batch uses, and the candidates which the pattern selects.
+	 */
+	protected Batch prepareBatch(String nameSpacePattern) {
+		RuleSet ruleSet = ruleSetFor(nameSpacePattern);
+		return new RuleSetBatch(ruleSet, ruleSet.namespaceIndex.resolve(nameSpacePattern), listeners);
+	}
+
+	/**
+	 * Evaluates the inputs between from (inclusive) and to (exclusive), on the calling thread, putting the matching
+	 * rules for each input into the results at the same position.  Called once per slice of inputs, so subclasses 
+	 * override this to do their per slice setup.
+	 * @param batch the result of {@link #prepareBatch(String)}, which all slices share.
+	 */
+	protected <Input> void getMatchingRulesInBatch(Batch batch, List<Input> inputs, int from, int to, List<Rule>[] results) {
+		RuleSet ruleSet = ((RuleSetBatch) batch).ruleSet;
+		for(int i = from; i < to; i++){
+			Input input = inputs.get(i);
+			VariableResolverFactory vars = new InputVariableResolverFactory(inputName, input, null, ruleSet.staticsFactory, ruleSet.memoizedSubRules);
+			int[] selected = ruleSet.select(batch.candidates, vars);
+			List<Rule> matchingRules = new ArrayList<Rule>();
+			evaluate(ruleSet, selected, 0, selected.length, input, vars, Integer.MAX_VALUE, batch.listeners, matchingRules, null, 0);
+			results[i] = matchingRules;
+		}
+	}
+	
+	/**
+	 * Evaluates the candidates between from (inclusive) and to (exclusive), adding those which match to the given list, until it contains maxMatches rules.
+	 * @param firstFullChunk optional. when evaluating in parallel, the lowest chunk which has already found enough matches by itself. 
+	 * 			the chunk being evaluated can stop as soon as that is a chunk in front of it, since its results will no longer be needed.
+	 * @param chunk the index of the chunk being evaluated
+	 */
+	private void evaluate(RuleSet ruleSet, int[] candidates, int from, int to, Object input, VariableResolverFactory vars, int maxMatches, 
+			EvaluationListener[] listeners, List<Rule> matchingRules, AtomicInteger firstFullChunk, int chunk) {
+		for(int i = from; i < to && matchingRules.size() < maxMatches; i++){
+			if(firstFullChunk != null && firstFullChunk.get() < chunk){
+				return;
 			}
-			
-			Object o = MVEL.executeExpression(r.getCompiled(), vars);
-			String msg = r.getRule().getFullyQualifiedName() + "-{" + r.getRule().getExpression() + "}";
-			if(String.valueOf(o).equals("true")){
+			CompiledRule r = ruleSet.rules.get(candidates[i]);
+			if(r.compiled == null){
+				continue; //failed to compile when its namespace was first used
+			}
+			if(evaluate(r, input, vars, listeners)){
 				matchingRules.add(r.getRule());
-                if(log.isLoggable(Level.INFO)) log.info("matched: " + msg);
-			}else{
-                if(log.isLoggable(Level.INFO)) log.info("unmatched: " + msg);
 			}
 		}
+		if(firstFullChunk != null && matchingRules.size() >= maxMatches){
+			int current;
+			while((current = firstFullChunk.get()) > chunk && !firstFullChunk.compareAndSet(current, chunk)){
+				//retry
+			}
+		}
+	}
+
+	/**
+	 * Splits the candidates into contiguous chunks which are evaluated on the {@link #evaluationExecutor}, 
+	 * apart from the first, which the calling thread evaluates itself. Since the chunks are in order of priority, 
+	 * concatenating their results in chunk order gives the same result as evaluating sequentially.
+	 */
+	private List<Rule> evaluateInParallel(final RuleSet ruleSet, final int[] candidates, final Object input, final Map<String, Object> variables, final int maxMatches, final EvaluationListener[] listeners) {
+		int numChunks = Math.min(parallelism, candidates.length);
+		int chunkSize = (candidates.length + numChunks - 1) / numChunks;
+		final AtomicInteger firstFullChunk = new AtomicInteger(Integer.MAX_VALUE);
 		
-		//order by priority!
-		Collections.sort(matchingRules);
+		List<FutureTask<List<Rule>>> tasks = new ArrayList<FutureTask<List<Rule>>>(numChunks);
+		for(int c = 0; c < numChunks; c++){
+			final int chunk = c;
+			final int from = c * chunkSize;
+			final int to = Math.min(from + chunkSize, candidates.length);
+			tasks.add(new FutureTask<List<Rule>>(new Callable<List<Rule>>() {
+				@Override
+				public List<Rule> call() {
+					//each chunk has its own variables, since the factory is not thread safe
+					VariableResolverFactory vars = new InputVariableResolverFactory(inputName, input, variables, ruleSet.staticsFactory, ruleSet.memoizedSubRules);
+					List<Rule> matchingRules = new ArrayList<Rule>();
+					evaluate(ruleSet, candidates, from, to, input, vars, maxMatches, listeners, matchingRules, firstFullChunk, chunk);
+					return matchingRules;
+				}
+			}));
+		}
+		for(int c = 1; c < tasks.size(); c++){
+			evaluationExecutor.execute(tasks.get(c));
+		}
+		tasks.get(0).run();
 		
+		List<Rule> matchingRules = new ArrayList<Rule>();
+		RuntimeException problem = null;
+		for(FutureTask<List<Rule>> task : tasks){
+			try{
+				List<Rule> chunkMatches = await(task);
+				if(problem == null && matchingRules.size() < maxMatches){
+					matchingRules.addAll(chunkMatches.subList(0, Math.min(chunkMatches.size(), maxMatches - matchingRules.size())));
+				}
+			}catch(RuntimeException e){
+				//report the problem from the rule with the highest priority, like sequential evaluation would
+				if(problem == null && matchingRules.size() < maxMatches){
+					problem = e;
+				}
+			}
+		}
+		if(problem != null){
+			throw problem;
+		}
 		return matchingRules;
 	}
+
+	/** waits for the task to complete and returns its result, rethrowing anything it threw */
+	private static <T> T await(FutureTask<T> task) {
+		try{
+			return task.get();
+		}catch(ExecutionException e){
+			Throwable t = e.getCause();
+			if(t instanceof RuntimeException){
+				throw (RuntimeException) t;
+			}else if(t instanceof Error){
+				throw (Error) t;
+			}
+			throw new IllegalStateException(t);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for rules to be evaluated", e);
+		}
+	}
 	
+	private boolean evaluate(CompiledRule r, Object input, VariableResolverFactory vars, EvaluationListener[] listeners) {
+		vars.setTiltFlag(false); //in case the previous rule used "return"
+		if(listeners.length == 0){
+			return r.test(input, vars);
+		}
+		long start = System.nanoTime();
+		boolean matched;
+		try{
+			matched = r.test(input, vars);
+		}catch(RuntimeException e){
+			fireError(listeners, r.getRule(), input, e, System.nanoTime() - start);
+			throw e;
+		}
+		fireEvaluated(listeners, r.getRule(), input, matched, System.nanoTime() - start);
+		return matched;
+	}
+
+	/** @return true if the result of evaluating a rule means that the rule matched. */
+	protected static boolean isTrue(Object result) {
+		if(result instanceof Boolean){
+			return ((Boolean)result).booleanValue();
+		}
+		return String.valueOf(result).equals("true");
+	}
+
+	/**
+	 * Registers a listener which is notified of every rule which is compiled or evaluated from now on.
+	 * Listeners which need to be notified of the rules compiled when the engine is created, should be
+	 * passed to the {@link Builder} instead.
+	 */
+	public synchronized void addEvaluationListener(EvaluationListener listener) {
+		EvaluationListener[] ls = Arrays.copyOf(listeners, listeners.length + 1);
+		ls[listeners.length] = listener;
+		listeners = ls;
+	}
+
+	/** Deregisters a listener which was registered using {@link #addEvaluationListener(EvaluationListener)} or the {@link Builder}. */
+	public synchronized void removeEvaluationListener(EvaluationListener listener) {
+		List<EvaluationListener> ls = new ArrayList<EvaluationListener>(Arrays.asList(listeners));
+		ls.remove(listener);
+		listeners = ls.toArray(new EvaluationListener[ls.size()]);
+	}
+
+	/** @return the registered listeners. Must not be modified. Empty, if there are none. */
+	protected final EvaluationListener[] getEvaluationListeners() {
+		return listeners;
+	}
+
+	/** notifies all listeners that the given rule has been compiled */
+	protected final void fireCompiled(Rule rule) {
+		for(EvaluationListener l : listeners){
+			try{
+				l.onCompile(rule);
+			}catch(RuntimeException e){
+				log.log(Level.WARNING, "Evaluation listener failed", e);
+			}
+		}
+	}
+
+	/** notifies all listeners that the given rule failed to compile */
+	protected final void fireCompileFailure(Rule rule, String message) {
+		for(EvaluationListener l : listeners){
+			try{
+				l.onCompileFailure(rule, message);
+			}catch(RuntimeException e){
+				log.log(Level.WARNING, "Evaluation listener failed", e);
+			}
+		}
+	}
+
+	/** notifies the given listeners that the given rule was evaluated */
+	protected static void fireEvaluated(EvaluationListener[] listeners, Rule rule, Object input, boolean matched, long nanos) {
+		for(EvaluationListener l : listeners){
+			try{
+				if(matched){
+					l.onMatch(rule, input, nanos);
+				}else{
+					l.onNoMatch(rule, input, nanos);
+				}
+			}catch(RuntimeException e){
+				log.log(Level.WARNING, "Evaluation listener failed", e);
+			}
+		}
+	}
+
+	/** notifies the given listeners that the given rule failed to evaluate */
+	protected static void fireError(EvaluationListener[] listeners, Rule rule, Object input, Exception error, long nanos) {
+		for(EvaluationListener l : listeners){
+			try{
+				l.onError(rule, input, error, nanos);
+			}catch(RuntimeException e){
+				log.log(Level.WARNING, "Evaluation listener failed", e);
+			}
+		}
+	}
+
+	/** an immutable version of the compiled rules, see {@link Engine#ruleSet} */
+	private static final class RuleSet {
+		/** ordered by priority */
+		private final List<CompiledRule> rules;
+		/** maps namespace patterns to the positions of the rules in {@link #rules} which they select */
+		private final NamespaceIndex namespaceIndex;
+		/** the indexes which select the rules which can possibly match an input, applied one after the other. empty if there are none. */
+		private final RuleIndex[] indexes;
+		/** null, unless subrules are memoized */
+		private final MemoizedSubRules memoizedSubRules;
+		/** resolves the statics when evaluating rules, without them having to be copied */
+		private final StaticsVariableResolverFactory staticsFactory;
+		/** the compiled rules and subrules, by their expressions, so that the next version need not compile them again */
+		private final Map<String, CompiledRule> compiledRules;
+		private final Map<String, Serializable> compiledSubRules;
+		/** the namespaces containing rules which have not been compiled yet, see {@link Builder#withLazyCompilation(String...)} */
+		private final Set<String> pendingNamespaces;
+		/** whether the rules which a namespace pattern selects have all been compiled, by pattern */
+		private final Map<String, Boolean> compiledPatterns = new ConcurrentHashMap<String, Boolean>();
+
+		private RuleSet(List<CompiledRule> rules, NamespaceIndex namespaceIndex, RuleIndex[] indexes, MemoizedSubRules memoizedSubRules, 
+				StaticsVariableResolverFactory staticsFactory, Map<String, CompiledRule> compiledRules, Map<String, Serializable> compiledSubRules,
+				Set<String> pendingNamespaces) {
+			this.rules = rules;
+			this.namespaceIndex = namespaceIndex;
+			this.indexes = indexes;
+			this.memoizedSubRules = memoizedSubRules;
+			this.staticsFactory = staticsFactory;
+			this.compiledRules = compiledRules;
+			this.compiledSubRules = compiledSubRules;
+			this.pendingNamespaces = pendingNamespaces;
+		}
+
+		/** @return true if the rules which the pattern selects have all been compiled */
+		private boolean isCompiled(String nameSpacePattern) {
+			if(pendingNamespaces.isEmpty()){
+				return true;
+			}else if(nameSpacePattern == null){
+				return false;
+			}
+			Boolean compiled = compiledPatterns.get(nameSpacePattern);
+			if(compiled == null){
+				compiled = true;
+				for(int position : namespaceIndex.resolve(nameSpacePattern)){
+					if(pendingNamespaces.contains(rules.get(position).getRule().getNamespace())){
+						compiled = false;
+						break;
+					}
+				}
+				if(compiledPatterns.size() < NamespaceIndex.DEFAULT_MAX_CACHED_PATTERNS){
+					compiledPatterns.put(nameSpacePattern, compiled);
+				}
+			}
+			return compiled;
+		}
+
+		/** @return those candidates which the {@link #indexes} cannot rule out, given the input which the variables contain */
+		private int[] select(int[] candidates, VariableResolverFactory vars) {
+			for(RuleIndex index : indexes){
+				candidates = index.select(candidates, vars);
+			}
+			return candidates;
+		}
+	}
+
 	private static final class CompiledRule {
-		private Rule rule;
-		private Serializable compiled;
-		private CompiledRule(Rule rule) {
+		private final Rule rule;
+		private final Serializable compiled;
+		/** null, unless the rule could be compiled into bytecode */
+		private final RulePredicate predicate;
+		/**
+		 * @param compiled the rule, compiled by MVEL.  Always required, so that invalid rules are reported in the same way,
+		 * 			unless the rule has not been compiled yet, or failed to compile when its namespace was first used.
+		 * @param predicate optional. the rule, compiled into bytecode.
+		 */
+		private CompiledRule(Rule rule, Serializable compiled, RulePredicate predicate) {
 			this.rule = rule;
-			this.compiled = MVEL.compileExpression(rule.getExpression());
+			this.compiled = compiled;
+			this.predicate = predicate;
 		}
-		private Serializable getCompiled() {
-			return compiled;
+		private boolean test(Object input, VariableResolverFactory vars) {
+			if(predicate != null){
+				try{
+					return predicate.test(input);
+				}catch(NullPointerException e){
+					//a null property on the way to the compared one. let MVEL report it, as it does for other rules
+				}
+			}
+			return isTrue(MVEL.executeExpression(compiled, vars));
 		}
 		private Rule getRule() {
 			return rule;
 		}
 	}
 
+	/**
+	 * What the slices of a batch share, see {@link Engine#prepareBatch(String)}, so that every input of the batch is 
+	 * evaluated against the same version of the rules.  Subclasses extend it with their own version of the rules.
+	 */
+	protected static class Batch {
+		/** the positions of the rules which the namespace pattern selects */
+		protected final int[] candidates;
+		protected final EvaluationListener[] listeners;
+		protected Batch(int[] candidates, EvaluationListener[] listeners) {
+			this.candidates = candidates;
+			this.listeners = listeners;
+		}
+	}
+
+	private static final class RuleSetBatch extends Batch {
+		private final RuleSet ruleSet;
+		private RuleSetBatch(RuleSet ruleSet, int[] candidates, EvaluationListener[] listeners) {
+			super(candidates, listeners);
+			this.ruleSet = ruleSet;
+		}
+	}
+
+	/**
+	 * Builds an {@link Engine}, as an alternative to the constructors, which also provides access to the options 
+	 * which the constructors do not support.
+	 */
+	public static class Builder {
+
+		protected final Collection<Rule> rules;
+		protected String inputName = DEFAULT_INPUT_NAME;
+		protected boolean throwExceptionIfCompilationFails = true;
+		protected Map<String, Object> statics = new HashMap<String, Object>();
+		protected final List<EvaluationListener> evaluationListeners = new ArrayList<EvaluationListener>();
+		protected Executor evaluationExecutor;
+		protected int parallelism = 1;
+		protected int parallelThreshold = Integer.MAX_VALUE;
+		protected Class<?> bytecodeInputType;
+		protected Class<?> typedInputType;
+		protected Map<String, Class<?>> variableTypes;
+		protected boolean memoizeSubRules;
+		protected boolean indexEqualities;
+		protected boolean indexIntervals;
+		protected int compilationThreads = 1;
+		protected String[] warmNamespaces;
+		protected File snapshotFile;
+
+		public Builder(Collection<Rule> rules){
+			this.rules = rules;
+		}
+
+		/** See {@link Engine#Engine(Collection, String, boolean)} */
+		public Builder withInputName(String inputName){
+			this.inputName = inputName;
+			return this;
+		}
+
+		/** See {@link Engine#Engine(Collection, boolean)}. Defaults to true. */
+		public Builder withThrowExceptionIfCompilationFails(boolean throwExceptionIfCompilationFails){
+			this.throwExceptionIfCompilationFails = throwExceptionIfCompilationFails;
+			return this;
+		}
+
+		/** See {@link Engine#Engine(Collection, String, boolean, Map)} */
+		public Builder withStatics(Map<String, Object> statics){
+			this.statics = statics;
+			return this;
+		}
+
+		/** adds a listener which is also notified of the rules compiled while the engine is being built. See {@link EvaluationListener}. */
+		public Builder withEvaluationListener(EvaluationListener listener){
+			this.evaluationListeners.add(listener);
+			return this;
+		}
+
+		/**
+		 * Enables parallel evaluation.  If the namespace pattern selects at least <code>threshold</code> rules, 
+		 * they are split into <code>parallelism</code> chunks, and all but the first are evaluated on the given executor, 
+		 * while the calling thread evaluates the first.  The matching rules are still returned in order of priority.
+		 * Below the threshold, rules are evaluated sequentially, since handing work to other threads costs more than
+		 * it saves when there are few rules.<br>
+		 * <br>
+		 * Note that when evaluating in parallel, variables which a rule creates are only visible to the rules in the
+		 * same chunk, and listeners are called concurrently.  Not supported by the {@link JavascriptEngine}, 
+		 * which fails to build with a {@link CompileException}.
+		 * @param executor the executor which evaluates chunks, e.g. a fixed thread pool with one thread per core.
+		 * @param parallelism the number of chunks into which the rules are split, typically the number of cores.
+		 * @param threshold the minimum number of rules to evaluate in parallel, e.g. 1000.
+		 */
+		public Builder withParallelEvaluation(Executor executor, int parallelism, int threshold){
+			if(executor == null){
+				throw new IllegalArgumentException("executor must not be null");
+			}
+			if(parallelism < 1){
+				throw new IllegalArgumentException("parallelism must be at least 1");
+			}
+			this.evaluationExecutor = executor;
+			this.parallelism = parallelism;
+			this.parallelThreshold = Math.max(threshold, 1);
+			return this;
+		}
+
+		/**
+		 * Compiles rules into classes of their own, so that the JIT can inline reading the properties of the input and 
+		 * comparing them, rather than them being interpreted by MVEL.  This is only possible for rules which compare 
+		 * properties of the input, read using public getters, with constants or with each other, and combine such comparisons using 
+		 * logical operators, e.g. <code>input.age &lt; 26 &amp;&amp; input.account.type == "X"</code>.  
+		 * Other rules are still evaluated by MVEL.
+		 * Not supported by the {@link JavascriptEngine}, which fails to build with a {@link CompileException}.
+		 * @param inputType the public type of the inputs which will be passed to the engine.  Inputs of any other 
+		 * 			type will cause a {@link ClassCastException} when they are evaluated. 
+		 */
+		public Builder withBytecodeCompilation(Class<?> inputType){
+			this.bytecodeInputType = inputType;
+			return this;
+		}
+
+		/**
+		 * See {@link #withTypedCompilation(Class, Map)}.  The types of statics are those of their values.
+		 */
+		public Builder withTypedCompilation(Class<?> inputType){
+			return withTypedCompilation(inputType, new HashMap<String, Class<?>>());
+		}
+
+		/**
+		 * Compiles rules with strict typing, so that MVEL can resolve properties and methods when the engine is built, 
+		 * rather than every time a rule is evaluated.  Rules which refer to properties which do not exist, or which do 
+		 * not evaluate to a boolean, fail to compile, i.e. when the application is deployed, rather than when a request
+		 * needs to be handled.<br>
+		 * <br>
+		 * Every name which a rule uses must have a type.  Statics which are not in the given map have the type of their value,
+		 * or are imported as functions, if their value is a {@link Method}.  Variables passed to 
+		 * {@link Engine#getMatchingRules(String, Object, Map)} must be in the map.
+		 * Not supported by the {@link JavascriptEngine}, which fails to build with a {@link CompileException}.
+		 * @param inputType the type of the inputs which will be passed to the engine.
+		 * @param variableTypes the types of statics and variables, by their names.
+		 */
+		public Builder withTypedCompilation(Class<?> inputType, Map<String, Class<?>> variableTypes){
+			this.typedInputType = inputType;
+			this.variableTypes = variableTypes;
+			return this;
+		}
+
+		/**
+		 * Rather than copying the expression of a referenced rule into every rule which references it, evaluates
+		 * the referenced rule at most once per input, the first time one of the rules which reference it needs its 
+		 * result, and reuses that result for the other rules.  Useful for expensive subrules which lots of rules
+		 * reference, e.g. ones which iterate over collections.<br>
+		 * <br>
+		 * When combined with {@link #withTypedCompilation(Class, Map)}, referenced rules must evaluate to booleans.
+		 * When combined with {@link #withParallelEvaluation(Executor, int, int)}, each chunk remembers its own results.
+		 */
+		public Builder withMemoizedSubRules(){
+			this.memoizeSubRules = true;
+			return this;
+		}
+
+		/**
+		 * Indexes rules by the string constants which they compare properties of the input with, so that only the rules
+		 * which can possibly match an input are evaluated, rather than every rule in the namespace.  Useful for large
+		 * numbers of rules like <code>input.product == "PX" &amp;&amp; input.age &lt; 26</code>, which each only apply
+		 * to a few inputs.<br>
+		 * <br>
+		 * Only rules whose expression is a conjunction containing such a comparison are indexed.  The other rules
+		 * are always evaluated, as usual.  The properties are read from every input once, before rules are evaluated.
+		 * Rules which the index excludes are not evaluated at all, so they are not reported to {@link EvaluationListener}s,
+		 * and the index assumes that rules do not modify the input.
+		 * Not supported by the {@link JavascriptEngine}, which fails to build with a {@link CompileException}.
+		 */
+		public Builder withEqualityIndex(){
+			this.indexEqualities = true;
+			return this;
+		}
+
+		/**
+		 * Indexes rules by the ranges of values which they allow numeric properties of the input to have, so that only 
+		 * the rules whose ranges contain the actual values are evaluated, rather than every rule in the namespace.  
+		 * Useful for large numbers of rules like <code>input.age &gt; 25 &amp;&amp; input.age &lt;= 59</code>, 
+		 * which each only apply to a band of values.<br>
+		 * <br>
+		 * Only rules whose expression is a conjunction comparing a property with numeric constants are indexed.
+		 * Properties whose values are not integers or doubles, e.g. {@link java.math.BigDecimal}s, do not exclude any rules.
+		 * May be combined with {@link #withEqualityIndex()}, in which case rules are only evaluated if neither index
+		 * excludes them.  The same restrictions as for that index apply.
+		 * Not supported by the {@link JavascriptEngine}, which fails to build with a {@link CompileException}.
+		 */
+		public Builder withIntervalIndex(){
+			this.indexIntervals = true;
+			return this;
+		}
+
+		/**
+		 * Compiles rules on the given number of threads, rather than only on the thread which builds the engine, or 
+		 * which adds or replaces rules, e.g. to shorten the start up of applications with thousands of rules.  The threads
+		 * only exist while rules are being compiled.  The order of the rules, the notification of listeners and the 
+		 * reporting of failures are the same as when compiling on a single thread: if several rules fail to compile, 
+		 * the {@link CompileException} is about the first of them.<br>
+		 * <br>
+		 * A script engine may only be used by one thread at a time, so the {@link JavascriptEngine} still compiles rules 
+		 * into each pooled script engine sequentially.  Instead, when preloading the pool, it fills the pooled script 
+		 * engines in parallel, on at least one thread per core, up to the size of the pool.
+		 * @param threads the number of threads, typically the number of cores.  Defaults to 1.
+		 */
+		public Builder withParallelCompilation(int threads){
+			if(threads < 1){
+				throw new IllegalArgumentException("threads must be at least 1");
+			}
+			this.compilationThreads = threads;
+			return this;
+		}
+
+		/**
+		 * Rather than compiling all rules while the engine is being built, compiles the rules in a namespace the first
+		 * time that a namespace pattern passed to the engine selects them, e.g. for applications which contain the rules
+		 * of many tenants, but only ever use those of a few.  Each namespace is only compiled once, even if several threads 
+		 * use it for the first time at once.  Rules which were already compiled, e.g. before rules were added or replaced,
+		 * are not compiled again.<br>
+		 * <br>
+		 * Rules in namespaces which are only compiled when they are first used also only fail to compile then.  Such
+		 * failures are reported to listeners and logged as usual, and if exceptions are to be thrown, the evaluation
+		 * throws an {@link IllegalStateException} caused by the {@link CompileException}.  Referenced rules which are
+		 * memoized are always compiled while the engine is being built.  The {@link JavascriptEngine} compiles the
+		 * rules in a namespace into each of its pooled script engines the first time that script engine uses it.
+		 * @param warmNamespacePatterns optional. patterns of the namespaces whose rules are compiled while the engine is 
+		 * 			being built anyway, e.g. those which every instance of the application uses.
+		 */
+		public Builder withLazyCompilation(String... warmNamespacePatterns){
+			this.warmNamespaces = warmNamespacePatterns == null ? new String[0] : warmNamespacePatterns;
+			return this;
+		}
+
+		/**
+		 * Writes the rules to the given file once they have been checked, their subrules resolved and they have been
+		 * compiled, and when the engine is next built with exactly the same rules and settings, e.g. after the application
+		 * restarts, restores them from the file rather than doing all of that again.  The file contains a hash of the rules 
+		 * and settings, and is replaced whenever an engine is built with different ones.  If it cannot be read or written, 
+		 * e.g. because the expressions compiled with {@link #withTypedCompilation(Class, Map)} refer to methods, which 
+		 * cannot be serialized, the engine logs a warning and works without it.<br>
+		 * <br>
+		 * Only the rules given to the builder are saved, not those added or replaced later.  Restored rules are not reported 
+		 * to {@link EvaluationListener#onCompile(Rule)}.  Rules compiled with {@link #withBytecodeCompilation(Class)} are 
+		 * still compiled into bytecode when they are restored.  The {@link JavascriptEngine} only restores the resolved 
+		 * rules, since compiled scripts belong to the script engine which compiled them.<br>
+		 * <br>
+		 * The file must only be writable by the application, just like the directory containing it.  It contains serialized 
+		 * objects which the engine deserializes and executes, and the hash only identifies the rules, which are not 
+		 * secret, so it does not authenticate the file.  A file which has been replaced by someone else is deserialized 
+		 * with MVEL and commons-pool on the classpath, whose classes can be abused to run arbitrary code.
+		 * @param file the file, which is created if it does not exist.
+		 */
+		public Builder withSnapshot(File file){
+			this.snapshotFile = file;
+			return this;
+		}
+
+		public Engine build() throws DuplicateNameException, CompileException, ParseException {
+			return new Engine(this);
+		}
+	}
+
 }
 
 		
\ No newline at end of file
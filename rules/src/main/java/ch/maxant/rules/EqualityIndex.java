@@ -0,0 +1,159 @@
+package ch.maxant.rules;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.mvel2.MVEL;
+import org.mvel2.integration.VariableResolverFactory;
+
+/**
+ * Indexes rules by the string constants which they compare properties of the input with.
+ * See {@link Engine.Builder#withEqualityIndex()}.<br>
+ * <br>
+ * A rule is indexed if one of the terms of its conjunction is a comparison like <code>input.product == "PX"</code>,
+ * or <code>input.product == 'PX'</code>, since MVEL treats both kinds of quotes alike.
+ * For each such property, the index maps the constants to the positions of the rules which compare the property
+ * with them.  Before evaluating, the property is read from the input once, and only the rules which compare it
+ * with its actual value remain candidates.  Rules which the index cannot analyse are always candidates.
+ */
+final class EqualityIndex extends RuleIndex {
+
+	/** the properties which rules compare with constants */
+	private final Attribute[] attributes;
+
+	/** the positions of the rules which are not indexed, in ascending order */
+	private final int[] unindexed;
+
+	private EqualityIndex(Attribute[] attributes, int[] unindexed, int numRules) {
+		super(numRules);
+		this.attributes = attributes;
+		this.unindexed = unindexed;
+	}
+
+	/**
+	 * @param expressions the expression of each rule, in the order in which the engine evaluates the rules.
+	 * @param inputName the name which the rules use for the input
+	 * @return an index, or null if none of the rules could be indexed
+	 */
+	static EqualityIndex build(List<String> expressions, String inputName) {
+		String path = pathPattern(inputName);
+		//including the quotes, which are removed when reading the constant
+		String literal = "(\"[^\"\\\\]*\"|'[^'\\\\]*')";
+		Pattern comparison = Pattern.compile(path + "\\s*==\\s*" + literal + "|" + literal + "\\s*==\\s*" + path);
+
+		List<Map<String, String>> constraintsOfRules = new ArrayList<Map<String, String>>(expressions.size());
+		for(String expression : expressions){
+			constraintsOfRules.add(constraints(expression, comparison));
+		}
+		String[] paths = choosePaths(constraintsOfRules);
+
+		Map<String, Map<String, List<Integer>>> positionsByPath = new LinkedHashMap<String, Map<String, List<Integer>>>();
+		List<Integer> unindexed = new ArrayList<Integer>();
+		for(int i = 0; i < paths.length; i++){
+			if(paths[i] == null){
+				unindexed.add(i);
+				continue;
+			}
+			Map<String, List<Integer>> positionsByValue = positionsByPath.get(paths[i]);
+			if(positionsByValue == null){
+				positionsByValue = new HashMap<String, List<Integer>>();
+				positionsByPath.put(paths[i], positionsByValue);
+			}
+			String value = constraintsOfRules.get(i).get(paths[i]);
+			List<Integer> positions = positionsByValue.get(value);
+			if(positions == null){
+				positions = new ArrayList<Integer>();
+				positionsByValue.put(value, positions);
+			}
+			positions.add(i);
+		}
+		if(positionsByPath.isEmpty()){
+			return null;
+		}
+
+		Attribute[] attributes = new Attribute[positionsByPath.size()];
+		int a = 0;
+		for(Map.Entry<String, Map<String, List<Integer>>> e : positionsByPath.entrySet()){
+			attributes[a++] = new Attribute(e.getKey(), e.getValue());
+		}
+		return new EqualityIndex(attributes, toArray(unindexed), expressions.size());
+	}
+
+	@Override
+	int[] select(int[] candidates, VariableResolverFactory vars) {
+		int[][] selected = new int[attributes.length + 1][];
+		selected[0] = unindexed;
+		for(int a = 0; a < attributes.length; a++){
+			selected[a + 1] = attributes[a].select(vars);
+		}
+		return restrict(selected, candidates);
+	}
+
+	/**
+	 * @return the properties which the expression requires to be equal to constants, mapped to those constants.
+	 * null if the rule cannot be indexed.
+	 */
+	private static Map<String, String> constraints(String expression, Pattern comparison) {
+		List<String> terms = terms(expression);
+		if(terms == null){
+			return null;
+		}
+		Map<String, String> constraints = new LinkedHashMap<String, String>();
+		for(String term : terms){
+			Matcher m = comparison.matcher(term);
+			if(m.matches()){
+				String path = m.group(1) != null ? m.group(1) : m.group(4);
+				String literal = m.group(1) != null ? m.group(2) : m.group(3);
+				String value = literal.substring(1, literal.length() - 1);
+				if(!constraints.containsKey(path)){
+					//if a later term compares the same property with a different constant, the rule can never match.
+					//simply leave it to evaluation to find that out.
+					constraints.put(path, value);
+				}
+			}
+		}
+		return constraints;
+	}
+
+	/** a property of the input, and the rules which compare it with each constant */
+	private static final class Attribute {
+		private final Serializable path;
+		private final Map<String, int[]> positionsByValue;
+		/** the positions of all rules indexed by this property, in ascending order */
+		private final int[] all;
+
+		private Attribute(String path, Map<String, List<Integer>> positionsByValue) {
+			this.path = MVEL.compileExpression(path);
+			this.positionsByValue = new HashMap<String, int[]>();
+			List<Integer> all = new ArrayList<Integer>();
+			for(Map.Entry<String, List<Integer>> e : positionsByValue.entrySet()){
+				this.positionsByValue.put(e.getKey(), toArray(e.getValue()));
+				all.addAll(e.getValue());
+			}
+			this.all = toArray(all);
+			Arrays.sort(this.all);
+		}
+
+		/** @return the positions of the rules which can possibly match, given the actual value of the property */
+		private int[] select(VariableResolverFactory vars) {
+			Object value = read(path, vars);
+			if(value == null){
+				//a comparison with a string constant is always false
+				return NONE;
+			}
+			if(!(value instanceof String)){
+				//e.g. unreadable, or MVEL might coerce the constant to the type of the property, so compare as usual
+				return all;
+			}
+			int[] positions = positionsByValue.get(value);
+			return positions == null ? NONE : positions;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package ch.maxant.rules;
+
+/**
+ * Receives structured callbacks while an {@link Engine} compiles and evaluates rules, e.g. for tracing, 
+ * auditing or collecting metrics.  Register listeners using {@link Engine#addEvaluationListener(EvaluationListener)} 
+ * or the builder.  If no listener is registered, the engine does no work on their behalf at all, so 
+ * there is no need to worry about the cost of building messages or of logging in the evaluation loop.<br>
+ * <br>
+ * Listeners are called on the thread which compiles or evaluates the rule, so they must be thread safe 
+ * and should return quickly.  Exceptions thrown by listeners are logged and otherwise ignored.<br>
+ * <br>
+ * See also {@link AbstractEvaluationListener}, which is typically what applications extend, and 
+ * {@link LoggingEvaluationListener}, which logs what the engine does.
+ */
+public interface EvaluationListener {
+
+	/**
+	 * Called after a rule has been compiled successfully.  Note that the {@link JavascriptEngine} compiles
+	 * its rules once per pooled script engine.
+	 * @param rule the rule, with any subrules already replaced
+	 */
+	void onCompile(Rule rule);
+
+	/**
+	 * Called when a rule cannot be compiled, before the engine decides whether to throw a {@link CompileException}.
+	 * @param rule the rule, with any subrules already replaced
+	 * @param message the reason given by the expression language
+	 */
+	void onCompileFailure(Rule rule, String message);
+
+	/**
+	 * Called when a rule evaluated to true.
+	 * @param rule the rule
+	 * @param input the input which the rule was evaluated against
+	 * @param nanos how long the evaluation took, in nanoseconds
+	 */
+	void onMatch(Rule rule, Object input, long nanos);
+
+	/**
+	 * Called when a rule did not evaluate to true.
+	 * @param rule the rule
+	 * @param input the input which the rule was evaluated against
+	 * @param nanos how long the evaluation took, in nanoseconds
+	 */
+	void onNoMatch(Rule rule, Object input, long nanos);
+
+	/**
+	 * Called when the evaluation of a rule failed.  The engine rethrows the exception afterwards.
+	 * @param rule the rule
+	 * @param input the input which the rule was evaluated against
+	 * @param e the problem
+	 * @param nanos how long the evaluation took before it failed, in nanoseconds
+	 */
+	void onError(Rule rule, Object input, Exception e, long nanos);
+
+}
@@ -0,0 +1,136 @@
+package ch.maxant.rules;
+
+/**
+ * How often a rule, or the rules of a namespace, were evaluated, how often they matched or failed, and how long they
+ * took, as recorded by a {@link MetricsEvaluationListener}.<br>
+ * <br>
+ * The latencies are kept in a histogram whose buckets double in width, so percentiles are only known to within a
+ * factor of two, which is enough to find the rules which dominate the latency.  Bucket 0 counts evaluations which took
+ * less than {@value #FIRST_BUCKET_NANOS}ns, bucket <code>i</code> those which took less than
+ * {@link #bucketUpperBoundNanos(int)}, but at least as long as the bucket before, and the last bucket all of the rest.<br>
+ * <br>
+ * Immutable.
+ */
+public final class EvaluationMetrics {
+
+	/** the number of buckets in the histogram */
+	public static final int BUCKETS = 21;
+
+	/** the upper bound of the first bucket */
+	public static final long FIRST_BUCKET_NANOS = 1024;
+
+	private final String name;
+	private final long matches;
+	private final long errors;
+	private final long totalNanos;
+	private final long[] histogram;
+	private final long evaluations;
+
+	EvaluationMetrics(String name, long matches, long errors, long totalNanos, long[] histogram) {
+		this.name = name;
+		this.matches = matches;
+		this.errors = errors;
+		this.totalNanos = totalNanos;
+		this.histogram = histogram;
+		long evaluations = 0;
+		for(long count : histogram){
+			evaluations += count;
+		}
+		this.evaluations = evaluations;
+	}
+
+	/** @return the bucket which counts evaluations which took the given time */
+	static int bucket(long nanos) {
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, nanos) / FIRST_BUCKET_NANOS));
+	}
+
+	/** @return the time which evaluations counted in the given bucket took less than. {@link Long#MAX_VALUE} for the last bucket. */
+	public static long bucketUpperBoundNanos(int bucket) {
+		return bucket < BUCKETS - 1 ? FIRST_BUCKET_NANOS << bucket : Long.MAX_VALUE;
+	}
+
+	/** @return the fully qualified name of the rule, or the namespace */
+	public String getName() {
+		return name;
+	}
+
+	/** @return the number of times that the rule or rules were evaluated, including those when evaluating failed */
+	public long getEvaluations() {
+		return evaluations;
+	}
+
+	public long getMatches() {
+		return matches;
+	}
+
+	/** @return the number of times that evaluating failed, e.g. because the input did not have a property */
+	public long getErrors() {
+		return errors;
+	}
+
+	/** @return the time which all of the evaluations took together */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	/** @return the mean time which an evaluation took, or 0 if there were none */
+	public double getMeanNanos() {
+		return evaluations == 0 ? 0.0 : (double)totalNanos / evaluations;
+	}
+
+	/** @return the proportion of the evaluations which matched, between 0 and 1, or 0 if there were none */
+	public double getMatchRate() {
+		return evaluations == 0 ? 0.0 : (double)matches / evaluations;
+	}
+
+	/** @return the number of evaluations counted in each bucket, see {@link #bucketUpperBoundNanos(int)} */
+	public long[] getHistogram() {
+		return histogram.clone();
+	}
+
+	/** @return see {@link #getPercentileNanos(double)} */
+	public long getMedianNanos() {
+		return getPercentileNanos(0.5);
+	}
+
+	/** @return see {@link #getPercentileNanos(double)} */
+	public long getP99Nanos() {
+		return getPercentileNanos(0.99);
+	}
+
+	/**
+	 * @param percentile between 0 and 1, e.g. 0.99
+	 * @return the upper bound of the bucket which contains the given percentile of the evaluations, i.e. the time which
+	 * at least that proportion of the evaluations took less than.  The lower bound of the last bucket, if the
+	 * percentile is in that one.  0 if there were no evaluations.
+	 */
+	public long getPercentileNanos(double percentile) {
+		if(evaluations == 0){
+			return 0;
+		}
+		long rank = (long)Math.ceil(percentile * evaluations);
+		long count = 0;
+		for(int b = 0; b < BUCKETS - 1; b++){
+			count += histogram[b];
+			if(count >= rank){
+				return bucketUpperBoundNanos(b);
+			}
+		}
+		return bucketUpperBoundNanos(BUCKETS - 2);
+	}
+
+	/** @return the sum of these metrics and the given ones, named after the given name */
+	EvaluationMetrics plus(String name, EvaluationMetrics other) {
+		long[] histogram = new long[BUCKETS];
+		for(int b = 0; b < BUCKETS; b++){
+			histogram[b] = this.histogram[b] + other.histogram[b];
+		}
+		return new EvaluationMetrics(name, matches + other.matches, errors + other.errors, totalNanos + other.totalNanos, histogram);
+	}
+
+	@Override
+	public String toString() {
+		return name + " [evaluations=" + evaluations + ", matches=" + matches + ", errors=" + errors
+				+ ", meanNanos=" + (long)getMeanNanos() + ", medianNanos<" + getMedianNanos() + ", p99Nanos<" + getP99Nanos() + "]";
+	}
+}
@@ -0,0 +1,81 @@
+package ch.maxant.rules;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import org.graalvm.polyglot.Context;
+
+import com.oracle.truffle.js.scriptengine.GraalJSScriptEngine;
+
+/**
+ * Creates GraalJS script engines which all share one polyglot engine, so that the sources which they parse, and the
+ * code which is optimised for them, are cached once for all of them, rather than once per script engine.  Each script
+ * engine has its own context, i.e. its own globals, and may only be used by one thread at a time.
+ * See {@link JavascriptEngine.Builder#withGraalJs()}.<br>
+ * <br>
+ * Only loaded when that option is used, so that GraalJS remains an optional dependency.
+ */
+final class GraalJsScriptEngines {
+
+	/** the name of the engines which GraalJS's own script engine factory creates */
+	static final String ENGINE_NAME = "Graal.js";
+
+	private final org.graalvm.polyglot.Engine engine;
+
+	/** the options which are given to the context of each script engine */
+	private final Map<String, String> contextOptions;
+
+	/**
+	 * @param options options by name, see {@link JavascriptEngine.Builder#withScriptEngineOptions(String...)}.  Those
+	 * 			starting with <code>engine.</code> apply to the shared polyglot engine, the rest to each context.
+	 * @throws IllegalArgumentException if an option is invalid
+	 */
+	GraalJsScriptEngines(Map<String, String> options) {
+		org.graalvm.polyglot.Engine.Builder builder = org.graalvm.polyglot.Engine.newBuilder()
+				//on JDKs without the Graal compiler, the rules are interpreted, which works, just more slowly
+				.option("engine.WarnInterpreterOnly", "false");
+		contextOptions = new LinkedHashMap<String, String>();
+		contextOptions.put("js.nashorn-compat", "true");
+		for(Map.Entry<String, String> option : options.entrySet()){
+			if(option.getKey().startsWith("engine.")){
+				builder.option(option.getKey(), option.getValue());
+			}else{
+				contextOptions.put(option.getKey(), option.getValue());
+			}
+		}
+		engine = builder.build();
+		warmUp();
+	}
+
+	/**
+	 * Creates one script engine up front, so that invalid context options are reported now, rather than when the pool
+	 * first creates a script engine.  It also calls Java once, since GraalJS initialises the caches which the shared
+	 * polyglot engine uses to call Java lazily, without synchronisation, so that contexts which first call Java
+	 * concurrently could otherwise end up using different caches.
+	 */
+	private void warmUp() {
+		ScriptEngine scriptEngine = create();
+		try {
+			scriptEngine.eval("Java.type('java.lang.String').valueOf(0)");
+		} catch (ScriptException e) {
+			throw new IllegalStateException(e); //should never happen
+		} finally {
+			close(scriptEngine);
+		}
+	}
+
+	/** @return a new script engine, in which rules can access Java objects just like they can with Nashorn */
+	ScriptEngine create() {
+		return GraalJSScriptEngine.create(engine, Context.newBuilder("js")
+				.allowAllAccess(true)
+				.options(contextOptions));
+	}
+
+	/** releases the context of a script engine which was created by {@link #create()} */
+	static void close(ScriptEngine scriptEngine) {
+		((GraalJSScriptEngine)scriptEngine).close();
+	}
+}
@@ -0,0 +1,175 @@
+package ch.maxant.rules;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.mvel2.UnresolveablePropertyException;
+import org.mvel2.integration.VariableResolver;
+import org.mvel2.integration.VariableResolverFactory;
+import org.mvel2.integration.impl.BaseVariableResolverFactory;
+import org.mvel2.integration.impl.SimpleSTValueResolver;
+
+/**
+ * The variables used during a single call to evaluate MVEL rules. Holds the input,
+ * optionally a map of further variables belonging to just that call, and any variables
+ * which the rules themselves create.  Everything else is resolved by the next factory,
+ * which holds the statics and is shared by all calls (see {@link StaticsVariableResolverFactory}).
+ * So unlike a map containing the statics and the input, nothing needs to be copied per call.<br>
+ * <br>
+ * Variables created or assigned by rules always end up in this factory, so they can never
+ * modify the statics or the map of variables passed in by the caller.<br>
+ * <br>
+ * If subrules are memoized, this factory also holds their results, so that each is evaluated
+ * at most once per evaluation (see {@link MemoizedSubRules}).<br>
+ * <br>
+ * Not thread safe - create one per call.
+ */
+final class InputVariableResolverFactory extends BaseVariableResolverFactory {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String inputName;
+	private final VariableResolver input;
+	private final Map<String, Object> variables;
+	private final MemoizedSubRules subRules;
+
+	/**
+	 * @param inputName the name of the input in rules
+	 * @param input the input
+	 * @param variables optional. further variables which rules may use. not modified and not copied.
+	 * @param statics the factory containing the statics
+	 * @param subRules optional. the subrules which references are resolved to, if they are memoized.
+	 */
+	InputVariableResolverFactory(String inputName, Object input, Map<String, Object> variables, VariableResolverFactory statics, MemoizedSubRules subRules) {
+		this.inputName = inputName;
+		this.input = new SimpleSTValueResolver(input, null);
+		this.variables = variables;
+		this.nextFactory = statics;
+		this.subRules = subRules;
+	}
+
+	@Override
+	public VariableResolver createVariable(String name, Object value) {
+		VariableResolver vr = variableResolvers.get(name);
+		if(vr != null){
+			vr.setValue(value);
+		}else{
+			variableResolvers.put(name, vr = new SimpleSTValueResolver(value, null, true));
+		}
+		return vr;
+	}
+
+	@Override
+	public VariableResolver createVariable(String name, Object value, Class<?> type) {
+		VariableResolver vr = variableResolvers.get(name);
+		if(vr != null && vr.getType() != null){
+			throw new RuntimeException("variable already defined within scope: " + vr.getType() + " " + name);
+		}
+		variableResolvers.put(name, vr = new SimpleSTValueResolver(value, type, true));
+		return vr;
+	}
+
+	@Override
+	public VariableResolver getVariableResolver(String name) {
+		VariableResolver vr = variableResolvers.get(name);
+		if(vr != null){
+			return vr;
+		}
+		if(inputName.equals(name)){
+			return input;
+		}
+		int slot = subRules == null ? -1 : subRules.slot(name);
+		if(slot > -1){
+			//cached like a local, so the subrule is evaluated at most once
+			variableResolvers.put(name, vr = new SubRuleResolver(name, slot));
+			return vr;
+		}
+		if(variables != null && variables.containsKey(name)){
+			//a resolver of our own, so that the callers map is never written to
+			variableResolvers.put(name, vr = new SimpleSTValueResolver(variables.get(name), null));
+			return vr;
+		}
+		if(nextFactory != null){
+			return nextFactory.getVariableResolver(name);
+		}
+		throw new UnresolveablePropertyException("unable to resolve variable '" + name + "'");
+	}
+
+	@Override
+	public boolean isTarget(String name) {
+		return variableResolvers.containsKey(name)
+				|| inputName.equals(name)
+				|| (subRules != null && subRules.slot(name) > -1)
+				|| (variables != null && variables.containsKey(name));
+	}
+
+	@Override
+	public boolean isResolveable(String name) {
+		return isTarget(name) || (nextFactory != null && nextFactory.isResolveable(name));
+	}
+
+	@Override
+	public Set<String> getKnownVariables() {
+		Set<String> known = super.getKnownVariables();
+		known.add(inputName);
+		if(variables != null){
+			known.addAll(variables.keySet());
+		}
+		return known;
+	}
+
+	/** evaluates a subrule the first time its value is read, and remembers the result */
+	private final class SubRuleResolver implements VariableResolver {
+		private static final long serialVersionUID = 1L;
+		private final String name;
+		private final int slot;
+		private boolean evaluating;
+		private boolean evaluated;
+		private Object value;
+		private SubRuleResolver(String name, int slot) {
+			this.name = name;
+			this.slot = slot;
+		}
+		@Override
+		public String getName() {
+			return name;
+		}
+		@SuppressWarnings("rawtypes")
+		@Override
+		public Class getType() {
+			return null;
+		}
+		@SuppressWarnings("rawtypes")
+		@Override
+		public void setStaticType(Class type) {
+			//noop
+		}
+		@Override
+		public int getFlags() {
+			return 0;
+		}
+		@Override
+		public Object getValue() {
+			if(!evaluated){
+				if(evaluating){
+					throw new IllegalStateException("The subrule " + subRules.getRule(slot).getFullyQualifiedName() + " references itself");
+				}
+				evaluating = true;
+				//a subrule which uses "return" must not stop the rule which references it
+				boolean tiltFlag = tiltFlag();
+				try{
+					value = subRules.evaluate(slot, InputVariableResolverFactory.this);
+				}finally{
+					setTiltFlag(tiltFlag);
+					evaluating = false;
+				}
+				evaluated = true;
+			}
+			return value;
+		}
+		@Override
+		public void setValue(Object value) {
+			throw new UnsupportedOperationException("subrules are read-only: " + subRules.getRule(slot).getFullyQualifiedName());
+		}
+	}
+}
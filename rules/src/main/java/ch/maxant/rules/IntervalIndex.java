@@ -0,0 +1,310 @@
+package ch.maxant.rules;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.mvel2.MVEL;
+import org.mvel2.integration.VariableResolverFactory;
+
+/**
+ * Indexes rules by the ranges of values which they allow numeric properties of the input to have.
+ * See {@link Engine.Builder#withIntervalIndex()}.<br>
+ * <br>
+ * A rule is indexed if terms of its conjunction compare a property with numeric constants, like
+ * <code>input.age &gt; 25 &amp;&amp; input.age &lt;= 59</code>, which together give the interval in which the
+ * property must lie for the rule to possibly match.  For each such property, the index sorts the rules by the
+ * lower and by the upper bounds of their intervals.  Before evaluating, the property is read from the input once,
+ * and a binary search in each of the two orders finds the rules whose lower bound is not above the value, and those
+ * whose upper bound is not below it.  Only the smaller of those two groups then needs to be checked, to find the rules
+ * whose intervals contain the value.  Rules which the index cannot analyse are always candidates.
+ */
+final class IntervalIndex extends RuleIndex {
+
+	/** the largest magnitude up to which all integers can be represented exactly as doubles */
+	private static final double EXACT = 9007199254740992.0;
+
+	/** the properties which rules compare with constants */
+	private final Attribute[] attributes;
+
+	/** the positions of the rules which are not indexed, in ascending order */
+	private final int[] unindexed;
+
+	private IntervalIndex(Attribute[] attributes, int[] unindexed, int numRules) {
+		super(numRules);
+		this.attributes = attributes;
+		this.unindexed = unindexed;
+	}
+
+	/**
+	 * @param expressions the expression of each rule, in the order in which the engine evaluates the rules.
+	 * @param inputName the name which the rules use for the input
+	 * @return an index, or null if none of the rules could be indexed
+	 */
+	static IntervalIndex build(List<String> expressions, String inputName) {
+		String path = pathPattern(inputName);
+		String operator = "(<=|>=|<|>|==)";
+		//MVEL reads integers with a leading zero as octal, so comparisons with them are not indexed
+		String number = "(-?(?:0|[1-9]\\d*)(?:\\.\\d+)?)";
+		Pattern comparison = Pattern.compile(path + "\\s*" + operator + "\\s*" + number + "|" + number + "\\s*" + operator + "\\s*" + path);
+
+		List<Map<String, Interval>> constraintsOfRules = new ArrayList<Map<String, Interval>>(expressions.size());
+		for(String expression : expressions){
+			constraintsOfRules.add(constraints(expression, comparison));
+		}
+		String[] paths = choosePaths(constraintsOfRules);
+
+		Map<String, List<Integer>> positionsByPath = new LinkedHashMap<String, List<Integer>>();
+		List<Integer> unindexed = new ArrayList<Integer>();
+		for(int i = 0; i < paths.length; i++){
+			if(paths[i] == null){
+				unindexed.add(i);
+				continue;
+			}
+			List<Integer> positions = positionsByPath.get(paths[i]);
+			if(positions == null){
+				positions = new ArrayList<Integer>();
+				positionsByPath.put(paths[i], positions);
+			}
+			positions.add(i);
+		}
+		if(positionsByPath.isEmpty()){
+			return null;
+		}
+
+		Attribute[] attributes = new Attribute[positionsByPath.size()];
+		int a = 0;
+		for(Map.Entry<String, List<Integer>> e : positionsByPath.entrySet()){
+			List<Integer> positions = e.getValue();
+			Interval[] intervals = new Interval[positions.size()];
+			for(int j = 0; j < intervals.length; j++){
+				intervals[j] = constraintsOfRules.get(positions.get(j)).get(e.getKey());
+			}
+			attributes[a++] = new Attribute(e.getKey(), toArray(positions), intervals);
+		}
+		return new IntervalIndex(attributes, toArray(unindexed), expressions.size());
+	}
+
+	@Override
+	int[] select(int[] candidates, VariableResolverFactory vars) {
+		int[][] selected = new int[attributes.length + 1][];
+		selected[0] = unindexed;
+		for(int a = 0; a < attributes.length; a++){
+			selected[a + 1] = attributes[a].select(vars);
+		}
+		return restrict(selected, candidates);
+	}
+
+	/**
+	 * @return the intervals in which the expression requires properties to lie, by the paths of the properties.
+	 * null if the rule cannot be indexed.
+	 */
+	private static Map<String, Interval> constraints(String expression, Pattern comparison) {
+		List<String> terms = terms(expression);
+		if(terms == null){
+			return null;
+		}
+		Map<String, Interval> constraints = new LinkedHashMap<String, Interval>();
+		for(String term : terms){
+			Matcher m = comparison.matcher(term);
+			if(!m.matches()){
+				continue;
+			}
+			boolean propertyFirst = m.group(1) != null;
+			String path = propertyFirst ? m.group(1) : m.group(6);
+			String operator = propertyFirst ? m.group(2) : flip(m.group(5));
+			double constant = Double.parseDouble(propertyFirst ? m.group(3) : m.group(4));
+			if(Math.abs(constant) > EXACT){
+				continue;
+			}
+			Interval interval = constraints.get(path);
+			if(interval == null){
+				interval = new Interval();
+				constraints.put(path, interval);
+			}
+			interval.narrow(operator, constant);
+		}
+		return constraints;
+	}
+
+	/** @return the operator which gives the same result when the operands are swapped */
+	private static String flip(String operator) {
+		if(operator.startsWith("<")){
+			return ">" + operator.substring(1);
+		}else if(operator.startsWith(">")){
+			return "<" + operator.substring(1);
+		}
+		return operator;
+	}
+
+	/**
+	 * @return the value as a double, if it is a number which MVEL compares with numeric constants exactly like a
+	 * double would be compared, otherwise null.
+	 */
+	private static Double toDouble(Object value) {
+		if(value instanceof Integer || value instanceof Short || value instanceof Byte){
+			return ((Number)value).doubleValue();
+		}
+		if(value instanceof Long && Math.abs((Long)value) <= (long)EXACT){
+			return ((Long)value).doubleValue();
+		}
+		if(value instanceof Double && !((Double)value).isNaN()){
+			return (Double)value;
+		}
+		return null;
+	}
+
+	/** the values which a term or a conjunction of terms allows a property to have */
+	private static final class Interval {
+		private double lower = Double.NEGATIVE_INFINITY;
+		private boolean lowerInclusive = true;
+		private double upper = Double.POSITIVE_INFINITY;
+		private boolean upperInclusive = true;
+
+		/** narrows the interval to those values which also satisfy <code>value operator constant</code> */
+		private void narrow(String operator, double constant) {
+			if(operator.equals(">")){
+				if(constant >= lower){
+					lower = constant;
+					lowerInclusive = false;
+				}
+			}else if(operator.equals(">=")){
+				if(constant > lower){
+					lower = constant;
+					lowerInclusive = true;
+				}
+			}else if(operator.equals("<")){
+				if(constant <= upper){
+					upper = constant;
+					upperInclusive = false;
+				}
+			}else if(operator.equals("<=")){
+				if(constant < upper){
+					upper = constant;
+					upperInclusive = true;
+				}
+			}else{
+				narrow(">=", constant);
+				narrow("<=", constant);
+			}
+		}
+
+		private boolean contains(double value) {
+			return (value > lower || (lowerInclusive && value == lower))
+				&& (value < upper || (upperInclusive && value == upper));
+		}
+	}
+
+	/** a property of the input, and the rules which compare it with constants */
+	private static final class Attribute {
+		private final Serializable path;
+		/** the positions of the rules indexed by this property, in ascending order */
+		private final int[] positions;
+		/** the intervals of the rules, at the same indexes as their positions */
+		private final Interval[] intervals;
+		/** indexes into {@link #positions}, ordered by the lower bounds of the intervals */
+		private final int[] byLower;
+		private final double[] lowers;
+		/** indexes into {@link #positions}, ordered by the upper bounds of the intervals */
+		private final int[] byUpper;
+		private final double[] uppers;
+
+		private Attribute(String path, int[] positions, final Interval[] intervals) {
+			this.path = MVEL.compileExpression(path);
+			this.positions = positions;
+			this.intervals = intervals;
+
+			Integer[] order = new Integer[positions.length];
+			for(int i = 0; i < order.length; i++){
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer o1, Integer o2) {
+					return Double.compare(intervals[o1].lower, intervals[o2].lower);
+				}
+			});
+			byLower = new int[order.length];
+			lowers = new double[order.length];
+			for(int i = 0; i < order.length; i++){
+				byLower[i] = order[i];
+				lowers[i] = intervals[order[i]].lower;
+			}
+
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer o1, Integer o2) {
+					return Double.compare(intervals[o1].upper, intervals[o2].upper);
+				}
+			});
+			byUpper = new int[order.length];
+			uppers = new double[order.length];
+			for(int i = 0; i < order.length; i++){
+				byUpper[i] = order[i];
+				uppers[i] = intervals[order[i]].upper;
+			}
+		}
+
+		/** @return the positions of the rules which can possibly match, given the actual value of the property */
+		private int[] select(VariableResolverFactory vars) {
+			Double v = toDouble(read(path, vars));
+			if(v == null){
+				//e.g. unreadable, null, or a type which MVEL coerces differently, so compare as usual
+				return positions;
+			}
+			double value = v;
+
+			//the rules in byLower before this index have a lower bound which is not above the value
+			int lowerEnd = firstIndexAbove(lowers, value, false);
+			//the rules in byUpper from this index onwards have an upper bound which is not below the value
+			int upperStart = firstIndexAbove(uppers, value, true);
+
+			int[] candidates;
+			int from, to;
+			if(lowerEnd <= uppers.length - upperStart){
+				candidates = byLower;
+				from = 0;
+				to = lowerEnd;
+			}else{
+				candidates = byUpper;
+				from = upperStart;
+				to = uppers.length;
+			}
+			int[] selected = new int[to - from];
+			int n = 0;
+			for(int i = from; i < to; i++){
+				int k = candidates[i];
+				if(intervals[k].contains(value)){
+					selected[n++] = positions[k];
+				}
+			}
+			selected = n == selected.length ? selected : Arrays.copyOf(selected, n);
+			Arrays.sort(selected);
+			return selected;
+		}
+
+		/**
+		 * @return the first index in the sorted bounds at which the bound is above the value, or also equal to it if
+		 * inclusive is true.  The length of the array, if there is none.
+		 */
+		private static int firstIndexAbove(double[] bounds, double value, boolean inclusive) {
+			int low = 0;
+			int high = bounds.length;
+			while(low < high){
+				int mid = (low + high) >>> 1;
+				if(bounds[mid] > value || (inclusive && bounds[mid] == value)){
+					high = mid;
+				}else{
+					low = mid + 1;
+				}
+			}
+			return low;
+		}
+	}
+}
@@ -8,14 +8,15 @@ import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 
 import javax.script.*;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
 /**
  * A Javascript based Subclass of {@link Engine}. <br>
@@ -30,10 +31,26 @@ public class JavascriptEngine extends Engine {
 
 	private static final ScriptEngineManager ENGINE_MANAGER = new ScriptEngineManager();
 	
+	/** 
+	 * creates the script engines, unless GraalJS was chosen, see {@link Builder#withGraalJs()}.  null if the platform 
+	 * has no JavaScript engine, e.g. because Nashorn was removed from newer JDKs.
+	 */
+	private static final ScriptEngineFactory DEFAULT_FACTORY;
+	
 	static {
-		ScriptEngine engine = ENGINE_MANAGER.getEngineByMimeType(MIME_TYPE);
-		ScriptEngineFactory factory = engine.getFactory();
-		if(log.isLoggable(Level.INFO)){
+		ScriptEngineFactory factory = null;
+		for(ScriptEngineFactory f : ENGINE_MANAGER.getEngineFactories()){
+			//the engines created by GraalJS's own factory cannot access Java objects.  if it is on the classpath, it also 
+			//removes the MIME types from Nashorn's factory, so look for Nashorn by name, and otherwise for any other engine.
+			if(f.getNames().contains("nashorn") 
+					|| (factory == null && f.getMimeTypes().contains(MIME_TYPE) && !f.getEngineName().equals(GraalJsScriptEngines.ENGINE_NAME))){
+				factory = f;
+			}
+		}
+		DEFAULT_FACTORY = factory;
+		if(factory == null){
+			log.info("No JavaScript engine found for " + MIME_TYPE + ", so engines must be built using GraalJS");
+		}else if(log.isLoggable(Level.INFO)){
             log.info("Using JavaScript engine " + factory.getEngineName() + "/"
                 + factory.getEngineVersion() + "/"
                 + factory.getLanguageName() + "/"
@@ -52,8 +69,15 @@ public class JavascriptEngine extends Engine {
 			log.info("\r\n\r\n>>>Creating JavaScript rule engine...<<<");
 			long start = System.currentTimeMillis();
 			Engine engine = new Engine();
-			engine.engine = ENGINE_MANAGER.getEngineByMimeType(MIME_TYPE);
-			compile(engine);
+			engine.engine = newScriptEngine();
+			engine.context = newScriptContext(engine.engine);
+			Generation current = generation;
+			if(current != null){
+				//otherwise the rules are being compiled for the first time, and will be compiled into this engine when it is borrowed
+				update(engine, current);
+			}
+			preloadOtherScripts(engine);
+			bindStatics(engine);
 			log.info(">>>JavaScript rule engine initialisation completed in " + (System.currentTimeMillis()-start) + " ms<<<\r\n");
 			return engine;
 		}
@@ -61,6 +85,13 @@ public class JavascriptEngine extends Engine {
 		public PooledObject<Engine> wrap(Engine obj) {
 			return new DefaultPooledObject<Engine>(obj);
 		}
+		@Override
+		public void destroyObject(PooledObject<Engine> p) throws Exception {
+			if(graalJs != null){
+				GraalJsScriptEngines.close(p.getObject().engine);
+			}
+			//otherwise the context of an engine which shares its script engine is simply garbage collected
+		}
 	}
 	
 	/** since {@link CompiledScript} depends on the engine which compiled it,
@@ -69,10 +100,102 @@ public class JavascriptEngine extends Engine {
 	 * this class encapsulates that.
 	 */
 	private static final class Engine {
+		/** the script engine which compiles the scripts.  shared by all pooled engines, see {@link Builder#withSharedScripts()} */
 		private ScriptEngine engine;
-		private Map<Rule, CompiledScript>  rules = new HashMap<Rule, CompiledScript>();
+		/** the globals of this engine, which scripts are evaluated in */
+		private ScriptContext context;
+		/** the version of the rules which {@link #rules} belong to. null if they have not been compiled yet, or if compiling the latest version failed. */
+		private Generation generation;
+		/** the compiled scripts of {@link Generation#rulesByPriority}, at the same positions. null if the rule failed to compile, or is pending. */
+		private CompiledScript[] rules;
+		/** true at the positions of the rules which are compiled when this engine first uses their namespace. null if there are none. */
+		private boolean[] pending;
+		/** the compiled scripts by their expressions, so that only changed rules need to be compiled when the rules are updated */
+		private Map<String, CompiledScript> scripts = new HashMap<String, CompiledScript>();
+		/** the expressions of the memoized subrules whose functions are defined in the engine, by slot */
+		private List<String> subRules = Collections.emptyList();
+		/** forgets the results of memoized subrules. null, unless subrules are memoized. */
+		private CompiledScript resetSubRules;
+		/** 
+		 * whether the rules of each namespace are evaluated by a single function, by namespace id, see 
+		 * {@link JavascriptEngine#namespaceFunction}.  {@link JavascriptEngine#UNKNOWN} until the engine first uses the namespace. 
+		 */
+		private byte[] functions;
+		/** calls the function of a namespace. null until the engine first calls one. */
+		private CompiledScript callNamespace;
+		/** redefines a static, see {@link JavascriptEngine#redefineStatic(Engine, String, Object)}. null if there are no statics. */
+		private CompiledScript redefineStatic;
 	}
 
+	/** an immutable version of the rules, see {@link JavascriptEngine#generation} */
+	private static final class Generation {
+		/** the rules which are evaluated (i.e. no subrules), ordered by priority, highest first */
+		private final Rule[] rulesByPriority;
+		/** maps namespace patterns to the positions of the rules in {@link #rulesByPriority} which they select */
+		private final NamespaceIndex namespaceIndex;
+		/** the expressions of the memoized subrules, by slot. empty unless subrules are memoized. */
+		private final List<String> subRules;
+		/** the memoized subrules, by slot. empty unless subrules are memoized. */
+		private final List<Rule> referencedRules;
+
+		private Generation(Rule[] rulesByPriority, NamespaceIndex namespaceIndex, List<Rule> referencedRules) {
+			this.rulesByPriority = rulesByPriority;
+			this.namespaceIndex = namespaceIndex;
+			this.referencedRules = referencedRules;
+			this.subRules = new ArrayList<String>();
+			for(Rule r : referencedRules){
+				subRules.add(r.getExpression());
+			}
+		}
+	}
+
+	private static final class GenerationBatch extends Batch {
+		private final Generation generation;
+		private GenerationBatch(Generation generation, int[] candidates, EvaluationListener[] listeners) {
+			super(candidates, listeners);
+			this.generation = generation;
+		}
+	}
+
+	/** 
+	 * defines the function which references to memoized subrules are replaced with. 
+	 * it evaluates the subrule the first time it is called for an input, and remembers the result.
+	 */
+	private static final String SUBRULES_SCRIPT = 
+			"var __subruleFunctions = [];\n" +
+			"var __subruleMemo = [];\n" +
+			"var __subruleEvaluating = {};\n" +
+			"function __subrule(i) {\n" +
+			"    var v = __subruleMemo[i];\n" +
+			"    if (v === __subruleEvaluating) {\n" +
+			"        throw new Error('subrule ' + i + ' references itself');\n" +
+			"    }\n" +
+			"    if (v === undefined) {\n" +
+			"        __subruleMemo[i] = __subruleEvaluating;\n" +
+			"        v = __subruleMemo[i] = __subruleFunctions[i]();\n" +
+			"    }\n" +
+			"    return v;\n" +
+			"}";
+
+	/** states of the namespaces in {@link Engine#functions} */
+	private static final byte UNKNOWN = 0, COMBINED = 1, ONE_BY_ONE = 2;
+
+	/** 
+	 * calls the function which evaluates the rules of a namespace, see {@link JavascriptEngine#namespaceFunction}.
+	 * Not {@link Invocable}, since that always uses the default context of the script engine. 
+	 */
+	private static final String CALL_NAMESPACE = "__namespaces[__namespace](__max, __matches, __offset)";
+
+	/** see {@link JavascriptEngine#redefineStatic(Engine, String, Object)} */
+	private static final String REDEFINE_STATIC = "Object.defineProperty(this, __static, {value: __value, writable: false, configurable: true})";
+
+	/** 
+	 * the rules currently in use, replaced as a whole when rules are added, removed or replaced.  Pooled engines are 
+	 * brought up to date when they are borrowed.  Not an {@link java.util.concurrent.atomic.AtomicReference}, since it 
+	 * is first set while the super constructor runs, before initialisers in this class would run.
+	 */
+	private volatile Generation generation;
+
 	/**
 	 * Why are we pooling engines?  Nashorn isn't thread-safe:<br>
 	 * https://blogs.oracle.com/nashorn/entry/nashorn_multi_threading_and_mt<br>
@@ -81,12 +204,62 @@ public class JavascriptEngine extends Engine {
 	 */
 	private ObjectPool<Engine> engines;
 
+	/** see {@link Builder#withNamespaceFunctions()} */
+	private final boolean namespaceFunctions;
+
+	/** 
+	 * creates the script engines if GraalJS was chosen, otherwise null, see {@link Builder#withGraalJs()}.  Set in 
+	 * {@link #configure(ch.maxant.rules.Engine.Builder)}, since it is needed when the rules are first compiled.
+	 */
+	private GraalJsScriptEngines graalJs;
+
+	/** see {@link Builder#withThreadAffinePool()}.  Set in {@link #configure(ch.maxant.rules.Engine.Builder)}. */
+	private boolean threadAffinePool;
+
+	/** 
+	 * the flags with which script engines are created, see {@link Builder#withScriptEngineOptions(String...)}.  null to 
+	 * create them as usual.  Set in {@link #configure(ch.maxant.rules.Engine.Builder)}. 
+	 */
+	private ScriptEngineOptions scriptEngineOptions;
+
+	/** 
+	 * the script engine which all pooled engines share, and the scripts which it has compiled, by their sources.  null unless
+	 * scripts are shared, see {@link Builder#withSharedScripts()}.  Set in {@link #configure(ch.maxant.rules.Engine.Builder)}. 
+	 */
+	private ScriptEngine sharedEngine;
+	private Map<String, CompiledScript> sharedScripts;
+
+	/** the sources of {@link #javascriptFilesToLoad}, read once, rather than once per pooled engine. null until first needed. */
+	private List<Library> libraries;
+
 	/**
 	 * @return [numActive, numIdle] 
 	 */
 	public int[] getPoolSize(){
 		return new int[]{engines.getNumActive(), engines.getNumIdle()};
 	}
+
+	/**
+	 * @return a snapshot of how the pool of script engines is being used, e.g. to monitor whether it is large enough.
+	 */
+	public PoolMetrics getPoolMetrics(){
+		if(engines instanceof MeteredPool){
+			return ((MeteredPool<?>)engines).getMetrics();
+		}
+		GenericObjectPool<Engine> pool = (GenericObjectPool<Engine>)engines;
+		return new PoolMetrics(pool.getNumActive(), pool.getNumIdle(), pool.getMaxTotal(), pool.getBorrowedCount(), 
+				pool.getCreatedCount(), pool.getDestroyedCount(), pool.getMeanBorrowWaitTimeMillis() * 1000000L, 
+				pool.getMaxBorrowWaitTimeMillis() * 1000000L);
+	}
+
+	/**
+	 * Closes the pool, destroying the idle script engines, e.g. the GraalJS contexts which threads keep, see
+	 * {@link Builder#withGraalJs()}, so that they are not kept alive by other threads after this engine is discarded.
+	 * Script engines which are in use are destroyed when they are returned.  Rules cannot be evaluated afterwards.
+	 */
+	public void close(){
+		engines.close();
+	}
 	
 	/**
 	 * Creates the engine with a pool size of {@value GenericObjectPoolConfig#DEFAULT_MAX_TOTAL}. 
@@ -132,19 +305,105 @@ public class JavascriptEngine extends Engine {
 	 */
 	public JavascriptEngine(final Collection<Rule> rules, String inputName, boolean throwExceptionIfCompilationFails, Integer poolSize, boolean preloadPool, Map<String, Object> statics, String... javascriptFilesToLoad) throws DuplicateNameException, CompileException, ParseException {
 		super(rules, inputName, throwExceptionIfCompilationFails, poolSize, javascriptFilesToLoad, statics);
+		this.namespaceFunctions = false;
 		
 		if(preloadPool){
-			
-			try {
-				List<Engine> borrowed = new ArrayList<JavascriptEngine.Engine>();
-				for(int i = 0; i < (poolSize == null ? GenericObjectPoolConfig.DEFAULT_MAX_TOTAL : poolSize); i++){
-					borrowed.add(engines.borrowObject());
+			preloadPool();
+		}
+	}
+
+	/**
+	 * See {@link Builder}.
+	 */
+	protected JavascriptEngine(Builder builder) throws DuplicateNameException, CompileException, ParseException {
+		super(builder, builder.poolSize, builder.javascriptFilesToLoad);
+		this.namespaceFunctions = builder.namespaceFunctions;
+		
+		if(builder.preloadPool){
+			preloadPool();
+		}
+	}
+	
+	@Override
+	protected void configure(ch.maxant.rules.Engine.Builder builder) throws CompileException {
+		List<String> notSupported = new ArrayList<String>();
+		if(builder.evaluationExecutor != null){
+			notSupported.add("withParallelEvaluation");
+		}
+		if(builder.bytecodeInputType != null){
+			notSupported.add("withBytecodeCompilation");
+		}
+		if(builder.typedInputType != null){
+			notSupported.add("withTypedCompilation");
+		}
+		if(builder.indexEqualities){
+			notSupported.add("withEqualityIndex");
+		}
+		if(builder.indexIntervals){
+			notSupported.add("withIntervalIndex");
+		}
+		if(!notSupported.isEmpty()){
+			throw new CompileException("The JavascriptEngine does not support " + notSupported);
+		}
+		if(builder instanceof Builder){
+			ScriptEngineOptions options = ((Builder)builder).scriptEngineOptions();
+			if(((Builder)builder).graalJs){
+				List<String> unsupported = options.unsupportedByGraal();
+				if(!unsupported.isEmpty()){
+					log.info("Ignoring " + unsupported + " since GraalJS does not support them");
 				}
-				for(Engine e : borrowed){
-						engines.returnObject(e);
+				try{
+					graalJs = new GraalJsScriptEngines(options.graalOptions());
+				}catch(IllegalArgumentException e){
+					//e.g. an unknown option
+					throw new CompileException("Failed to create GraalJS with the given options: " + e.getMessage());
 				}
-			} catch (Exception e) {
-				handlePoolProblem(e);
+			}else if(!options.isEmpty()){
+				scriptEngineOptions = options;
+			}
+			threadAffinePool = ((Builder)builder).threadAffinePool;
+			if(((Builder)builder).sharedScripts && graalJs == null){
+				sharedScripts = new LinkedHashMap<String, CompiledScript>(16, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+					@Override
+					protected boolean removeEldestEntry(Map.Entry<String, CompiledScript> eldest) {
+						//e.g. rules which have since been replaced.  anything still needed is simply compiled again.
+						return size() > 2 * (parsedRules == null ? 0 : parsedRules.size()) + 256;
+					}
+				};
+			}
+		}
+	}
+
+	/** 
+	 * fills the pool.  Each new script engine compiles the rules while it is being created, so they are created on 
+	 * one thread per core, up to the size of the pool, or on {@link #compilationThreads} threads, if there are more.
+	 * Each thread only uses the engines which it creates.
+	 */
+	private void preloadPool() {
+		if(engines instanceof PerThreadPool){
+			log.info("Not preloading the pool, since each thread creates its own GraalJS context when it first evaluates rules");
+			return;
+		}
+		final List<Engine> borrowed = Collections.synchronizedList(new ArrayList<JavascriptEngine.Engine>());
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		int size = poolSize == null ? GenericObjectPoolConfig.DEFAULT_MAX_TOTAL : poolSize;
+		for(int i = 0; i < size; i++){
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					borrowed.add(engines.borrowObject());
+					return null;
+				}
+			});
+		}
+		try {
+			runCompilationTasks(tasks, Math.max(compilationThreads, Math.min(size, Runtime.getRuntime().availableProcessors())));
+		} catch (Exception e) {
+			handlePoolProblem(e);
+		} finally {
+			for(Engine e : borrowed){
+				returnEngineToPool(e);
 			}
 		}
 	}
@@ -162,32 +421,88 @@ public class JavascriptEngine extends Engine {
 		return config;
 	}
 	
-	private void preloadOtherScripts(Engine engine) throws CompileException {
-		if(javascriptFilesToLoad != null){
-			ClassLoader cl = getClass().getClassLoader();
-			InputStream script = null;
-			for (String js : javascriptFilesToLoad) {
-				//fetch script file from classloader (e.g. out of a JAR) and put it into the engine
-				boolean assumedItsAScriptNotAFile = false;
-				try {
-					//no need to compile, since we only load it once
-					script = cl.getResourceAsStream(js);
+	/** 
+	 * @return a new script engine, from GraalJS if it was chosen, otherwise from the platform's default JavaScript engine.
+	 * the shared one, if scripts are shared.
+	 */
+	private ScriptEngine newScriptEngine() throws CompileException {
+		if(graalJs != null){
+			return graalJs.create();
+		}
+		if(sharedScripts != null){
+			synchronized(sharedScripts){
+				if(sharedEngine == null){
+					sharedEngine = newDefaultScriptEngine();
+				}
+				return sharedEngine;
+			}
+		}
+		return newDefaultScriptEngine();
+	}
+
+	private ScriptEngine newDefaultScriptEngine() throws CompileException {
+		if(DEFAULT_FACTORY == null){
+			throw new CompileException("No JavaScript engine found for " + MIME_TYPE + ". Add GraalJS to the classpath and use Builder#withGraalJs()");
+		}
+		ScriptEngine engine = scriptEngineOptions == null ? DEFAULT_FACTORY.getScriptEngine() : scriptEngineOptions.create(DEFAULT_FACTORY);
+		engine.setBindings(ENGINE_MANAGER.getBindings(), ScriptContext.GLOBAL_SCOPE);
+		return engine;
+	}
+
+	/** 
+	 * @return a context with its own globals, if the script engine is shared, so that each pooled engine can be used by 
+	 * a different thread, otherwise the script engine's default context.
+	 */
+	private ScriptContext newScriptContext(ScriptEngine engine) {
+		if(sharedScripts == null){
+			return engine.getContext();
+		}
+		ScriptContext context = new SimpleScriptContext();
+		context.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+		context.setBindings(ENGINE_MANAGER.getBindings(), ScriptContext.GLOBAL_SCOPE);
+		return context;
+	}
+
+	/** a script which is loaded into every engine before the rules, see {@link #javascriptFilesToLoad} */
+	private static final class Library {
+		private final String name;
+		private final String source;
+		/** true if no file with the name was found on the classpath, so the name was assumed to be the source */
+		private final boolean assumedItsAScriptNotAFile;
+		private Library(String name, String source, boolean assumedItsAScriptNotAFile) {
+			this.name = name;
+			this.source = source;
+			this.assumedItsAScriptNotAFile = assumedItsAScriptNotAFile;
+		}
+	}
+
+	/** @return the libraries, which are read from the classpath the first time they are needed */
+	private synchronized List<Library> libraries() {
+		if(libraries == null){
+			List<Library> libraries = new ArrayList<Library>();
+			if(javascriptFilesToLoad != null){
+				ClassLoader cl = getClass().getClassLoader();
+				for (String js : javascriptFilesToLoad) {
+					//fetch script file from classloader (e.g. out of a JAR)
+					InputStream script = cl.getResourceAsStream(js);
 					if(script == null){
 						log.info("Assuming that the given string is an actual script, rather than the name of a file containing one: '" + js + "'");
-						assumedItsAScriptNotAFile = true;
-						engine.engine.eval(js);
-					}else{
-						log.info("Found script named '" + js + "' on classpath - attempting to evaluate it...");
-						engine.engine.eval(new InputStreamReader(script));
-					}
-				} catch (ScriptException e) {
-					if(assumedItsAScriptNotAFile){
-						throw new CompileException("No file named '" + js + "' found on classpath. Assumed a script was passed instead.  But failed to evaluate script: " + e.getMessage());
-					}else{
-						throw new CompileException("Failed to evaluate script named '" + js + "': " + e.getMessage());
+						libraries.add(new Library(js, js, true));
+						continue;
 					}
-				}finally{
-					if(script != null){
+					log.info("Found script named '" + js + "' on classpath - reading it...");
+					try {
+						StringBuilder source = new StringBuilder();
+						Reader reader = new InputStreamReader(script);
+						char[] buffer = new char[8192];
+						int n;
+						while((n = reader.read(buffer)) != -1){
+							source.append(buffer, 0, n);
+						}
+						libraries.add(new Library(js, source.toString(), false));
+					} catch (IOException e) {
+						throw new RuntimeException("Failed to read script named '" + js + "'", e); //should never happen
+					}finally{
 						try {
 							script.close();
 						} catch (IOException e) {
@@ -196,6 +511,125 @@ public class JavascriptEngine extends Engine {
 					}
 				}
 			}
+			this.libraries = libraries;
+		}
+		return libraries;
+	}
+
+	private void preloadOtherScripts(Engine engine) throws CompileException {
+		for (Library library : libraries()) {
+			try {
+				eval(engine, library.source);
+			} catch (ScriptException e) {
+				if(library.assumedItsAScriptNotAFile){
+					throw new CompileException("No file named '" + library.name + "' found on classpath. Assumed a script was passed instead.  But failed to evaluate script: " + e.getMessage());
+				}else{
+					throw new CompileException("Failed to evaluate script named '" + library.name + "': " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/** 
+	 * @return the script, compiled by the engine's script engine.  If scripts are shared, it is only compiled the first 
+	 * time that any pooled engine needs it.
+	 * @param rule the rule whose expression the source is, so that listeners can be notified when it has been compiled. 
+	 * 			null if the source is not a rule.
+	 */
+	private CompiledScript compile(Engine engine, String source, Rule rule) throws ScriptException {
+		if(sharedScripts == null){
+			CompiledScript script = ((Compilable)engine.engine).compile(source);
+			if(rule != null){
+				fireCompiled(rule);
+			}
+			return script;
+		}
+		synchronized(sharedScripts){
+			CompiledScript script = sharedScripts.get(source);
+			if(script == null){
+				script = ((Compilable)engine.engine).compile(source);
+				sharedScripts.put(source, script);
+				if(rule != null){
+					fireCompiled(rule);
+				}
+			}
+			return script;
+		}
+	}
+
+	/** evaluates the script in the context of the engine */
+	private Object eval(Engine engine, String source) throws ScriptException {
+		if(sharedScripts == null){
+			return engine.engine.eval(source, engine.context);
+		}
+		//the compiled script is shared, and evaluated in each context
+		return compile(engine, source, null).eval(engine.context);
+	}
+
+	/** 
+	 * binds the statics once per engine, rather than every time rules are evaluated, as globals which rules cannot
+	 * change, so that they are the same for every rule and every call.  They remain configurable, so that variables
+	 * can hide them, see {@link #bindVariables(Engine, Map)}.
+	 */
+	private void bindStatics(Engine engine) throws CompileException {
+		if(statics.isEmpty()){
+			return;
+		}
+		engine.context.getBindings(ScriptContext.ENGINE_SCOPE).putAll(statics);
+		StringBuilder script = new StringBuilder();
+		for(String name : statics.keySet()){
+			script.append("Object.defineProperty(this, '").append(name.replace("\\", "\\\\").replace("'", "\\'"))
+				.append("', {writable: false, configurable: true});\n");
+		}
+		try{
+			eval(engine, script.toString());
+			engine.redefineStatic = compile(engine, REDEFINE_STATIC, null);
+		}catch(ScriptException e){
+			throw new CompileException("Failed to bind the statics: " + e.getMessage()); //should never happen
+		}
+	}
+
+	/**
+	 * binds the variables for one call.  A variable with the same name as a static hides it, which needs the read only
+	 * global to be redefined, since simply binding the variable would be ignored.
+	 */
+	private void bindVariables(Engine engine, Map<String, Object> variables) throws ScriptException {
+		Bindings bindings = engine.context.getBindings(ScriptContext.ENGINE_SCOPE);
+		for(Map.Entry<String, Object> variable : variables.entrySet()){
+			if(statics.containsKey(variable.getKey())){
+				redefineStatic(engine, variable.getKey(), variable.getValue());
+			}else{
+				bindings.put(variable.getKey(), variable.getValue());
+			}
+		}
+	}
+
+	/** removes the variables after a call, so that they dont leak into the next call which uses the engine, and restores any statics which they hid */
+	private void unbindVariables(Engine engine, Map<String, Object> variables) {
+		Bindings bindings = engine.context.getBindings(ScriptContext.ENGINE_SCOPE);
+		for(String name : variables.keySet()){
+			if(statics.containsKey(name)){
+				try{
+					redefineStatic(engine, name, statics.get(name));
+				}catch(ScriptException e){
+					throw new RuntimeException("Failed to restore the static " + name, e); //should never happen
+				}
+			}else{
+				bindings.remove(name);
+			}
+		}
+	}
+
+	/** gives the read only global with the name of a static the given value */
+	private void redefineStatic(Engine engine, String name, Object value) throws ScriptException {
+		Bindings bindings = engine.context.getBindings(ScriptContext.ENGINE_SCOPE);
+		bindings.put("__static", name);
+		bindings.put("__value", value);
+		try{
+			engine.redefineStatic.eval(engine.context);
+		}finally{
+			bindings.remove("__static");
+			bindings.remove("__value");
 		}
 	}
 
@@ -213,17 +647,42 @@ public class JavascriptEngine extends Engine {
 		throw new RuntimeException("problem with engine pool", e); //should never happen
 	}
 	
+	/**
+	 * Compiles the {@link #parsedRules} into an engine from the pool, and if that works, publishes them as the rules 
+	 * which the engine uses.  The other pooled engines compile them when they are next borrowed.
+	 */
 	@Override
 	protected void compile() throws CompileException {
-		//this gets called by the constructor. 
-		//it creates the very first engine.
-		//no need to by synchronized, since this is called from the constructor
+		//order by priority, so that evaluation can stop as soon as enough matches are known.
+		//every pooled engine compiles the rules into the same positions.
+		List<Rule> rules = new ArrayList<Rule>();
+		List<String> namespaces = new ArrayList<String>();
+		for(Rule r : parsedRules){
+			if(!(r instanceof SubRule)){
+				rules.add(r);
+			}
+		}
+		Collections.sort(rules);
+		for(Rule r : rules){
+			namespaces.add(r.getNamespace());
+		}
+		List<Rule> subRules = memoizeSubRules ? new ArrayList<Rule>(referencedRules) : Collections.<Rule>emptyList();
+		Generation next = new Generation(rules.toArray(new Rule[rules.size()]), new NamespaceIndex(namespaces), subRules);
+		
 		Engine engine = null;
 		try{
 			if(engines == null){
-				engines = new GenericObjectPool<Engine>(new PoolableEngineFactory(), getPoolConfig());
+				if(threadAffinePool){
+					int maxTotal = getPoolConfig().getMaxTotal();
+					engines = new ThreadAffinePool<Engine>(new PoolableEngineFactory(), maxTotal < 1 ? GenericObjectPoolConfig.DEFAULT_MAX_TOTAL : maxTotal);
+				}else if(graalJs == null){
+					engines = new GenericObjectPool<Engine>(new PoolableEngineFactory(), getPoolConfig());
+				}else{
+					engines = new PerThreadPool<Engine>(new PoolableEngineFactory());
+				}
 			}
 			engine = engines.borrowObject();
+			update(engine, next);
 		} catch (CompileException e) {
 			throw e;
 		} catch (Exception e) {
@@ -231,103 +690,466 @@ public class JavascriptEngine extends Engine {
 		}finally{
 			returnEngineToPool(engine);
 		}
+		generation = next;
 	}
 	
-	private void compile(Engine engine) throws CompileException {
-		for(Rule r : parsedRules){
-			try{
-				if(r instanceof SubRule){
+	/** borrows an engine from the pool, and brings it up to date with the given version of the rules */
+	private Engine borrowEngine(Generation generation) {
+		Engine engine = null;
+		try {
+			engine = engines.borrowObject();
+			update(engine, generation);
+			return engine;
+		} catch (Exception e) {
+			//compiling cannot fail, since the rules were compiled before they were published
+			returnEngineToPool(engine);
+			handlePoolProblem(e);
+			return null;
+		}
+	}
+
+	/** 
+	 * compiles the given version of the rules into the engine, unless it already has them, reusing the scripts 
+	 * which the engine has already compiled, for rules whose expressions are unchanged.
+	 */
+	private void update(Engine engine, Generation generation) throws CompileException {
+		if(engine.generation == generation){
+			return;
+		}
+		engine.generation = null; //until it has been brought up to date
+		Map<String, CompiledScript> scripts = new HashMap<String, CompiledScript>();
+		CompiledScript[] compiled = new CompiledScript[generation.rulesByPriority.length];
+		boolean[] pending = null;
+		Map<String, Boolean> eagerNamespaces = new HashMap<String, Boolean>();
+		for(int i = 0; i < compiled.length; i++){
+			Rule r = generation.rulesByPriority[i];
+			CompiledScript script = scripts.get(r.getExpression());
+			if(script == null){
+				script = engine.scripts.get(r.getExpression());
+			}
+			if(script == null && !isCompiledEagerly(r.getNamespace(), eagerNamespaces)){
+				if(pending == null){
+					pending = new boolean[compiled.length];
+				}
+				pending[i] = true;
+				continue;
+			}
+			if(script == null){
+				script = compileRule(engine, r);
+				if(script == null){
 					continue;
 				}
-				CompiledScript compiledScript = ((Compilable)engine.engine).compile(r.getExpression());
-				engine.rules.put(r, compiledScript);
+			}
+			scripts.put(r.getExpression(), script);
+			compiled[i] = script;
+		}
+		if(!generation.subRules.equals(engine.subRules)){
+			compileSubRules(engine, generation.referencedRules);
+			engine.subRules = generation.subRules;
+		}
+		engine.rules = compiled;
+		engine.pending = pending;
+		engine.functions = new byte[generation.namespaceIndex.numNamespaces()];
+		engine.scripts = scripts;
+		engine.generation = generation;
+	}
+
+	/** @return the compiled rule, or null if it failed to compile, and exceptions are not to be thrown */
+	private CompiledScript compileRule(Engine engine, Rule r) throws CompileException {
+		try{
+			return compile(engine, r.getExpression(), r);
+		}catch(ScriptException ex){
+			log.warning("Failed to compile " + r.getFullyQualifiedName() + ": " + ex.getMessage());
+			fireCompileFailure(r, ex.getMessage());
+			if(throwExceptionIfCompilationFails){
+				throw new CompileException(ex.getMessage());
+			}
+			return null;
+		}
+	}
+
+	/** 
+	 * @return the compiled script of the rule at the given position, after compiling the rules in its namespace, 
+	 * if the engine has not used that namespace yet. null if the rule failed to compile. 
+	 */
+	private CompiledScript script(Engine engine, Generation generation, int position) {
+		if(engine.pending != null && engine.pending[position]){
+			for(int p : generation.namespaceIndex.positionsInNamespaceOf(position)){
+				if(engine.pending[p]){
+					Rule r = generation.rulesByPriority[p];
+					CompiledScript script = engine.scripts.get(r.getExpression());
+					if(script == null){
+						try{
+							script = compileRule(engine, r);
+						}catch(CompileException e){
+							//the namespace is compiled again, the next time this engine uses it
+							throw new IllegalStateException("Failed to compile the rules in the namespace " + r.getNamespace(), e);
+						}
+						if(script != null){
+							engine.scripts.put(r.getExpression(), script);
+						}
+					}
+					engine.rules[p] = script;
+					engine.pending[p] = false;
+				}
+			}
+		}
+		return engine.rules[position];
+	}
+
+	/** defines a function for each memoized subrule, see {@link #SUBRULES_SCRIPT} */
+	private void compileSubRules(Engine engine, List<Rule> referencedRules) throws CompileException {
+		try{
+			eval(engine, SUBRULES_SCRIPT);
+			engine.resetSubRules = compile(engine, "__subruleMemo = [];", null);
+		}catch(ScriptException ex){
+			throw new CompileException("Failed to set up subrules: " + ex.getMessage()); //should never happen
+		}
+		for(int i = 0; i < referencedRules.size(); i++){
+			Rule r = referencedRules.get(i);
+			try{
+				eval(engine, "__subruleFunctions[" + i + "] = function() { return (" + r.getExpression() + "); };");
 			}catch(ScriptException ex){
 				log.warning("Failed to compile " + r.getFullyQualifiedName() + ": " + ex.getMessage());
+				fireCompileFailure(r, ex.getMessage());
 				if(throwExceptionIfCompilationFails){
 					throw new CompileException(ex.getMessage());
 				}
 			}
 		}
-		preloadOtherScripts(engine);
+	}
+
+	@Override
+	protected String subRuleReference(int slot) {
+		return "__subrule(" + slot + ")";
 	}
 	
 	@Override
-	public <Input> List<Rule> getMatchingRules(String nameSpacePattern, Input input) {
-		
-		Pattern pattern = null;
-		if(nameSpacePattern != null){
-			pattern = Pattern.compile(nameSpacePattern);
+	public <Input> List<Rule> getMatchingRules(String nameSpacePattern, Input input, Map<String, Object> variables, int maxMatches) {
+		if(maxMatches < 1){
+			throw new IllegalArgumentException("maxMatches must be at least 1");
 		}
+		
+		//read once, so that the whole call uses the same version of the rules, even if they are replaced in the mean time
+		Generation generation = this.generation;
+		int[] candidates = generation.namespaceIndex.resolve(nameSpacePattern);
+		EvaluationListener[] listeners = getEvaluationListeners();
 
 		Engine engine = null;
-		Rule r = null;
 		try {
-			try {
-				engine = engines.borrowObject();
-			} catch (Exception e) {
-				handlePoolProblem(e);
+			engine = borrowEngine(generation);
+			
+			//once per call rather than once per rule. the statics were bound when the engine was created.
+			Bindings bindings = engine.context.getBindings(ScriptContext.ENGINE_SCOPE);
+			bindings.put(inputName, input);
+			if(variables != null){
+				bindVariables(engine, variables);
+			}
+			if(engine.resetSubRules != null){
+				engine.resetSubRules.eval(engine.context);
+			}
+			return evaluateRules(engine, generation, candidates, input, maxMatches, listeners);
+		} catch (ScriptException e) {
+			throw failedToRun(null, e);
+		}finally{
+			if(engine != null && variables != null){
+				unbindVariables(engine, variables);
 			}
+			returnEngineToPool(engine);
+		}
+	}
+
+	@Override
+	protected Batch prepareBatch(String nameSpacePattern) {
+		Generation generation = this.generation;
+		return new GenerationBatch(generation, generation.namespaceIndex.resolve(nameSpacePattern), getEvaluationListeners());
+	}
+
+	/**
+	 * Borrows a single engine from the pool for the whole slice, rather than once per input, 
+	 * and binds the input once per input, rather than once per rule.
+	 */
+	@Override
+	protected <Input> void getMatchingRulesInBatch(Batch batch, List<Input> inputs, int from, int to, List<Rule>[] results) {
+		Generation generation = ((GenerationBatch) batch).generation;
+
+		Engine engine = null;
+		try {
+			engine = borrowEngine(generation);
 			
-			List<Rule> matchingRules = new ArrayList<Rule>();
-			for(Entry<Rule, CompiledScript> e : engine.rules.entrySet()){
-				r = e.getKey();
-				if(pattern != null){
-					if(!pattern.matcher(e.getKey().getNamespace()).matches()){
-						continue;
-					}
+			Bindings bindings = engine.context.getBindings(ScriptContext.ENGINE_SCOPE);
+			for(int i = from; i < to; i++){
+				Input input = inputs.get(i);
+				//once per input rather than once per rule. the statics were bound when the engine was created.
+				bindings.put(inputName, input);
+				if(engine.resetSubRules != null){
+					engine.resetSubRules.eval(engine.context);
 				}
-			
-				//execute
-				engine.engine.getContext().setAttribute(inputName, input, ScriptContext.ENGINE_SCOPE);
-				engine.engine.getContext().getBindings(ScriptContext.ENGINE_SCOPE).putAll(this.statics);
-				Object result = e.getValue().eval();
-				String msg = r.getFullyQualifiedName() + "-{" + r.getExpression() + "}";
-				if(String.valueOf(result).equals("true")){
+				results[i] = evaluateRules(engine, generation, batch.candidates, input, Integer.MAX_VALUE, batch.listeners);
+			}
+		} catch (ScriptException e) {
+			throw failedToRun(null, e);
+		}finally{
+			returnEngineToPool(engine);
+		}
+	}
+
+	/**
+	 * @return the candidates which match the input which is bound in the engine, ordered by priority, but no more than maxMatches.
+	 * @throws IllegalArgumentException if a rule fails to run
+	 */
+	private List<Rule> evaluateRules(Engine engine, Generation generation, int[] candidates, Object input, int maxMatches, EvaluationListener[] listeners) {
+		if(namespaceFunctions && listeners.length == 0){
+			return evaluateNamespaces(engine, generation, candidates, maxMatches);
+		}
+		List<Rule> matchingRules = new ArrayList<Rule>();
+		Rule r = null;
+		try {
+			for(int i = 0; i < candidates.length && matchingRules.size() < maxMatches; i++){
+				CompiledScript script = script(engine, generation, candidates[i]);
+				if(script == null){
+					continue; //failed to compile
+				}
+				r = generation.rulesByPriority[candidates[i]];
+				if(evaluate(script, engine.context, r, input, listeners)){
 					matchingRules.add(r);
-					if(log.isLoggable(Level.INFO)) log.info("matched: " + msg);
-				}else{
-                    if(log.isLoggable(Level.INFO)) log.info("unmatched: " + msg);
 				}
 			}
-			//order by priority!
-			Collections.sort(matchingRules);
-			
+		} catch (ScriptException e) {
+			throw failedToRun(r, e);
+		}
+		//no need to sort, since the rules are already ordered by priority
+		return matchingRules;
+	}
+
+	/** evaluates the candidates with a single call per namespace, see {@link Builder#withNamespaceFunctions()} */
+	private List<Rule> evaluateNamespaces(Engine engine, Generation generation, int[] candidates, int maxMatches) {
+		List<Rule> matchingRules = new ArrayList<Rule>();
+		if(candidates.length == 0){
 			return matchingRules;
+		}
+		NamespaceIndex index = generation.namespaceIndex;
+		int[] matches;
+		int numMatches;
+		if(index.positionsInNamespaceOf(candidates[0]) == candidates){
+			//the usual case, of a pattern which selects a single namespace
+			matches = new int[Math.min(candidates.length, maxMatches)];
+			numMatches = evaluateNamespace(engine, generation, candidates[0], maxMatches, matches, 0);
+		}else{
+			//each namespace stops once it has maxMatches, so it has all of the matches which can be among the first 
+			//maxMatches of all the namespaces together, once they are merged back into the order of priority
+			matches = new int[candidates.length];
+			numMatches = 0;
+			boolean[] evaluated = new boolean[index.numNamespaces()];
+			for(int p : candidates){
+				int id = index.namespaceIdOf(p);
+				if(!evaluated[id]){
+					evaluated[id] = true;
+					numMatches += evaluateNamespace(engine, generation, p, maxMatches, matches, numMatches);
+				}
+			}
+			Arrays.sort(matches, 0, numMatches);
+			numMatches = Math.min(numMatches, maxMatches);
+		}
+		for(int i = 0; i < numMatches; i++){
+			matchingRules.add(generation.rulesByPriority[matches[i]]);
+		}
+		return matchingRules;
+	}
+
+	/**
+	 * evaluates the rules in the namespace of the rule at the given position, in order of priority, until maxMatches of them match.
+	 * @return the number of matching rules, whose positions are written into matches, starting at the given offset.
+	 */
+	private int evaluateNamespace(Engine engine, Generation generation, int position, int maxMatches, int[] matches, int offset) {
+		int id = generation.namespaceIndex.namespaceIdOf(position);
+		if(!namespaceFunction(engine, generation, position)){
+			int n = 0;
+			Rule r = null;
+			try {
+				for(int p : generation.namespaceIndex.positionsInNamespaceOf(position)){
+					if(n == maxMatches){
+						break;
+					}
+					if(engine.rules[p] == null){
+						continue; //failed to compile
+					}
+					r = generation.rulesByPriority[p];
+					if(isTrue(engine.rules[p].eval(engine.context))){
+						matches[offset + n++] = p;
+					}
+				}
+			} catch (ScriptException e) {
+				throw failedToRun(r, e);
+			}
+			return n;
+		}
+		Bindings bindings = engine.context.getBindings(ScriptContext.ENGINE_SCOPE);
+		try {
+			if(engine.callNamespace == null){
+				engine.callNamespace = compile(engine, CALL_NAMESPACE, null);
+			}
+			bindings.put("__namespace", id);
+			bindings.put("__max", maxMatches);
+			bindings.put("__matches", matches);
+			bindings.put("__offset", offset);
+			return ((Number)engine.callNamespace.eval(engine.context)).intValue();
 		} catch (ScriptException e) {
-			throw new IllegalArgumentException("Failed to run script " + r.getFullyQualifiedName(), e);
-		}finally{
-			returnEngineToPool(engine);
+			Object failedAt = bindings.get("__failedAt");
+			throw failedToRun(failedAt instanceof Number ? generation.rulesByPriority[((Number)failedAt).intValue()] : null, e);
+		} finally {
+			bindings.remove("__matches");
 		}
 	}
 
-	public static final class Builder {
+	/**
+	 * Defines the function which evaluates the rules in the namespace of the rule at the given position, as 
+	 * <code>__namespaces[id]</code>, if the engine has not used that namespace yet.
+	 * @return false if the rules cannot be combined into one function, e.g. because an expression contains several 
+	 * statements, and so must be evaluated one by one.
+	 */
+	private boolean namespaceFunction(Engine engine, Generation generation, int position) {
+		int id = generation.namespaceIndex.namespaceIdOf(position);
+		if(engine.functions[id] == UNKNOWN){
+			script(engine, generation, position); //compiles the rules of the namespace, if they are pending
+			//the results are treated just like isTrue treats those of single scripts
+			StringBuilder function = new StringBuilder();
+			function.append("var __namespaces = __namespaces || [];\n");
+			function.append("__namespaces[").append(id).append("] = function(__max, __matches, __offset) {\n");
+			function.append("    var __n = 0, __p = -1, __v;\n");
+			function.append("    try {\n");
+			for(int p : generation.namespaceIndex.positionsInNamespaceOf(position)){
+				if(engine.rules[p] == null){
+					continue; //failed to compile
+				}
+				function.append("        __p = ").append(p).append(";\n");
+				function.append("        __v = (\n").append(generation.rulesByPriority[p].getExpression()).append("\n);\n");
+				function.append("        if (__v === true || String(__v) === 'true') {\n");
+				function.append("            __matches[__offset + __n++] = __p;\n");
+				function.append("            if (__n >= __max) return __n;\n");
+				function.append("        }\n");
+			}
+			function.append("    } catch (e) {\n");
+			function.append("        __failedAt = __p;\n");
+			function.append("        throw e;\n");
+			function.append("    }\n");
+			function.append("    return __n;\n");
+			function.append("};");
+			try {
+				eval(engine, function.toString());
+				engine.functions[id] = COMBINED;
+			} catch (ScriptException e) {
+				log.info("Evaluating the rules in namespace " + generation.rulesByPriority[position].getNamespace() 
+						+ " one by one, since they cannot be combined into a single function: " + e.getMessage());
+				engine.functions[id] = ONE_BY_ONE;
+			}
+		}
+		return engine.functions[id] == COMBINED;
+	}
+
+	private static IllegalArgumentException failedToRun(Rule r, ScriptException e) {
+		return new IllegalArgumentException("Failed to run script " + (r == null ? "" : r.getFullyQualifiedName()), e);
+	}
+
+	private boolean evaluate(CompiledScript script, ScriptContext context, Rule r, Object input, EvaluationListener[] listeners) throws ScriptException {
+		if(listeners.length == 0){
+			return isTrue(script.eval(context));
+		}
+		long start = System.nanoTime();
+		boolean matched;
+		try{
+			matched = isTrue(script.eval(context));
+		}catch(ScriptException e){
+			fireError(listeners, r, input, e, System.nanoTime() - start);
+			throw e;
+		}catch(RuntimeException e){
+			fireError(listeners, r, input, e, System.nanoTime() - start);
+			throw e;
+		}
+		fireEvaluated(listeners, r, input, matched, System.nanoTime() - start);
+		return matched;
+	}
+
+	public static final class Builder extends ch.maxant.rules.Engine.Builder {
 		
-		private final Collection<Rule> rules;
-		private String inputName = JavascriptEngine.DEFAULT_INPUT_NAME;
-		private boolean throwExceptionIfCompilationFails = true;
 		private Integer poolSize = GenericObjectPoolConfig.DEFAULT_MAX_TOTAL;
 		private boolean preloadPool = false;
 		private String[] javascriptFilesToLoad = {};
+		private boolean namespaceFunctions = false;
+		private boolean graalJs = false;
+		private boolean threadAffinePool = false;
+		private boolean sharedScripts = false;
+		private Boolean optimisticTypes = null;
+		private Boolean nashornLazyCompilation = null;
+		private File persistentCodeCache = null;
+		private List<String> scriptEngineOptions = new ArrayList<String>();
 
 		public Builder(Collection<Rule> rules){
-			this.rules = rules;
+			super(rules);
 		}
 
+		@Override
 		public Builder withInputName(String inputName){
-			this.inputName = inputName;
+			super.withInputName(inputName);
 			return this;
 		}
 		
+		@Override
 		public Builder withThrowExceptionIfCompilationFails(boolean throwExceptionIfCompilationFails){
-			this.throwExceptionIfCompilationFails = throwExceptionIfCompilationFails;
+			super.withThrowExceptionIfCompilationFails(throwExceptionIfCompilationFails);
+			return this;
+		}
+		
+		@Override
+		public Builder withStatics(Map<String, Object> statics){
+			super.withStatics(statics);
+			return this;
+		}
+		
+		@Override
+		public Builder withEvaluationListener(EvaluationListener listener){
+			super.withEvaluationListener(listener);
+			return this;
+		}
+		
+		@Override
+		public Builder withMemoizedSubRules(){
+			super.withMemoizedSubRules();
+			return this;
+		}
+		
+		@Override
+		public Builder withParallelCompilation(int threads){
+			super.withParallelCompilation(threads);
 			return this;
 		}
 		
+		@Override
+		public Builder withLazyCompilation(String... warmNamespacePatterns){
+			super.withLazyCompilation(warmNamespacePatterns);
+			return this;
+		}
+		
+		@Override
+		public Builder withSnapshot(File file){
+			super.withSnapshot(file);
+			return this;
+		}
+		
+		/**
+		 * @param poolSize the maximum number of script engines.  Ignored with {@link #withGraalJs()}, unless
+		 * 			{@link #withThreadAffinePool()} is also used, since each thread then keeps its own context.
+		 */
 		public Builder withPoolSize(Integer poolSize){
 			this.poolSize = poolSize;
 			return this;
 		}
 		
+		/**
+		 * @param preloadPool if true, the pool is filled before the engine is built.  The script engines are created on 
+		 * 			one thread per core, up to the size of the pool, or on the number of threads given to 
+		 * 			{@link #withParallelCompilation(int)}, if that is larger.
+		 */
 		public Builder withPreloadPool(boolean preloadPool){
 			this.preloadPool = preloadPool;
 			return this;
@@ -338,8 +1160,127 @@ public class JavascriptEngine extends Engine {
 			return this;
 		}
 		
+		/**
+		 * Evaluates the rules of a namespace with a single call into the script engine, rather than one call per rule.
+		 * When a pooled engine first uses a namespace, it defines a function containing the expressions of all of 
+		 * its rules, in order of priority, which returns the positions of those which match.  With many small rules,
+		 * entering and leaving the script engine otherwise costs more than evaluating the rules themselves.<br>
+		 * <br>
+		 * The rules are still compiled one by one, so that failures are reported for each rule.  The rules of a namespace
+		 * which cannot be combined into a function, e.g. because an expression contains several statements, are 
+		 * evaluated one by one, as usual.  So are all rules, while there are evaluation listeners, since they are 
+		 * notified about each rule.  If a namespace pattern selects several namespaces, each of them is evaluated
+		 * until it has enough matches, so that rules may be evaluated which otherwise would not be.
+		 */
+		public Builder withNamespaceFunctions(){
+			this.namespaceFunctions = true;
+			return this;
+		}
+		
+		/**
+		 * Uses GraalJS rather than the platform's JavaScript engine, i.e. Nashorn, which newer JDKs no longer contain.
+		 * GraalJS is an optional dependency, which must be added to the classpath, namely <code>org.graalvm.js:js</code>
+		 * and <code>org.graalvm.js:js-scriptengine</code>.<br>
+		 * <br>
+		 * All of the script engines share a single polyglot engine, so that the rules and libraries which they parse, 
+		 * and the code which is optimised for them, are cached once, rather than once per script engine.  Since each
+		 * script engine then only needs its own context, they are not pooled, but each thread creates its own, when it
+		 * first evaluates rules, and keeps it.  So the pool size and preloading the pool do not apply.  Call
+		 * {@link JavascriptEngine#close()} when discarding the engine, so that those contexts are closed.<br>
+		 * <br>
+		 * Rules access Java objects like they do with Nashorn, e.g. <code>input.name</code> calls <code>getName()</code>.
+		 * On JDKs without the Graal compiler, GraalJS interprets the rules, rather than compiling them to machine code.
+		 */
+		public Builder withGraalJs(){
+			this.graalJs = true;
+			return this;
+		}
+		
+		/**
+		 * Pools the script engines without any locks, rather than in a commons-pool2 <code>GenericObjectPool</code>, 
+		 * which locks and keeps eviction bookkeeping on every borrow.  Each thread prefers the script engine which it 
+		 * used last, and the pool only grows up to its maximum size (the pool size, or the maximum total of 
+		 * {@link JavascriptEngine#getPoolConfig()}) as far as concurrent calls require.  If all of the script engines 
+		 * are in use, threads back off until one is returned, rather than blocking.  The pool does not use thread 
+		 * locals, so it also suits virtual threads.  The rest of the pool configuration, e.g. eviction, does not apply.
+		 * <br><br>
+		 * Also replaces the per thread contexts of {@link #withGraalJs()}, which do not suit virtual threads.
+		 * See {@link JavascriptEngine#getPoolMetrics()} for monitoring the pool.
+		 */
+		public Builder withThreadAffinePool(){
+			this.threadAffinePool = true;
+			return this;
+		}
+		
+		/**
+		 * Compiles the rules and libraries once, in a single script engine which all of the pooled engines share, rather 
+		 * than once per pooled engine.  Each pooled engine then only has its own globals, in which the libraries are 
+		 * evaluated, but not compiled again, so that creating it is much faster, and the compiled code only takes up 
+		 * memory once.  The scripts are evaluated concurrently, but each thread uses different globals, which Nashorn
+		 * supports.  Evaluation listeners are notified when a rule is compiled once, rather than once per pooled engine.
+		 * <br><br>
+		 * Has no effect with {@link #withGraalJs()}, which always shares compiled code between its contexts.
+		 */
+		public Builder withSharedScripts(){
+			this.sharedScripts = true;
+			return this;
+		}
+		
+		/**
+		 * Whether Nashorn assumes the narrowest types for values, e.g. int rather than double, and recompiles code if
+		 * the assumption turns out to be wrong.  That usually makes rules which do arithmetic faster, once they are warm, 
+		 * but compiling takes longer.  Nashorn does not use optimistic types by default.  Cannot be combined with eager
+		 * compilation, see {@link #withNashornLazyCompilation(boolean)}.  Ignored by GraalJS.
+		 */
+		public Builder withOptimisticTypes(boolean optimisticTypes){
+			this.optimisticTypes = optimisticTypes;
+			return this;
+		}
+		
+		/**
+		 * Whether Nashorn only compiles the functions of a script when they are first called, rather than when the script 
+		 * is compiled.  Lazy compilation makes loading large libraries faster, while eager compilation means that 
+		 * the first evaluations are not slowed down by compiling.  Ignored by GraalJS, which always compiles lazily.
+		 * Unrelated to {@link #withLazyCompilation(String...)}, which decides when the rules of a namespace are compiled.
+		 */
+		public Builder withNashornLazyCompilation(boolean lazyCompilation){
+			this.nashornLazyCompilation = lazyCompilation;
+			return this;
+		}
+		
+		/**
+		 * Makes Nashorn store the classes which it compiles for the rules and libraries in the given directory, and load 
+		 * them from there rather than compiling the same scripts again, e.g. after the application restarts, which reduces
+		 * the time it takes to warm up.  Nashorn reads the directory from the system property 
+		 * <code>nashorn.persistent.code.cache</code>, which is therefore set while each engine is created, and then 
+		 * restored.  Since system properties are global, any other Nashorn engine which the application creates at the
+		 * same moment also uses the directory.  Use {@link #withPreloadPool(boolean)} to create all of the engines while
+		 * the engine is being built, rather than whenever the pool grows.  Ignored by GraalJS, which has no such cache.
+		 */
+		public Builder withPersistentCodeCache(File directory){
+			this.persistentCodeCache = directory;
+			return this;
+		}
+		
+		/**
+		 * Further options for the script engines, in the syntax of the engine.  For Nashorn, these are command line 
+		 * arguments, e.g. <code>--language=es6</code>.  For GraalJS, they are <code>name=value</code> pairs, e.g. 
+		 * <code>js.ecmascript-version=2020</code>, where those starting with <code>engine.</code> apply to the polyglot
+		 * engine which all of the script engines share, and the rest to each script engine.  The options apply to 
+		 * every script engine in the pool.  Building the engine fails if they are invalid.
+		 */
+		public Builder withScriptEngineOptions(String... options){
+			this.scriptEngineOptions.addAll(Arrays.asList(options));
+			return this;
+		}
+		
+		private ScriptEngineOptions scriptEngineOptions(){
+			return new ScriptEngineOptions(optimisticTypes, nashornLazyCompilation, persistentCodeCache, scriptEngineOptions);
+		}
+		
+		@Override
 		public JavascriptEngine build() throws DuplicateNameException, CompileException, ParseException {
-			return new JavascriptEngine(rules, inputName, throwExceptionIfCompilationFails, poolSize, preloadPool, javascriptFilesToLoad);
+			return new JavascriptEngine(this);
 		}
 	}
 }
\ No newline at end of file
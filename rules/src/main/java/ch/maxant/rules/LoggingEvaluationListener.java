@@ -0,0 +1,55 @@
+package ch.maxant.rules;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An {@link EvaluationListener} which logs every rule which is compiled and every evaluation, 
+ * as the engine used to do itself.  Useful when developing rules, but not recommended in production,
+ * because logging in the evaluation loop is expensive.
+ */
+public class LoggingEvaluationListener implements EvaluationListener {
+
+	private static final Logger log = Logger.getLogger(LoggingEvaluationListener.class.getName());
+
+	private final Level level;
+
+	/** logs at {@link Level#INFO} */
+	public LoggingEvaluationListener() {
+		this(Level.INFO);
+	}
+
+	/** @param level the level at which compilations and evaluations are logged */
+	public LoggingEvaluationListener(Level level) {
+		this.level = level;
+	}
+
+	@Override
+	public void onCompile(Rule rule) {
+		if(log.isLoggable(level)) log.log(level, "added rule: " + rule);
+	}
+
+	@Override
+	public void onCompileFailure(Rule rule, String message) {
+		if(log.isLoggable(level)) log.log(level, "failed to compile rule: " + rule + ": " + message);
+	}
+
+	@Override
+	public void onMatch(Rule rule, Object input, long nanos) {
+		if(log.isLoggable(level)) log.log(level, "matched: " + toString(rule) + " in " + nanos + "ns");
+	}
+
+	@Override
+	public void onNoMatch(Rule rule, Object input, long nanos) {
+		if(log.isLoggable(level)) log.log(level, "unmatched: " + toString(rule) + " in " + nanos + "ns");
+	}
+
+	@Override
+	public void onError(Rule rule, Object input, Exception e, long nanos) {
+		if(log.isLoggable(level)) log.log(level, "failed: " + toString(rule) + " in " + nanos + "ns", e);
+	}
+
+	private String toString(Rule rule) {
+		return rule.getFullyQualifiedName() + "-{" + rule.getExpression() + "}";
+	}
+}
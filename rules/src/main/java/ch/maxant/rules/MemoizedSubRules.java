@@ -0,0 +1,67 @@
+package ch.maxant.rules;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mvel2.MVEL;
+import org.mvel2.integration.VariableResolverFactory;
+
+/**
+ * The rules which other rules reference, when they are evaluated at most once per input rather than
+ * being copied into every rule which references them (see {@link Engine.Builder#withMemoizedSubRules()}).
+ * Each reference is replaced by a variable named after the slot of the referenced rule, which the
+ * {@link InputVariableResolverFactory} resolves by evaluating the rule the first time the variable is read.<br>
+ * <br>
+ * Immutable and thread safe.  The results are held by the per evaluation factory.
+ */
+final class MemoizedSubRules {
+
+	private static final String PREFIX = "__subrule";
+
+	private final Rule[] rules;
+	/** the compiled expressions of {@link #rules}, at the same positions. null, if a rule failed to compile. */
+	private final Serializable[] compiled;
+	private final Map<String, Integer> slotsByVariableName;
+
+	/**
+	 * @param rules the referenced rules, indexed by their slot, whose own references have already been replaced.
+	 * @param compiled their compiled expressions
+	 */
+	MemoizedSubRules(List<Rule> rules, Serializable[] compiled) {
+		this.rules = rules.toArray(new Rule[rules.size()]);
+		this.compiled = compiled;
+		this.slotsByVariableName = new HashMap<String, Integer>();
+		for(int i = 0; i < this.rules.length; i++){
+			slotsByVariableName.put(variableName(i), i);
+		}
+	}
+
+	/** @return the name of the variable which replaces references to the rule in the given slot */
+	static String variableName(int slot) {
+		return PREFIX + slot;
+	}
+
+	/** @return the number of referenced rules */
+	int size() {
+		return rules.length;
+	}
+
+	/** @return the slot of the rule which the given variable refers to, or -1 if it is not the name of such a variable */
+	int slot(String variableName) {
+		Integer slot = slotsByVariableName.get(variableName);
+		return slot == null ? -1 : slot;
+	}
+
+	Object evaluate(int slot, VariableResolverFactory vars) {
+		if(compiled[slot] == null){
+			throw new IllegalStateException("The subrule " + rules[slot].getFullyQualifiedName() + " failed to compile");
+		}
+		return MVEL.executeExpression(compiled[slot], vars);
+	}
+
+	Rule getRule(int slot) {
+		return rules[slot];
+	}
+}
@@ -0,0 +1,47 @@
+package ch.maxant.rules;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.pool2.BaseObjectPool;
+
+/**
+ * Base class of the pools of script engines which this library implements itself, which records how they are used, 
+ * see {@link PoolMetrics}.  The counters are striped, so that recording does not add contention.
+ */
+abstract class MeteredPool<T> extends BaseObjectPool<T> {
+
+	private final StripedCounter borrowed = new StripedCounter();
+	private final StripedCounter borrowWaitNanos = new StripedCounter();
+	private final AtomicLong maxBorrowWaitNanos = new AtomicLong();
+	private final StripedCounter created = new StripedCounter();
+	private final StripedCounter destroyed = new StripedCounter();
+
+	/** @return the maximum number of objects in the pool, or -1 if there is no limit */
+	abstract int getMaxTotal();
+
+	/** records that an object was borrowed, after waiting the given time, including the time taken to create it */
+	protected final void recordBorrow(long waitNanos) {
+		borrowed.increment();
+		if(waitNanos > 0){
+			borrowWaitNanos.add(waitNanos);
+			long max = maxBorrowWaitNanos.get();
+			while(waitNanos > max && !maxBorrowWaitNanos.compareAndSet(max, waitNanos)){
+				max = maxBorrowWaitNanos.get();
+			}
+		}
+	}
+
+	protected final void recordCreate() {
+		created.increment();
+	}
+
+	protected final void recordDestroy() {
+		destroyed.increment();
+	}
+
+	PoolMetrics getMetrics() {
+		long borrowed = this.borrowed.sum();
+		return new PoolMetrics(getNumActive(), getNumIdle(), getMaxTotal(), borrowed, created.sum(), destroyed.sum(), 
+				borrowed == 0 ? 0 : borrowWaitNanos.sum() / borrowed, maxBorrowWaitNanos.get());
+	}
+}
@@ -0,0 +1,276 @@
+package ch.maxant.rules;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * An {@link EvaluationListener} which records how often each rule is evaluated, matches and fails, and a histogram of
+ * how long it takes, so that the rules which never match, or which dominate the latency, can be found.  See
+ * {@link EvaluationMetrics}.  Register it like any other listener, e.g. using
+ * {@link Engine.Builder#withEvaluationListener(EvaluationListener)}, and read the metrics using the methods of this
+ * class, or over JMX, after calling {@link #registerMBean(ObjectName)}.  The metrics of a namespace are those of its
+ * rules, added up.<br>
+ * <br>
+ * The counters of each rule are striped, like those of {@link StripedCounter}, so that threads which evaluate the same
+ * rule concurrently mostly update different cache lines, rather than contending for the same ones.  They are only
+ * added up when they are read.  Each rule takes roughly {@value #SLOTS} longs per stripe, and there are at most
+ * {@value #MAX_STRIPES} stripes.<br>
+ * <br>
+ * Rules are recorded when they are first compiled or evaluated.  Replaced or removed rules are kept, until
+ * {@link #reset()} is called.  The engine measures how long evaluations take only if a listener is registered, so
+ * this listener adds the cost of reading the clock twice per evaluation, as well as that of updating the counters.<br>
+ * <br>
+ * Thread safe.
+ */
+public class MetricsEvaluationListener implements EvaluationListener, MetricsEvaluationListenerMXBean {
+
+	private static final int MATCHES = 0;
+	private static final int ERRORS = 1;
+	private static final int TOTAL_NANOS = 2;
+	private static final int HISTOGRAM = 3;
+	/** longs per rule and stripe */
+	private static final int SLOTS = HISTOGRAM + EvaluationMetrics.BUCKETS;
+
+	/** limits the memory used per rule, since rule sets can contain tens of thousands of rules */
+	private static final int MAX_STRIPES = 4;
+
+	/** the initial size of {@link #table}, a power of two */
+	private static final int INITIAL_CAPACITY = 64;
+
+	/** the counters of a rule, by stripe and then by slot */
+	private static final class Entry {
+		private final Rule rule;
+		private final AtomicLongArray counters;
+		private Entry(Rule rule, AtomicLongArray counters) {
+			this.rule = rule;
+			this.counters = counters;
+		}
+	}
+
+	private final int stripeMask;
+
+	/**
+	 * the entries of the rules, in an open addressing hash table keyed by the identity of the rules, so that recording
+	 * an evaluation neither calls {@link Rule#hashCode()} nor {@link Rule#equals(Object)}, which use all of the fields
+	 * of a rule.  Read without locking.  Entries are only added when a rule is first seen, under the lock of this
+	 * listener, and the table is replaced by a larger copy when it is half full.  A reader which misses an entry which
+	 * is being added takes the lock and finds it.
+	 */
+	private volatile AtomicReferenceArray<Entry> table = new AtomicReferenceArray<Entry>(INITIAL_CAPACITY);
+	/** the number of entries in {@link #table}.  Guarded by this listener. */
+	private int size;
+
+	public MetricsEvaluationListener() {
+		int stripes = 1;
+		while(stripes < MAX_STRIPES && stripes < Runtime.getRuntime().availableProcessors()){
+			stripes <<= 1;
+		}
+		stripeMask = stripes - 1;
+	}
+
+	@Override
+	public void onCompile(Rule rule) {
+		counters(rule);
+	}
+
+	@Override
+	public void onCompileFailure(Rule rule, String message) {
+		//the rule is never evaluated
+	}
+
+	@Override
+	public void onMatch(Rule rule, Object input, long nanos) {
+		record(rule, MATCHES, nanos);
+	}
+
+	@Override
+	public void onNoMatch(Rule rule, Object input, long nanos) {
+		record(rule, -1, nanos);
+	}
+
+	@Override
+	public void onError(Rule rule, Object input, Exception e, long nanos) {
+		record(rule, ERRORS, nanos);
+	}
+
+	/** @param outcome the slot to increment as well as the histogram, or -1 if none */
+	private void record(Rule rule, int outcome, long nanos) {
+		AtomicLongArray c = counters(rule);
+		int base = StripedCounter.stripe(stripeMask) * SLOTS;
+		if(outcome >= 0){
+			c.incrementAndGet(base + outcome);
+		}
+		c.addAndGet(base + TOTAL_NANOS, nanos);
+		c.incrementAndGet(base + HISTOGRAM + EvaluationMetrics.bucket(nanos));
+	}
+
+	private AtomicLongArray counters(Rule rule) {
+		Entry e = find(table, rule);
+		return e != null ? e.counters : add(rule);
+	}
+
+	private static Entry find(AtomicReferenceArray<Entry> table, Rule rule) {
+		int mask = table.length() - 1;
+		for(int i = System.identityHashCode(rule) & mask; ; i = (i + 1) & mask){
+			Entry e = table.get(i);
+			if(e == null || e.rule == rule){
+				return e;
+			}
+		}
+	}
+
+	private synchronized AtomicLongArray add(Rule rule) {
+		AtomicReferenceArray<Entry> t = table;
+		Entry e = find(t, rule);
+		if(e == null){
+			e = new Entry(rule, new AtomicLongArray((stripeMask + 1) * SLOTS));
+			if((size + 1) * 2 > t.length()){
+				AtomicReferenceArray<Entry> larger = new AtomicReferenceArray<Entry>(t.length() * 2);
+				for(int i = 0; i < t.length(); i++){
+					if(t.get(i) != null){
+						insert(larger, t.get(i));
+					}
+				}
+				t = larger;
+			}
+			insert(t, e);
+			size++;
+			table = t;
+		}
+		return e.counters;
+	}
+
+	private static void insert(AtomicReferenceArray<Entry> table, Entry e) {
+		int mask = table.length() - 1;
+		int i = System.identityHashCode(e.rule) & mask;
+		while(table.get(i) != null){
+			i = (i + 1) & mask;
+		}
+		table.set(i, e);
+	}
+
+	/** @return the entries of all rules which have been seen */
+	private List<Entry> entries() {
+		AtomicReferenceArray<Entry> t = table;
+		List<Entry> entries = new ArrayList<Entry>();
+		for(int i = 0; i < t.length(); i++){
+			Entry e = t.get(i);
+			if(e != null){
+				entries.add(e);
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * @return the metrics of every rule, by fully qualified name, ordered by name.  Different versions of a rule, e.g.
+	 * because it was replaced, are added up.
+	 */
+	private Map<String, EvaluationMetrics> snapshot() {
+		Map<String, EvaluationMetrics> metrics = new TreeMap<String, EvaluationMetrics>();
+		for(Entry e : entries()){
+			String name = e.rule.getFullyQualifiedName();
+			EvaluationMetrics m = toMetrics(name, e.counters);
+			EvaluationMetrics previous = metrics.get(name);
+			metrics.put(name, previous == null ? m : previous.plus(name, m));
+		}
+		return metrics;
+	}
+
+	private EvaluationMetrics toMetrics(String name, AtomicLongArray c) {
+		long[] sums = new long[SLOTS];
+		for(int i = 0; i < c.length(); i++){
+			sums[i % SLOTS] += c.get(i);
+		}
+		long[] histogram = new long[EvaluationMetrics.BUCKETS];
+		System.arraycopy(sums, HISTOGRAM, histogram, 0, histogram.length);
+		return new EvaluationMetrics(name, sums[MATCHES], sums[ERRORS], sums[TOTAL_NANOS], histogram);
+	}
+
+	@Override
+	public List<EvaluationMetrics> getRuleMetrics() {
+		return new ArrayList<EvaluationMetrics>(snapshot().values());
+	}
+
+	/** @return the metrics of the rule with the given fully qualified name, or null if it has not been compiled or evaluated */
+	public EvaluationMetrics getRuleMetrics(String fullyQualifiedName) {
+		return snapshot().get(fullyQualifiedName);
+	}
+
+	@Override
+	public List<EvaluationMetrics> getNamespaceMetrics() {
+		Map<String, EvaluationMetrics> namespaces = new TreeMap<String, EvaluationMetrics>();
+		for(Entry e : entries()){
+			String namespace = e.rule.getNamespace();
+			EvaluationMetrics m = toMetrics(namespace, e.counters);
+			EvaluationMetrics previous = namespaces.get(namespace);
+			namespaces.put(namespace, previous == null ? m : previous.plus(namespace, m));
+		}
+		return new ArrayList<EvaluationMetrics>(namespaces.values());
+	}
+
+	/** @return the metrics of the rules in the given namespace, added up, or null if none of its rules have been compiled or evaluated */
+	public EvaluationMetrics getNamespaceMetrics(String namespace) {
+		for(EvaluationMetrics m : getNamespaceMetrics()){
+			if(m.getName().equals(namespace)){
+				return m;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public List<EvaluationMetrics> getSlowestRules(int count) {
+		List<EvaluationMetrics> rules = getRuleMetrics();
+		Collections.sort(rules, new Comparator<EvaluationMetrics>() {
+			@Override
+			public int compare(EvaluationMetrics o1, EvaluationMetrics o2) {
+				return o1.getTotalNanos() < o2.getTotalNanos() ? 1 : (o1.getTotalNanos() == o2.getTotalNanos() ? 0 : -1);
+			}
+		});
+		return rules.subList(0, Math.min(count, rules.size()));
+	}
+
+	@Override
+	public List<EvaluationMetrics> getNeverMatchingRules() {
+		List<EvaluationMetrics> rules = new ArrayList<EvaluationMetrics>();
+		for(EvaluationMetrics m : snapshot().values()){
+			if(m.getEvaluations() > 0 && m.getMatches() == 0){
+				rules.add(m);
+			}
+		}
+		return rules;
+	}
+
+	/** {@inheritDoc}  Evaluations which are being recorded at the same time may be lost, or kept. */
+	@Override
+	public synchronized void reset() {
+		table = new AtomicReferenceArray<Entry>(INITIAL_CAPACITY);
+		size = 0;
+	}
+
+	/**
+	 * Registers this listener with the platform's MBean server, as an MXBean, so that the metrics can be read using
+	 * any JMX client, e.g. JConsole.
+	 * @param name e.g. <code>new ObjectName("ch.maxant.rules:type=Metrics,name=pricing")</code>
+	 * @throws JMException e.g. if another MBean is already registered with the name
+	 */
+	public void registerMBean(ObjectName name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+	}
+
+	/** @throws JMException if no MBean is registered with the name */
+	public void unregisterMBean(ObjectName name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+	}
+}
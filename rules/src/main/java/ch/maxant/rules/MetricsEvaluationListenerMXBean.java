@@ -0,0 +1,25 @@
+package ch.maxant.rules;
+
+import java.util.List;
+
+/**
+ * The management interface of a {@link MetricsEvaluationListener}, see
+ * {@link MetricsEvaluationListener#registerMBean(javax.management.ObjectName)}.
+ */
+public interface MetricsEvaluationListenerMXBean {
+
+	/** @return the metrics of every rule which has been compiled or evaluated, ordered by name */
+	List<EvaluationMetrics> getRuleMetrics();
+
+	/** @return the metrics of the rules of each namespace, added up, ordered by namespace */
+	List<EvaluationMetrics> getNamespaceMetrics();
+
+	/** @return the rules which took the most time altogether, slowest first */
+	List<EvaluationMetrics> getSlowestRules(int count);
+
+	/** @return the rules which have been evaluated, but have never matched, ordered by name */
+	List<EvaluationMetrics> getNeverMatchingRules();
+
+	/** forgets everything recorded so far */
+	void reset();
+}
@@ -0,0 +1,248 @@
+package ch.maxant.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Groups rules by their namespace, so that the engines do not need to match a namespace pattern
+ * against every single rule, every time they are asked to evaluate rules.<br>
+ * <br>
+ * The index is built from the namespaces of the rules, in the order in which the engine evaluates them
+ * (i.e. by priority). A namespace pattern is resolved into the positions of the rules whose namespace
+ * matches it, and the result is cached, so that a pattern is only ever compiled once. Patterns which
+ * are simple literals (e.g. <code>ch\.maxant\.someapp\.tarifs</code>) or literal prefixes
+ * (e.g. <code>ch.maxant.someapp.*</code>) are resolved without using regular expressions at all.<br>
+ * <br>
+ * Instances are immutable, apart from the cache, and thread safe.
+ */
+final class NamespaceIndex {
+
+	/** the default maximum number of patterns whose resolved rules are cached */
+	static final int DEFAULT_MAX_CACHED_PATTERNS = 256;
+
+	/** the distinct namespaces, indexed by their id */
+	private final String[] namespaces;
+
+	/** for each namespace id, the positions of the rules in that namespace, in ascending order */
+	private final int[][] positionsByNamespace;
+
+	/** the positions of all rules, returned when no pattern is given */
+	private final int[] all;
+
+	/** the namespace id of the rule at each position */
+	private final int[] namespaceIds;
+
+	private final int maxCachedPatterns;
+	private final Map<String, int[]> cache = new ConcurrentHashMap<String, int[]>();
+
+	/**
+	 * @param namespacesOfRules the namespace of each rule, in the order in which the engine evaluates the rules.
+	 */
+	NamespaceIndex(List<String> namespacesOfRules) {
+		this(namespacesOfRules, DEFAULT_MAX_CACHED_PATTERNS);
+	}
+
+	NamespaceIndex(List<String> namespacesOfRules, int maxCachedPatterns) {
+		this.maxCachedPatterns = maxCachedPatterns;
+
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		List<List<Integer>> positions = new ArrayList<List<Integer>>();
+		all = new int[namespacesOfRules.size()];
+		namespaceIds = new int[all.length];
+		for(int i = 0; i < all.length; i++){
+			all[i] = i;
+			String namespace = namespacesOfRules.get(i);
+			Integer id = ids.get(namespace);
+			if(id == null){
+				id = ids.size();
+				ids.put(namespace, id);
+				positions.add(new ArrayList<Integer>());
+			}
+			positions.get(id).add(i);
+			namespaceIds[i] = id;
+		}
+
+		namespaces = new String[ids.size()];
+		for(Map.Entry<String, Integer> e : ids.entrySet()){
+			namespaces[e.getValue()] = e.getKey();
+		}
+		positionsByNamespace = new int[namespaces.length][];
+		for(int id = 0; id < namespaces.length; id++){
+			List<Integer> ps = positions.get(id);
+			positionsByNamespace[id] = new int[ps.size()];
+			for(int j = 0; j < ps.size(); j++){
+				positionsByNamespace[id][j] = ps.get(j);
+			}
+		}
+	}
+
+	/**
+	 * @param nameSpacePattern optional. a regular expression which namespaces must match.
+	 * @return the positions of the rules whose namespace matches the pattern, in ascending order,
+	 * or the positions of all rules, if the pattern is null. Callers must not modify the result.
+	 */
+	int[] resolve(String nameSpacePattern) {
+		if(nameSpacePattern == null){
+			return all;
+		}
+		int[] positions = cache.get(nameSpacePattern);
+		if(positions == null){
+			positions = collect(matchingNamespaces(nameSpacePattern));
+			if(cache.size() >= maxCachedPatterns){
+				//evict anything - cheaper than maintaining LRU order on every lookup
+				Iterator<String> it = cache.keySet().iterator();
+				if(it.hasNext()){
+					it.next();
+					it.remove();
+				}
+			}
+			cache.put(nameSpacePattern, positions);
+		}
+		return positions;
+	}
+
+	/**
+	 * @return the positions of the rules in the same namespace as the rule at the given position, including it, in ascending order.
+	 * Callers must not modify the result.
+	 */
+	int[] positionsInNamespaceOf(int position) {
+		return positionsByNamespace[namespaceIds[position]];
+	}
+
+	/** @return the id of the namespace of the rule at the given position, between 0 and {@link #numNamespaces()} */
+	int namespaceIdOf(int position) {
+		return namespaceIds[position];
+	}
+
+	/** @return the number of distinct namespaces */
+	int numNamespaces() {
+		return namespaces.length;
+	}
+
+	private boolean[] matchingNamespaces(String nameSpacePattern) {
+		boolean[] matches = new boolean[namespaces.length];
+		SimplePattern simple = SimplePattern.parse(nameSpacePattern);
+		if(simple != null){
+			for(int id = 0; id < namespaces.length; id++){
+				matches[id] = simple.matches(namespaces[id]);
+			}
+		}else{
+			Pattern pattern = Pattern.compile(nameSpacePattern);
+			for(int id = 0; id < namespaces.length; id++){
+				matches[id] = pattern.matcher(namespaces[id]).matches();
+			}
+		}
+		return matches;
+	}
+
+	private int[] collect(boolean[] matchingNamespaces) {
+		int count = 0;
+		int numMatchingNamespaces = 0;
+		int lastMatch = -1;
+		for(int id = 0; id < matchingNamespaces.length; id++){
+			if(matchingNamespaces[id]){
+				count += positionsByNamespace[id].length;
+				numMatchingNamespaces++;
+				lastMatch = id;
+			}
+		}
+		if(numMatchingNamespaces == 1){
+			return positionsByNamespace[lastMatch];
+		}
+		int[] positions = new int[count];
+		int i = 0;
+		for(int id = 0; id < matchingNamespaces.length; id++){
+			if(matchingNamespaces[id]){
+				for(int p : positionsByNamespace[id]){
+					positions[i++] = p;
+				}
+			}
+		}
+		//merge the namespaces back into the order of evaluation
+		Arrays.sort(positions);
+		return positions;
+	}
+
+	/**
+	 * A pattern made up of literal characters and the wildcard '.', optionally followed by a trailing ".*".
+	 * Matches exactly the same strings as the equivalent regular expression would.
+	 */
+	static final class SimplePattern {
+
+		private static final char ANY = '\uFFFF';
+		private static final String META_CHARACTERS = "[](){}*+?^$|";
+
+		private final char[] chars;
+		private final boolean prefixOnly;
+
+		private SimplePattern(char[] chars, boolean prefixOnly) {
+			this.chars = chars;
+			this.prefixOnly = prefixOnly;
+		}
+
+		/** @return a simple pattern, or null if the regular expression is too complex to be treated as one */
+		static SimplePattern parse(String regex) {
+			boolean prefixOnly = false;
+			if(regex.endsWith(".*") && !regex.endsWith("\\.*")){
+				prefixOnly = true;
+				regex = regex.substring(0, regex.length() - 2);
+			}
+			StringBuilder sb = new StringBuilder(regex.length());
+			for(int i = 0; i < regex.length(); i++){
+				char c = regex.charAt(i);
+				if(c == '\\'){
+					i++;
+					if(i >= regex.length()){
+						return null;
+					}
+					c = regex.charAt(i);
+					if(Character.isLetterOrDigit(c)){
+						//character classes, back references, quoting, etc.
+						return null;
+					}
+					sb.append(c);
+				}else if(c == '.'){
+					sb.append(ANY);
+				}else if(c == ANY || META_CHARACTERS.indexOf(c) > -1){
+					return null;
+				}else{
+					sb.append(c);
+				}
+			}
+			return new SimplePattern(sb.toString().toCharArray(), prefixOnly);
+		}
+
+		boolean matches(String s) {
+			if(s.length() < chars.length || (!prefixOnly && s.length() != chars.length)){
+				return false;
+			}
+			for(int i = 0; i < chars.length; i++){
+				char c = s.charAt(i);
+				if(chars[i] == ANY){
+					if(isLineTerminator(c)){
+						return false;
+					}
+				}else if(chars[i] != c){
+					return false;
+				}
+			}
+			for(int i = chars.length; i < s.length(); i++){
+				if(isLineTerminator(s.charAt(i))){
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/** as defined by {@link Pattern}, since '.' does not match these */
+		private static boolean isLineTerminator(char c) {
+			return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+		}
+	}
+}
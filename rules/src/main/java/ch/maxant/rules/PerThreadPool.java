@@ -0,0 +1,136 @@
+package ch.maxant.rules;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.pool2.PooledObjectFactory;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+
+/**
+ * A pool which keeps one idle object per thread, so that a thread borrows the object which it last returned, without
+ * any locking or contention with other threads.  An object is created when a thread first borrows one, and there is
+ * no maximum number of objects.  Used for script engines which are cheap to create, because they share what they
+ * compile, see {@link JavascriptEngine.Builder#withGraalJs()}.<br>
+ * <br>
+ * If a thread borrows an object while it still has one, e.g. because a rule itself evaluates rules, another object is
+ * created, and one of the two is destroyed when both have been returned.  The idle object of a thread which ends is
+ * simply garbage collected.<br>
+ * <br>
+ * Each thread keeps its idle object in a holder, which the pool also references weakly, so that {@link #close()} can
+ * take the idle objects of all threads out of their holders and destroy them.  Whichever of the owning thread and
+ * {@link #close()} takes the object first, gets to use it, or destroy it.
+ */
+final class PerThreadPool<T> extends MeteredPool<T> {
+
+	private final PooledObjectFactory<T> factory;
+	/** the holder of the current thread's idle object, which is null while the thread uses it */
+	private final ThreadLocal<AtomicReference<T>> idle = new ThreadLocal<AtomicReference<T>>();
+	/** the holders of all threads, so long as the threads are alive */
+	private final Set<Reference<AtomicReference<T>>> holders = Collections.newSetFromMap(new ConcurrentHashMap<Reference<AtomicReference<T>>, Boolean>());
+	/** the references to the holders of threads which ended */
+	private final ReferenceQueue<AtomicReference<T>> collected = new ReferenceQueue<AtomicReference<T>>();
+	private final AtomicInteger numActive = new AtomicInteger();
+
+	PerThreadPool(PooledObjectFactory<T> factory) {
+		this.factory = factory;
+	}
+
+	@Override
+	public T borrowObject() throws Exception {
+		assertOpen();
+		AtomicReference<T> holder = idle.get();
+		T obj = holder == null ? null : holder.getAndSet(null);
+		if(obj == null){
+			long start = System.nanoTime();
+			obj = factory.makeObject().getObject();
+			recordCreate();
+			recordBorrow(System.nanoTime() - start);
+		}else{
+			recordBorrow(0);
+		}
+		numActive.incrementAndGet();
+		return obj;
+	}
+
+	@Override
+	public void returnObject(T obj) throws Exception {
+		numActive.decrementAndGet();
+		AtomicReference<T> holder = idle.get();
+		if(holder == null){
+			holder = new AtomicReference<T>();
+			idle.set(holder);
+			holders.add(new WeakReference<AtomicReference<T>>(holder, collected));
+			for(Reference<? extends AtomicReference<T>> ref = collected.poll(); ref != null; ref = collected.poll()){
+				holders.remove(ref);
+			}
+		}
+		if(isClosed() || !holder.compareAndSet(null, obj)){
+			destroy(obj);
+			return;
+		}
+		if(isClosed()){
+			//closed while the object was being returned, so it may have been missed
+			obj = holder.getAndSet(null);
+			if(obj != null){
+				destroy(obj);
+			}
+		}
+	}
+
+	@Override
+	public void invalidateObject(T obj) throws Exception {
+		numActive.decrementAndGet();
+		destroy(obj);
+	}
+
+	@Override
+	public int getNumIdle() {
+		int numIdle = 0;
+		for(Reference<AtomicReference<T>> ref : holders){
+			AtomicReference<T> holder = ref.get();
+			if(holder != null && holder.get() != null){
+				numIdle++;
+			}
+		}
+		return numIdle;
+	}
+
+	@Override
+	public int getNumActive() {
+		return numActive.get();
+	}
+
+	@Override
+	int getMaxTotal() {
+		return -1;
+	}
+
+	/** destroys the idle objects of all threads.  Objects which are in use are destroyed when they are returned. */
+	@Override
+	public void close() {
+		super.close();
+		for(Reference<AtomicReference<T>> ref : holders){
+			AtomicReference<T> holder = ref.get();
+			T obj = holder == null ? null : holder.getAndSet(null);
+			if(obj != null){
+				try{
+					destroy(obj);
+				}catch(Exception e){
+					//ignore, since the pool is being closed anyway
+				}
+			}
+		}
+		holders.clear();
+	}
+
+	private void destroy(T obj) throws Exception {
+		recordDestroy();
+		factory.destroyObject(new DefaultPooledObject<T>(obj));
+	}
+}
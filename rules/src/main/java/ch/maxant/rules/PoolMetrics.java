@@ -0,0 +1,84 @@
+package ch.maxant.rules;
+
+/**
+ * A snapshot of how the pool of script engines of a {@link JavascriptEngine} is being used, 
+ * see {@link JavascriptEngine#getPoolMetrics()}.  Immutable.
+ */
+public final class PoolMetrics {
+
+	private final int numActive;
+	private final int numIdle;
+	private final int maxTotal;
+	private final long borrowedCount;
+	private final long createdCount;
+	private final long destroyedCount;
+	private final long meanBorrowWaitNanos;
+	private final long maxBorrowWaitNanos;
+
+	public PoolMetrics(int numActive, int numIdle, int maxTotal, long borrowedCount, long createdCount, long destroyedCount, long meanBorrowWaitNanos, long maxBorrowWaitNanos) {
+		this.numActive = numActive;
+		this.numIdle = numIdle;
+		this.maxTotal = maxTotal;
+		this.borrowedCount = borrowedCount;
+		this.createdCount = createdCount;
+		this.destroyedCount = destroyedCount;
+		this.meanBorrowWaitNanos = meanBorrowWaitNanos;
+		this.maxBorrowWaitNanos = maxBorrowWaitNanos;
+	}
+
+	/** @return the number of script engines which are currently borrowed, i.e. evaluating rules */
+	public int getNumActive() {
+		return numActive;
+	}
+
+	/** @return the number of script engines which are currently waiting in the pool */
+	public int getNumIdle() {
+		return numIdle;
+	}
+
+	/** @return the maximum number of script engines, or a negative number if there is no limit */
+	public int getMaxTotal() {
+		return maxTotal;
+	}
+
+	/** @return how often a script engine has been borrowed */
+	public long getBorrowedCount() {
+		return borrowedCount;
+	}
+
+	/** @return how many script engines have been created, including those which have since been destroyed */
+	public long getCreatedCount() {
+		return createdCount;
+	}
+
+	/** @return how many script engines have been destroyed */
+	public long getDestroyedCount() {
+		return destroyedCount;
+	}
+
+	/** 
+	 * @return the mean time spent borrowing a script engine, including the time taken to create it, if there was 
+	 * none left to borrow.  The default pool only measures milliseconds, over its most recent borrows.
+	 */
+	public long getMeanBorrowWaitNanos() {
+		return meanBorrowWaitNanos;
+	}
+
+	/** @return the longest time spent borrowing a script engine.  The default pool only measures milliseconds. */
+	public long getMaxBorrowWaitNanos() {
+		return maxBorrowWaitNanos;
+	}
+
+	/** @return the proportion of the script engines which currently exist which are borrowed, between 0 and 1 */
+	public double getUtilisation() {
+		int total = numActive + numIdle;
+		return total == 0 ? 0.0 : (double)numActive / total;
+	}
+
+	@Override
+	public String toString() {
+		return "PoolMetrics [numActive=" + numActive + ", numIdle=" + numIdle + ", maxTotal=" + maxTotal 
+				+ ", borrowedCount=" + borrowedCount + ", createdCount=" + createdCount + ", destroyedCount=" + destroyedCount
+				+ ", meanBorrowWaitNanos=" + meanBorrowWaitNanos + ", maxBorrowWaitNanos=" + maxBorrowWaitNanos + "]";
+	}
+}
@@ -0,0 +1,743 @@
+package ch.maxant.rules;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mvel2.asm.ClassWriter;
+import org.mvel2.asm.Label;
+import org.mvel2.asm.MethodVisitor;
+import org.mvel2.asm.Opcodes;
+import org.mvel2.asm.Type;
+
+/**
+ * Compiles rules into classes implementing {@link RulePredicate}, so that the JIT can inline the property
+ * reads and comparisons, rather than them being interpreted by MVEL, using reflection.<br>
+ * <br>
+ * Only a subset of MVEL is supported, namely comparisons of properties of the input against constants,
+ * combined using <code>&amp;&amp;</code>, <code>||</code>, <code>!</code> and brackets, e.g.
+ * <code>input.age &lt; 26 &amp;&amp; input.account.type == "X"</code>.  Properties are read using public getters,
+ * which are resolved against the declared input type when the rule is compiled.  Numbers can be compared
+ * with any of the comparison operators, strings and booleans can be compared for equality and any object
+ * can be compared with <code>null</code>.  The results are the same as those which MVEL calculates,
+ * e.g. a null number is neither less than nor greater than anything, and is only equal to another null number.
+ * If a property on the way to the compared one is null, e.g. <code>account</code> in
+ * <code>input.account.type == "X"</code>, the compiled rule throws a {@link NullPointerException}, and the engine
+ * then evaluates the rule using MVEL, so that the failure is reported by MVEL, in the same way as for other rules.<br>
+ * <br>
+ * Rules which use anything else, e.g. statics, variables, method calls or MVEL's <code>or</code> and
+ * <code>and</code> keywords, are not compiled by this class, and the engine leaves them to MVEL.  Those keywords
+ * are not boolean operators, e.g. <code>or</code> returns its first non-empty operand, so that
+ * <code>false or true</code> is <code>false</code>.<br>
+ * <br>
+ * The classes are defined in a class loader belonging to this compiler, so they can be garbage collected
+ * along with the engine which uses them.
+ */
+final class PredicateCompiler implements Opcodes {
+
+	private static final AtomicInteger COUNTER = new AtomicInteger();
+	private static final String PREDICATE = Type.getInternalName(RulePredicate.class);
+	private static final String PACKAGE = "ch/maxant/rules/generated/";
+
+	/** the local variable holding the input, after it has been cast to the input type */
+	private static final int INPUT = 2;
+
+	private final String inputName;
+	private final Class<?> inputType;
+	private final PredicateClassLoader classLoader;
+
+	/**
+	 * @param inputName the name of the input in rules
+	 * @param inputType the type of the input which rules will be evaluated against
+	 */
+	PredicateCompiler(String inputName, Class<?> inputType) {
+		this.inputName = inputName;
+		this.inputType = inputType;
+		this.classLoader = new PredicateClassLoader(inputType);
+	}
+
+	/**
+	 * @param expression the expression of a rule, with any subrules already replaced.
+	 * @return the compiled rule, or null if the expression uses anything which this class does not support,
+	 * in which case it needs to be evaluated by MVEL.
+	 */
+	RulePredicate compile(String expression) {
+		Node node;
+		try{
+			node = new Parser(expression).parse();
+		}catch(UnsupportedExpressionException e){
+			return null;
+		}
+		String name = PACKAGE + "Predicate" + COUNTER.incrementAndGet();
+		Class<?> c = classLoader.define(name.replace('/', '.'), generate(name, node));
+		try {
+			return (RulePredicate) c.newInstance();
+		} catch (InstantiationException e) {
+			throw new IllegalStateException("Failed to instantiate the predicate generated for " + expression, e);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException("Failed to instantiate the predicate generated for " + expression, e);
+		}
+	}
+
+	private byte[] generate(String name, Node node) {
+		//java 6 class files do not need stack map frames, which keeps generating the branches simple
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V1_6, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, name, null, "java/lang/Object", new String[]{PREDICATE});
+
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		mv = cw.visitMethod(ACC_PUBLIC, "test", "(Ljava/lang/Object;)Z", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitTypeInsn(CHECKCAST, Type.getInternalName(inputType));
+		mv.visitVarInsn(ASTORE, INPUT);
+		node.generate(mv, new Locals(INPUT + 1));
+		mv.visitInsn(IRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/** thrown while parsing, if the expression uses something which is not supported */
+	private static final class UnsupportedExpressionException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/** allocates local variables in the generated method */
+	private static final class Locals {
+		private int next;
+		private Locals(int next) {
+			this.next = next;
+		}
+		private int allocate(int size) {
+			int slot = next;
+			next += size;
+			return slot;
+		}
+	}
+
+	/**
+	 * Recursive descent parser for the supported subset, which also resolves the getters,
+	 * so that generating the bytecode cannot fail.
+	 */
+	private final class Parser {
+
+		private final List<String> tokens = new ArrayList<String>();
+		private int position;
+
+		private Parser(String expression) throws UnsupportedExpressionException {
+			tokenize(expression);
+		}
+
+		private Node parse() throws UnsupportedExpressionException {
+			Node node = parseOr();
+			if(position != tokens.size()){
+				throw new UnsupportedExpressionException();
+			}
+			return node;
+		}
+
+		private Node parseOr() throws UnsupportedExpressionException {
+			Node left = parseAnd();
+			while(accept("||")){
+				left = new Or(left, parseAnd());
+			}
+			return left;
+		}
+
+		private Node parseAnd() throws UnsupportedExpressionException {
+			Node left = parseUnary();
+			while(accept("&&")){
+				left = new And(left, parseUnary());
+			}
+			return left;
+		}
+
+		private Node parseUnary() throws UnsupportedExpressionException {
+			if(accept("!")){
+				if("(".equals(peek())){
+					return new Not(parseUnary());
+				}
+				//only allow "!" on its own operand, since MVEL and java disagree on how "!a == b" is evaluated
+				Operand operand = parseOperand();
+				if(isComparison(peek())){
+					throw new UnsupportedExpressionException();
+				}
+				return new Not(toCondition(operand));
+			}
+			if(accept("(")){
+				Node node = parseOr();
+				expect(")");
+				if(isComparison(peek())){
+					throw new UnsupportedExpressionException();
+				}
+				return node;
+			}
+			Operand left = parseOperand();
+			String op = peek();
+			if(!isComparison(op)){
+				return toCondition(left);
+			}
+			position++;
+			Operand right = parseOperand();
+			return compare(left, op, right);
+		}
+
+		private Operand parseOperand() throws UnsupportedExpressionException {
+			String token = next();
+			boolean negative = false;
+			if("-".equals(token)){
+				negative = true;
+				token = next();
+				if(!Character.isDigit(token.charAt(0))){
+					throw new UnsupportedExpressionException();
+				}
+			}
+			char c = token.charAt(0);
+			if(Character.isDigit(c)){
+				try{
+					if(token.indexOf('.') > -1){
+						double d = Double.parseDouble(token);
+						return Operand.number(false, 0L, negative ? -d : d);
+					}
+					if(token.length() > 1 && c == '0'){
+						//MVEL reads integers with a leading zero as octal
+						throw new UnsupportedExpressionException();
+					}
+					long l = Long.parseLong(token);
+					return Operand.number(true, negative ? -l : l, negative ? -l : l);
+				}catch(NumberFormatException e){
+					throw new UnsupportedExpressionException();
+				}
+			}else if(c == '\'' || c == '"'){
+				return Operand.string(token.substring(1, token.length() - 1));
+			}else if("null".equals(token)){
+				return Operand.NULL;
+			}else if("true".equals(token)){
+				return Operand.bool(true);
+			}else if("false".equals(token)){
+				return Operand.bool(false);
+			}else if(inputName.equals(token)){
+				List<Method> getters = new ArrayList<Method>();
+				List<Class<?>> receivers = new ArrayList<Class<?>>();
+				Class<?> type = inputType;
+				checkAccessible(type);
+				while(accept(".")){
+					String property = next();
+					if(!Character.isJavaIdentifierStart(property.charAt(0)) || type.isPrimitive()){
+						throw new UnsupportedExpressionException();
+					}
+					checkAccessible(type);
+					Method getter = getter(type, property);
+					getters.add(getter);
+					receivers.add(type);
+					type = getter.getReturnType();
+				}
+				return Operand.path(getters.toArray(new Method[getters.size()]), receivers.toArray(new Class<?>[receivers.size()]), type);
+			}
+			//statics, variables, keywords, etc. are left to MVEL
+			throw new UnsupportedExpressionException();
+		}
+
+		private Node toCondition(Operand operand) throws UnsupportedExpressionException {
+			if(operand.kind == Operand.Kind.BOOLEAN){
+				return new Constant(operand.bool);
+			}else if(operand.kind == Operand.Kind.PATH && operand.type == boolean.class){
+				return new BooleanPath(operand);
+			}
+			throw new UnsupportedExpressionException();
+		}
+
+		private Node compare(Operand left, String op, Operand right) throws UnsupportedExpressionException {
+			if(left.kind != Operand.Kind.PATH && right.kind != Operand.Kind.PATH){
+				throw new UnsupportedExpressionException();
+			}
+			boolean equality = "==".equals(op) || "!=".equals(op);
+			boolean equal = "==".equals(op);
+			Operand path = left.kind == Operand.Kind.PATH ? left : right;
+			Operand other = path == left ? right : left;
+			if(equality && other.kind == Operand.Kind.NULL && !path.type.isPrimitive()){
+				return new NullCheck(path, equal);
+			}else if(equality && other.kind == Operand.Kind.STRING && path.type == String.class){
+				return new StringEquals(path, other.string, equal);
+			}else if(equality && other.kind == Operand.Kind.BOOLEAN && (path.type == boolean.class || path.type == Boolean.class)){
+				return new BooleanEquals(path, other.bool, equal);
+			}else if(left.isNumeric() && right.isNumeric()){
+				return new NumericComparison(left, op, right);
+			}
+			throw new UnsupportedExpressionException();
+		}
+
+		private boolean isComparison(String token) {
+			return "==".equals(token) || "!=".equals(token) || "<".equals(token) || "<=".equals(token) || ">".equals(token) || ">=".equals(token);
+		}
+
+		private String peek() {
+			return position < tokens.size() ? tokens.get(position) : null;
+		}
+
+		private String next() throws UnsupportedExpressionException {
+			if(position >= tokens.size()){
+				throw new UnsupportedExpressionException();
+			}
+			return tokens.get(position++);
+		}
+
+		private boolean accept(String token) {
+			if(token.equals(peek())){
+				position++;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(String token) throws UnsupportedExpressionException {
+			if(!accept(token)){
+				throw new UnsupportedExpressionException();
+			}
+		}
+
+		private void tokenize(String expression) throws UnsupportedExpressionException {
+			int i = 0;
+			while(i < expression.length()){
+				char c = expression.charAt(i);
+				int start = i;
+				if(Character.isWhitespace(c)){
+					i++;
+					continue;
+				}else if(Character.isJavaIdentifierStart(c)){
+					while(i < expression.length() && Character.isJavaIdentifierPart(expression.charAt(i))){
+						i++;
+					}
+				}else if(Character.isDigit(c)){
+					while(i < expression.length() && (Character.isDigit(expression.charAt(i)) || expression.charAt(i) == '.')){
+						i++;
+					}
+					if(i < expression.length() && Character.isJavaIdentifierPart(expression.charAt(i))){
+						//e.g. 1L, 2.5d, 10B
+						throw new UnsupportedExpressionException();
+					}
+				}else if(c == '\'' || c == '"'){
+					i = expression.indexOf(c, i + 1);
+					if(i < 0 || expression.substring(start, i).indexOf('\\') > -1){
+						throw new UnsupportedExpressionException();
+					}
+					i++;
+				}else if(expression.startsWith("&&", i) || expression.startsWith("||", i) || expression.startsWith("==", i)
+						|| expression.startsWith("!=", i) || expression.startsWith("<=", i) || expression.startsWith(">=", i)){
+					i += 2;
+				}else if("!<>().-".indexOf(c) > -1){
+					i++;
+				}else{
+					throw new UnsupportedExpressionException();
+				}
+				tokens.add(expression.substring(start, i));
+			}
+		}
+	}
+
+	private static void checkAccessible(Class<?> type) throws UnsupportedExpressionException {
+		//the generated classes live in a different package and class loader
+		if(!type.isPrimitive() && !Modifier.isPublic(type.getModifiers())){
+			throw new UnsupportedExpressionException();
+		}
+	}
+
+	/** resolves a getter in the same way as MVEL, i.e. getX, or isX for booleans */
+	private static Method getter(Class<?> type, String property) throws UnsupportedExpressionException {
+		String capitalised = Character.toUpperCase(property.charAt(0)) + property.substring(1);
+		Method m = publicMethod(type, "get" + capitalised);
+		if(m == null){
+			m = publicMethod(type, "is" + capitalised);
+			if(m != null && m.getReturnType() != boolean.class && m.getReturnType() != Boolean.class){
+				m = null;
+			}
+		}
+		if(m == null || m.getReturnType() == void.class || Modifier.isStatic(m.getModifiers())){
+			//maybe a field, a map or something else which MVEL can handle
+			throw new UnsupportedExpressionException();
+		}
+		return m;
+	}
+
+	private static Method publicMethod(Class<?> type, String name) {
+		try {
+			return type.getMethod(name);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/** a constant or a path of properties starting at the input */
+	private static final class Operand {
+
+		enum Kind { PATH, NUMBER, STRING, BOOLEAN, NULL }
+
+		private static final Operand NULL = new Operand(Kind.NULL);
+
+		private final Kind kind;
+		private Method[] getters;
+		/** the type on which each getter is called, which is public, unlike the class declaring the getter, perhaps */
+		private Class<?>[] receivers;
+		private Class<?> type;
+		private boolean integral;
+		private long longValue;
+		private double doubleValue;
+		private String string;
+		private boolean bool;
+
+		private Operand(Kind kind) {
+			this.kind = kind;
+		}
+
+		private static Operand path(Method[] getters, Class<?>[] receivers, Class<?> type) {
+			Operand o = new Operand(Kind.PATH);
+			o.getters = getters;
+			o.receivers = receivers;
+			o.type = type;
+			o.integral = type == int.class || type == long.class || type == short.class || type == byte.class
+					|| type == Integer.class || type == Long.class || type == Short.class || type == Byte.class;
+			return o;
+		}
+
+		private static Operand number(boolean integral, long longValue, double doubleValue) {
+			Operand o = new Operand(Kind.NUMBER);
+			o.integral = integral;
+			o.longValue = longValue;
+			o.doubleValue = doubleValue;
+			return o;
+		}
+
+		private static Operand string(String string) {
+			Operand o = new Operand(Kind.STRING);
+			o.string = string;
+			return o;
+		}
+
+		private static Operand bool(boolean bool) {
+			Operand o = new Operand(Kind.BOOLEAN);
+			o.bool = bool;
+			return o;
+		}
+
+		private boolean isNumeric() {
+			if(kind == Kind.NUMBER){
+				return true;
+			}
+			return kind == Kind.PATH && (integral || type == double.class || type == float.class || type == Double.class || type == Float.class);
+		}
+
+		/** leaves the value of the path on the stack */
+		private void generatePath(MethodVisitor mv) {
+			mv.visitVarInsn(ALOAD, INPUT);
+			for(int i = 0; i < getters.length; i++){
+				Class<?> receiver = receivers[i];
+				mv.visitMethodInsn(receiver.isInterface() ? INVOKEINTERFACE : INVOKEVIRTUAL, Type.getInternalName(receiver),
+						getters[i].getName(), Type.getMethodDescriptor(getters[i]), receiver.isInterface());
+			}
+		}
+	}
+
+	private abstract static class Node {
+		/** leaves 1 on the stack if the node is true, otherwise 0 */
+		abstract void generate(MethodVisitor mv, Locals locals);
+	}
+
+	private static void push(MethodVisitor mv, boolean b) {
+		mv.visitInsn(b ? ICONST_1 : ICONST_0);
+	}
+
+	private static void negate(MethodVisitor mv) {
+		mv.visitInsn(ICONST_1);
+		mv.visitInsn(IXOR);
+	}
+
+	private static final class Constant extends Node {
+		private final boolean value;
+		private Constant(boolean value) {
+			this.value = value;
+		}
+		@Override
+		void generate(MethodVisitor mv, Locals locals) {
+			push(mv, value);
+		}
+	}
+
+	private static final class And extends Node {
+		private final Node left;
+		private final Node right;
+		private And(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+		@Override
+		void generate(MethodVisitor mv, Locals locals) {
+			Label isFalse = new Label();
+			Label end = new Label();
+			left.generate(mv, locals);
+			mv.visitJumpInsn(IFEQ, isFalse);
+			right.generate(mv, locals);
+			mv.visitJumpInsn(GOTO, end);
+			mv.visitLabel(isFalse);
+			push(mv, false);
+			mv.visitLabel(end);
+		}
+	}
+
+	private static final class Or extends Node {
+		private final Node left;
+		private final Node right;
+		private Or(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+		@Override
+		void generate(MethodVisitor mv, Locals locals) {
+			Label isTrue = new Label();
+			Label end = new Label();
+			left.generate(mv, locals);
+			mv.visitJumpInsn(IFNE, isTrue);
+			right.generate(mv, locals);
+			mv.visitJumpInsn(GOTO, end);
+			mv.visitLabel(isTrue);
+			push(mv, true);
+			mv.visitLabel(end);
+		}
+	}
+
+	private static final class Not extends Node {
+		private final Node node;
+		private Not(Node node) {
+			this.node = node;
+		}
+		@Override
+		void generate(MethodVisitor mv, Locals locals) {
+			node.generate(mv, locals);
+			negate(mv);
+		}
+	}
+
+	/** a path to a primitive boolean */
+	private static final class BooleanPath extends Node {
+		private final Operand path;
+		private BooleanPath(Operand path) {
+			this.path = path;
+		}
+		@Override
+		void generate(MethodVisitor mv, Locals locals) {
+			path.generatePath(mv);
+		}
+	}
+
+	private static final class NullCheck extends Node {
+		private final Operand path;
+		private final boolean equal;
+		private NullCheck(Operand path, boolean equal) {
+			this.path = path;
+			this.equal = equal;
+		}
+		@Override
+		void generate(MethodVisitor mv, Locals locals) {
+			Label isNull = new Label();
+			Label end = new Label();
+			path.generatePath(mv);
+			mv.visitJumpInsn(IFNULL, isNull);
+			push(mv, !equal);
+			mv.visitJumpInsn(GOTO, end);
+			mv.visitLabel(isNull);
+			push(mv, equal);
+			mv.visitLabel(end);
+		}
+	}
+
+	private static final class StringEquals extends Node {
+		private final Operand path;
+		private final String value;
+		private final boolean equal;
+		private StringEquals(Operand path, String value, boolean equal) {
+			this.path = path;
+			this.value = value;
+			this.equal = equal;
+		}
+		@Override
+		void generate(MethodVisitor mv, Locals locals) {
+			//constant first, so that a null property is simply not equal
+			mv.visitLdcInsn(value);
+			path.generatePath(mv);
+			mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "equals", "(Ljava/lang/Object;)Z", false);
+			if(!equal){
+				negate(mv);
+			}
+		}
+	}
+
+	private static final class BooleanEquals extends Node {
+		private final Operand path;
+		private final boolean value;
+		private final boolean equal;
+		private BooleanEquals(Operand path, boolean value, boolean equal) {
+			this.path = path;
+			this.value = value;
+			this.equal = equal;
+		}
+		@Override
+		void generate(MethodVisitor mv, Locals locals) {
+			Label end = new Label();
+			Label isNull = new Label();
+			path.generatePath(mv);
+			if(path.type == Boolean.class){
+				int slot = locals.allocate(1);
+				mv.visitVarInsn(ASTORE, slot);
+				mv.visitVarInsn(ALOAD, slot);
+				mv.visitJumpInsn(IFNULL, isNull);
+				mv.visitVarInsn(ALOAD, slot);
+				mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z", false);
+			}
+			if(value != equal){
+				negate(mv);
+			}
+			if(path.type == Boolean.class){
+				mv.visitJumpInsn(GOTO, end);
+				mv.visitLabel(isNull);
+				//like MVEL, null is not equal to either true or false
+				push(mv, !equal);
+				mv.visitLabel(end);
+			}
+		}
+	}
+
+	/**
+	 * Compares two numbers, as longs if both are integral, otherwise as doubles.
+	 * Like MVEL, a null number is only equal to another null number, and unequal to anything else.
+	 */
+	private static final class NumericComparison extends Node {
+		private final Operand left;
+		private final String op;
+		private final Operand right;
+		private final boolean integral;
+		private NumericComparison(Operand left, String op, Operand right) {
+			this.left = left;
+			this.op = op;
+			this.right = right;
+			this.integral = left.integral && right.integral;
+		}
+		@Override
+		void generate(MethodVisitor mv, Locals locals) {
+			Label isNull = new Label();
+			Label isTrue = new Label();
+			Label end = new Label();
+			boolean bothNullable = isNullable(left) && isNullable(right);
+			Label leftIsNull = bothNullable ? new Label() : isNull;
+
+			//evaluate both sides first, so that checking for null happens with an empty stack
+			int leftSlot = store(mv, left, locals);
+			int rightSlot = store(mv, right, locals);
+			checkNull(mv, left, leftSlot, leftIsNull);
+			checkNull(mv, right, rightSlot, isNull);
+			load(mv, left, leftSlot);
+			load(mv, right, rightSlot);
+
+			if(integral){
+				mv.visitInsn(LCMP);
+			}else{
+				//like java, comparisons involving NaN are false
+				mv.visitInsn("<".equals(op) || "<=".equals(op) ? DCMPG : DCMPL);
+			}
+			int jump = "==".equals(op) ? IFEQ : "!=".equals(op) ? IFNE : "<".equals(op) ? IFLT : "<=".equals(op) ? IFLE : ">".equals(op) ? IFGT : IFGE;
+			mv.visitJumpInsn(jump, isTrue);
+			push(mv, false);
+			mv.visitJumpInsn(GOTO, end);
+			mv.visitLabel(isTrue);
+			push(mv, true);
+			mv.visitJumpInsn(GOTO, end);
+			if(bothNullable){
+				//like MVEL, two null numbers are equal, but neither less nor greater than each other
+				mv.visitLabel(leftIsNull);
+				mv.visitVarInsn(ALOAD, rightSlot);
+				mv.visitJumpInsn(IFNONNULL, isNull);
+				push(mv, "==".equals(op));
+				mv.visitJumpInsn(GOTO, end);
+			}
+			mv.visitLabel(isNull);
+			push(mv, "!=".equals(op));
+			mv.visitLabel(end);
+		}
+
+		/** @return the slot holding the value of a path, converted to a long or double if it is primitive, or -1 for a constant */
+		private int store(MethodVisitor mv, Operand operand, Locals locals) {
+			if(operand.kind != Operand.Kind.PATH){
+				return -1;
+			}
+			operand.generatePath(mv);
+			Class<?> type = operand.type;
+			if(!type.isPrimitive()){
+				int slot = locals.allocate(1);
+				mv.visitVarInsn(ASTORE, slot);
+				return slot;
+			}
+			if(type == long.class){
+				if(!integral){
+					mv.visitInsn(L2D);
+				}
+			}else if(type == float.class){
+				mv.visitInsn(F2D);
+			}else if(type != double.class){
+				mv.visitInsn(integral ? I2L : I2D);
+			}
+			int slot = locals.allocate(2);
+			mv.visitVarInsn(integral ? LSTORE : DSTORE, slot);
+			return slot;
+		}
+
+		private boolean isNullable(Operand operand) {
+			return operand.kind == Operand.Kind.PATH && !operand.type.isPrimitive();
+		}
+
+		private void checkNull(MethodVisitor mv, Operand operand, int slot, Label isNull) {
+			if(isNullable(operand)){
+				mv.visitVarInsn(ALOAD, slot);
+				mv.visitJumpInsn(IFNULL, isNull);
+			}
+		}
+
+		private void load(MethodVisitor mv, Operand operand, int slot) {
+			if(operand.kind != Operand.Kind.PATH){
+				if(integral){
+					mv.visitLdcInsn(Long.valueOf(operand.longValue));
+				}else{
+					mv.visitLdcInsn(Double.valueOf(operand.kind == Operand.Kind.NUMBER && operand.integral ? operand.longValue : operand.doubleValue));
+				}
+			}else if(operand.type.isPrimitive()){
+				mv.visitVarInsn(integral ? LLOAD : DLOAD, slot);
+			}else{
+				mv.visitVarInsn(ALOAD, slot);
+				mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Number", integral ? "longValue" : "doubleValue", integral ? "()J" : "()D", false);
+			}
+		}
+	}
+
+	/** defines the generated classes, which need to see both the input type and this library */
+	private static final class PredicateClassLoader extends ClassLoader {
+		private PredicateClassLoader(Class<?> inputType) {
+			super(inputType.getClassLoader() == null ? RulePredicate.class.getClassLoader() : inputType.getClassLoader());
+		}
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			//the input types class loader might not be able to see this library
+			return RulePredicate.class.getClassLoader().loadClass(name);
+		}
+		private synchronized Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
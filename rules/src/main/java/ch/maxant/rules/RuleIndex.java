@@ -0,0 +1,296 @@
+package ch.maxant.rules;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.mvel2.MVEL;
+import org.mvel2.integration.VariableResolverFactory;
+
+/**
+ * Selects the rules which can possibly match an input, based on properties of the input which rules compare with
+ * constants, so that the engine only needs to evaluate those, rather than every rule in a namespace.<br>
+ * <br>
+ * Indexes only look at rules whose expressions are conjunctions, since each of the terms must then be true for
+ * the rule to match.  The expressions are analysed conservatively: anything which the index does not understand,
+ * or which might have side effects, means that the rule is not indexed, and so is always a candidate.<br>
+ * <br>
+ * Implementations are immutable and thread safe.
+ */
+abstract class RuleIndex {
+
+	protected static final int[] NONE = new int[0];
+
+	/** returned by {@link #read(Serializable, VariableResolverFactory)} if the property cannot be read */
+	protected static final Object UNREADABLE = new Object();
+
+	/** the total number of rules */
+	private final int numRules;
+
+	protected RuleIndex(int numRules) {
+		this.numRules = numRules;
+	}
+
+	/**
+	 * @param candidates the positions of the rules selected so far, in ascending order.
+	 * @param vars the variables with which the rules will be evaluated, used to read properties of the input.
+	 * @return the positions of those candidates which can possibly match the input, in ascending order.
+	 * Callers must not modify the result.
+	 */
+	abstract int[] select(int[] candidates, VariableResolverFactory vars);
+
+	/**
+	 * @param selected the positions of the rules which can possibly match, in groups which are each in ascending order,
+	 * 			and which together contain each rule at most once.
+	 * @param candidates the positions of the rules selected so far, in ascending order.
+	 * @return those positions which are also candidates, in ascending order.  May be one of the given arrays, 
+	 * 			so callers must not modify it.
+	 */
+	protected final int[] restrict(int[][] selected, int[] candidates) {
+		int count = 0;
+		int nonEmpty = -1;
+		for(int g = 0; g < selected.length; g++){
+			count += selected[g].length;
+			if(selected[g].length > 0){
+				nonEmpty = g;
+			}
+		}
+		if(count == numRules){
+			//nothing could be excluded
+			return candidates;
+		}
+		if(count == 0){
+			return NONE;
+		}
+		boolean allCandidates = candidates.length == numRules;
+		if(allCandidates && count == selected[nonEmpty].length){
+			//only one group, which is already in order
+			return selected[nonEmpty];
+		}
+
+		//merge the groups back into the order of evaluation, which they are each already in, 
+		//keeping only the candidates, which are in the same order
+		int[] positions = new int[allCandidates ? count : Math.min(count, candidates.length)];
+		int[] next = new int[selected.length];
+		int n = 0;
+		int c = 0;
+		while(true){
+			int group = -1;
+			int smallest = Integer.MAX_VALUE;
+			for(int g = 0; g < selected.length; g++){
+				if(next[g] < selected[g].length && selected[g][next[g]] < smallest){
+					smallest = selected[g][next[g]];
+					group = g;
+				}
+			}
+			if(group < 0){
+				break;
+			}
+			next[group]++;
+			if(!allCandidates){
+				while(c < candidates.length && candidates[c] < smallest){
+					c++;
+				}
+				if(c == candidates.length){
+					break;
+				}
+				if(candidates[c] != smallest){
+					continue;
+				}
+			}
+			positions[n++] = smallest;
+		}
+		return n == positions.length ? positions : Arrays.copyOf(positions, n);
+	}
+
+	/**
+	 * @return the value of the compiled property, or {@link #UNREADABLE}, e.g. if part of the path is null.
+	 * In that case, evaluating the rules reports the problem, as usual.
+	 */
+	protected static Object read(Serializable property, VariableResolverFactory vars) {
+		try{
+			return MVEL.executeExpression(property, vars);
+		}catch(RuntimeException e){
+			return UNREADABLE;
+		}
+	}
+
+	/**
+	 * Chooses the property by which to index each rule, namely the one which the most rules constrain,
+	 * so that fewer properties need to be read from each input.
+	 * @param constraintsOfRules for each rule, its constraints by the path of the property which they apply to.
+	 * 			null or empty, if the rule is not indexed.
+	 * @return for each rule, the path of the chosen property, or null if the rule is not indexed.
+	 */
+	protected static <T> String[] choosePaths(List<Map<String, T>> constraintsOfRules) {
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for(Map<String, T> constraints : constraintsOfRules){
+			if(constraints != null){
+				for(String path : constraints.keySet()){
+					Integer count = counts.get(path);
+					counts.put(path, count == null ? 1 : count + 1);
+				}
+			}
+		}
+		String[] paths = new String[constraintsOfRules.size()];
+		for(int i = 0; i < paths.length; i++){
+			Map<String, T> constraints = constraintsOfRules.get(i);
+			if(constraints != null){
+				for(String path : constraints.keySet()){
+					if(paths[i] == null || counts.get(path) > counts.get(paths[i])){
+						paths[i] = path;
+					}
+				}
+			}
+		}
+		return paths;
+	}
+
+	/** @return a pattern matching the path of a property of the input, e.g. <code>input.person.age</code> */
+	protected static String pathPattern(String inputName) {
+		return "(" + Pattern.quote(inputName) + "(?:\\.[A-Za-z_$][A-Za-z0-9_$]*)+)";
+	}
+
+	/**
+	 * @return the terms of the expression, all of which must be true for the expression to be true, with terms
+	 * in brackets which are conjunctions themselves, like referenced rules, being split further.
+	 * null if the expression is not a conjunction, or might have side effects, in which case the rule cannot be indexed.
+	 */
+	static List<String> terms(String expression) {
+		if(!isFreeOfStatementsAndAssignments(expression)){
+			return null;
+		}
+		List<String> conjuncts = splitConjunction(expression);
+		if(conjuncts == null){
+			return null;
+		}
+		List<String> terms = new ArrayList<String>();
+		addTerms(conjuncts, terms);
+		return terms;
+	}
+
+	private static void addTerms(List<String> conjuncts, List<String> terms) {
+		for(String conjunct : conjuncts){
+			String trimmed = conjunct.trim();
+			if(isEnclosedInBrackets(trimmed)){
+				List<String> inner = splitConjunction(trimmed.substring(1, trimmed.length() - 1));
+				if(inner != null){
+					addTerms(inner, terms);
+					continue;
+				}
+			}
+			terms.add(trimmed);
+		}
+	}
+
+	/**
+	 * @return the terms of the expression if it is a conjunction of them, or a list containing just the expression,
+	 * if it contains no top level logical operator at all.  null, if it contains other top level operators which
+	 * bind less strongly than comparisons, since the terms might then not all need to be true.
+	 */
+	private static List<String> splitConjunction(String expression) {
+		List<String> conjuncts = new ArrayList<String>();
+		int depth = 0;
+		int start = 0;
+		for(int i = 0; i < expression.length(); i++){
+			char c = expression.charAt(i);
+			if(c == '"' || c == '\''){
+				i = endOfLiteral(expression, i);
+			}else if(c == '(' || c == '['){
+				depth++;
+			}else if(c == ')' || c == ']'){
+				depth--;
+			}else if(depth == 0){
+				if(c == '&' && i + 1 < expression.length() && expression.charAt(i + 1) == '&'){
+					conjuncts.add(expression.substring(start, i));
+					i++;
+					start = i + 1;
+				}else if(c == '&' || c == '|' || c == '?' || c == ':'){
+					return null;
+				}else if(Character.isJavaIdentifierStart(c)){
+					int end = i + 1;
+					while(end < expression.length() && Character.isJavaIdentifierPart(expression.charAt(end))){
+						end++;
+					}
+					String word = expression.substring(i, end);
+					if(word.equals("or") || word.equals("and")){
+						//the precedence of these is not worth relying on
+						return null;
+					}
+					i = end - 1;
+				}
+			}
+		}
+		conjuncts.add(expression.substring(start));
+		return conjuncts;
+	}
+
+	/** @return true if the expression contains no blocks, statement separators or assignments, outside of string literals */
+	private static boolean isFreeOfStatementsAndAssignments(String expression) {
+		for(int i = 0; i < expression.length(); i++){
+			char c = expression.charAt(i);
+			if(c == '"' || c == '\''){
+				i = endOfLiteral(expression, i);
+			}else if(c == ';' || c == '{' || c == '}'){
+				return false;
+			}else if(c == '='){
+				char previous = i > 0 ? expression.charAt(i - 1) : ' ';
+				char next = i + 1 < expression.length() ? expression.charAt(i + 1) : ' ';
+				if(next == '='){
+					i++; //equality
+				}else if(previous != '!' && previous != '<' && previous != '>' && previous != '~'){
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/** @return the position of the quote which ends the literal starting at the given position */
+	private static int endOfLiteral(String expression, int start) {
+		char quote = expression.charAt(start);
+		for(int i = start + 1; i < expression.length(); i++){
+			char c = expression.charAt(i);
+			if(c == '\\'){
+				i++;
+			}else if(c == quote){
+				return i;
+			}
+		}
+		return expression.length();
+	}
+
+	/** @return true if the brackets at the start and end of the expression belong together */
+	private static boolean isEnclosedInBrackets(String expression) {
+		if(expression.length() < 2 || expression.charAt(0) != '(' || expression.charAt(expression.length() - 1) != ')'){
+			return false;
+		}
+		int depth = 0;
+		for(int i = 0; i < expression.length() - 1; i++){
+			char c = expression.charAt(i);
+			if(c == '"' || c == '\''){
+				i = endOfLiteral(expression, i);
+			}else if(c == '('){
+				depth++;
+			}else if(c == ')'){
+				depth--;
+				if(depth == 0){
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	protected static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+		for(int i = 0; i < array.length; i++){
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+}
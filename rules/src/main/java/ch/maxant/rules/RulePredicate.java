@@ -0,0 +1,17 @@
+package ch.maxant.rules;
+
+/**
+ * A rule which has been compiled into a class of its own, see {@link Engine.Builder#withBytecodeCompilation(Class)}.<br>
+ * <br>
+ * Implemented by the classes which the engine generates.  It is only public so that they can implement it,
+ * and is not intended to be implemented or used by applications.
+ */
+public interface RulePredicate {
+
+	/**
+	 * @param input the input, which must be an instance of the input type which the rule was compiled against.
+	 * @return true if the rule matches the input.
+	 */
+	boolean test(Object input);
+
+}
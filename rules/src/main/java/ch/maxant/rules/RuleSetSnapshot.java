@@ -0,0 +1,209 @@
+package ch.maxant.rules;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The rules of an engine, after their subrules have been resolved and they have been compiled, written to a file so
+ * that an engine which is built with the same rules and settings, e.g. when the application restarts, can use them
+ * rather than checking, resolving and compiling the rules again.  See {@link Engine.Builder#withSnapshot(File)}.<br>
+ * <br>
+ * The file starts with a header containing a magic number, the version of the format and the key, i.e. a hash of the
+ * rules and settings.  The header is read on its own, and the rest of the file is only memory mapped and deserialized
+ * if the key matches, since a mapped file cannot be replaced on some platforms, until the mapping is garbage
+ * collected.  The rest contains the resolved expressions and the expressions compiled by MVEL, which are only
+ * {@link Serializable}, using Java serialization.
+ */
+final class RuleSetSnapshot implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger log = Logger.getLogger(RuleSetSnapshot.class.getName());
+
+	private static final int MAGIC = 0x4d585253; //"MXRS"
+
+	/** must be incremented whenever the contents or the way that the key is calculated change */
+	static final int FORMAT_VERSION = 1;
+
+	/** for each rule, in the order in which they were given to the engine, its resolved expression, or null if it has no references */
+	final String[] resolvedExpressions;
+	/** when memoizing subrules, the positions of the referenced rules in the order in which the rules were given, indexed by slot */
+	final int[] referencedRules;
+	/** the compiled expressions of the rules, by their resolved expressions */
+	final Map<String, Serializable> compiledRules;
+	/** the compiled expressions of the referenced rules, by their resolved expressions */
+	final Map<String, Serializable> compiledSubRules;
+
+	RuleSetSnapshot(String[] resolvedExpressions, int[] referencedRules, Map<String, Serializable> compiledRules, Map<String, Serializable> compiledSubRules) {
+		this.resolvedExpressions = resolvedExpressions;
+		this.referencedRules = referencedRules;
+		this.compiledRules = compiledRules;
+		this.compiledSubRules = compiledSubRules;
+	}
+
+	/**
+	 * @return the snapshot in the file, or null if there is no such file, it was written for different rules or settings,
+	 * or it cannot be read, e.g. because it was written by a different version of the libraries.
+	 */
+	static RuleSetSnapshot read(File file, byte[] key) {
+		if(!file.isFile()){
+			return null;
+		}
+		RandomAccessFile raf = null;
+		try{
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(12);
+			if(!readFully(channel, header) || header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION){
+				log.info("Ignoring snapshot " + file + " since it was written in a different format");
+				return null;
+			}
+			int keyLength = header.getInt();
+			if(keyLength < 0 || keyLength > channel.size() - channel.position()){
+				log.info("Ignoring snapshot " + file + " since it is incomplete");
+				return null;
+			}
+			ByteBuffer actual = ByteBuffer.allocate(keyLength);
+			if(!readFully(channel, actual) || !Arrays.equals(key, actual.array())){
+				log.info("Ignoring snapshot " + file + " since it was written for different rules or settings");
+				return null;
+			}
+			ByteBuffer body = channel.map(FileChannel.MapMode.READ_ONLY, channel.position(), channel.size() - channel.position());
+			ObjectInputStream in = new ObjectInputStream(new ByteBufferInputStream(body));
+			return (RuleSetSnapshot) in.readObject();
+		}catch(Exception e){
+			log.log(Level.WARNING, "Ignoring snapshot " + file + " since it cannot be read", e);
+			return null;
+		}finally{
+			close(raf);
+		}
+	}
+
+	/** reads until the buffer is full, and flips it, ready to be read.  @return false if the end of the file came first */
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()){
+			if(channel.read(buffer) < 0){
+				return false;
+			}
+		}
+		buffer.flip();
+		return true;
+	}
+
+	/**
+	 * Writes the snapshot to a temporary file, which then replaces the given one, so that engines reading the file
+	 * never see half of it.
+	 * @return true if the snapshot was written, otherwise the problem is logged, since the engine works without it.
+	 */
+	boolean write(File file, byte[] key) {
+		File tmp = new File(file.getPath() + ".tmp");
+		OutputStream os = null;
+		try{
+			os = new FileOutputStream(tmp);
+			DataOutputStream out = new DataOutputStream(os);
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(key.length);
+			out.write(key);
+			ObjectOutputStream oos = new ObjectOutputStream(out);
+			oos.writeObject(this);
+			oos.flush();
+			os.close();
+			os = null;
+			if(!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))){
+				throw new IOException("Unable to rename " + tmp + " to " + file);
+			}
+			return true;
+		}catch(IOException e){
+			//e.g. a NotSerializableException, since a compiled expression refers to a method
+			log.log(Level.WARNING, "Failed to write snapshot " + file, e);
+			close(os);
+			tmp.delete();
+			return false;
+		}
+	}
+
+	/** @return a new digest which calculates keys */
+	static MessageDigest newDigest() {
+		try{
+			return MessageDigest.getInstance("SHA-256");
+		}catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException(e); //every java platform has to support SHA-256
+		}
+	}
+
+	/** adds the string to the key, such that different sequences of strings always give different input to the digest */
+	static void update(MessageDigest digest, String s) {
+		if(s == null){
+			updateInt(digest, -1);
+			return;
+		}
+		byte[] bytes;
+		try{
+			bytes = s.getBytes("UTF-8");
+		}catch(IOException e){
+			throw new IllegalStateException(e); //every java platform has to support UTF-8
+		}
+		updateInt(digest, bytes.length);
+		digest.update(bytes);
+	}
+
+	static void updateInt(MessageDigest digest, int i) {
+		digest.update(new byte[]{(byte)(i >>> 24), (byte)(i >>> 16), (byte)(i >>> 8), (byte)i});
+	}
+
+	private static void close(Closeable c) {
+		if(c != null){
+			try{
+				c.close();
+			}catch(IOException e){
+				//ignore, since there is nothing more to read or write
+			}
+		}
+	}
+
+	/** reads from a buffer, e.g. a memory mapped file */
+	private static final class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+		private ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if(len == 0){
+				return 0;
+			}
+			if(!buffer.hasRemaining()){
+				return -1;
+			}
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package ch.maxant.rules;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+/**
+ * The flags with which {@link JavascriptEngine} creates each of its script engines, see
+ * {@link JavascriptEngine.Builder#withOptimisticTypes(boolean)}, {@link JavascriptEngine.Builder#withNashornLazyCompilation(boolean)},
+ * {@link JavascriptEngine.Builder#withPersistentCodeCache(File)} and {@link JavascriptEngine.Builder#withScriptEngineOptions(String...)}.<br>
+ * <br>
+ * Nashorn takes them as command line arguments, which its factory accepts through <code>getScriptEngine(String[])</code>.
+ * That method is called reflectively, so that this works with Nashorn from the JDK, as well as the standalone one.
+ * GraalJS takes the given options as <code>name=value</code> pairs, and has no equivalent of the other flags.<br>
+ * <br>
+ * Immutable.
+ */
+final class ScriptEngineOptions {
+
+	/** the system property which tells Nashorn where to keep its persistent code cache */
+	private static final String CODE_CACHE_PROPERTY = "nashorn.persistent.code.cache";
+
+	/** null, to use the engine's default */
+	private final Boolean optimisticTypes;
+	/** null, to use the engine's default */
+	private final Boolean lazyCompilation;
+	/** null, unless the compiled scripts should be cached on disk */
+	private final File persistentCodeCache;
+	private final List<String> options;
+
+	ScriptEngineOptions(Boolean optimisticTypes, Boolean lazyCompilation, File persistentCodeCache, List<String> options) {
+		this.optimisticTypes = optimisticTypes;
+		this.lazyCompilation = lazyCompilation;
+		this.persistentCodeCache = persistentCodeCache;
+		this.options = new ArrayList<String>(options);
+	}
+
+	/** @return true if no flags were given, so that engines can be created as usual */
+	boolean isEmpty() {
+		return optimisticTypes == null && lazyCompilation == null && persistentCodeCache == null && options.isEmpty();
+	}
+
+	/** @return the command line arguments for Nashorn */
+	String[] nashornArguments() {
+		List<String> args = new ArrayList<String>();
+		if(optimisticTypes != null){
+			args.add("--optimistic-types=" + optimisticTypes);
+		}
+		if(lazyCompilation != null){
+			args.add("--lazy-compilation=" + lazyCompilation);
+		}
+		if(persistentCodeCache != null){
+			args.add("--persistent-code-cache=true");
+		}
+		args.addAll(options);
+		return args.toArray(new String[args.size()]);
+	}
+
+	/**
+	 * @return the options for GraalJS, by name
+	 * @throws CompileException if an option is not a <code>name=value</code> pair, e.g. because it is a Nashorn style
+	 * 			flag like <code>--language=es6</code>
+	 */
+	Map<String, String> graalOptions() throws CompileException {
+		Map<String, String> graalOptions = new LinkedHashMap<String, String>();
+		for(String option : options){
+			int i = option.indexOf('=');
+			if(i < 1 || option.startsWith("-")){
+				throw new CompileException("GraalJS options must be given as name=value, but got '" + option + "'");
+			}
+			graalOptions.put(option.substring(0, i), option.substring(i + 1));
+		}
+		return graalOptions;
+	}
+
+	/** @return the names of the flags which GraalJS has no equivalent of, and which are therefore ignored */
+	List<String> unsupportedByGraal() {
+		List<String> unsupported = new ArrayList<String>();
+		if(optimisticTypes != null){
+			unsupported.add("optimistic types");
+		}
+		if(lazyCompilation != null){
+			unsupported.add("lazy compilation");
+		}
+		if(persistentCodeCache != null){
+			unsupported.add("persistent code cache");
+		}
+		return unsupported;
+	}
+
+	/**
+	 * @return a new script engine, created by the given factory, using the flags
+	 * @throws CompileException if the factory does not accept arguments, or the engine rejects them, e.g. because they contradict each other.
+	 */
+	ScriptEngine create(ScriptEngineFactory factory) throws CompileException {
+		String[] args = nashornArguments();
+		Method getScriptEngine;
+		try {
+			getScriptEngine = factory.getClass().getMethod("getScriptEngine", String[].class);
+		} catch (NoSuchMethodException e) {
+			throw new CompileException("The JavaScript engine " + factory.getEngineName() + " does not accept the options " + Arrays.toString(args));
+		}
+		if(persistentCodeCache == null){
+			return invoke(getScriptEngine, factory, args);
+		}
+		//nashorn only reads the directory from a system property, while creating the engine. the lock only excludes
+		//this class, so other nashorn engines which are created concurrently also see it, see withPersistentCodeCache
+		synchronized(ScriptEngineOptions.class){
+			String previous = System.getProperty(CODE_CACHE_PROPERTY);
+			System.setProperty(CODE_CACHE_PROPERTY, persistentCodeCache.getPath());
+			try {
+				return invoke(getScriptEngine, factory, args);
+			} finally {
+				if(previous == null){
+					System.clearProperty(CODE_CACHE_PROPERTY);
+				}else{
+					System.setProperty(CODE_CACHE_PROPERTY, previous);
+				}
+			}
+		}
+	}
+
+	private static ScriptEngine invoke(Method getScriptEngine, ScriptEngineFactory factory, String[] args) throws CompileException {
+		try {
+			return (ScriptEngine) getScriptEngine.invoke(factory, (Object) args);
+		} catch (InvocationTargetException e) {
+			//e.g. an unknown option, or eager compilation together with optimistic types
+			throw new CompileException("Failed to create a JavaScript engine with the options " + Arrays.toString(args) + ": " + e.getCause().getMessage());
+		} catch (IllegalAccessException e) {
+			throw new CompileException("The JavaScript engine " + factory.getEngineName() + " does not accept the options " + Arrays.toString(args));
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package ch.maxant.rules;
+
+import java.util.Map;
+
+import org.mvel2.integration.VariableResolver;
+import org.mvel2.integration.impl.BaseVariableResolverFactory;
+
+/**
+ * Resolves the static variables of an {@link Engine} during the evaluation of MVEL rules.
+ * Built once when the engine is initialised and shared by all evaluations, on all threads,
+ * so that the statics never need to be copied.  It is the last factory in the chain, below
+ * the per evaluation {@link InputVariableResolverFactory}, which holds the input and any
+ * variables which rules create. The statics are therefore read-only.
+ */
+final class StaticsVariableResolverFactory extends BaseVariableResolverFactory {
+
+	private static final long serialVersionUID = 1L;
+
+	StaticsVariableResolverFactory(Map<String, Object> statics) {
+		if(statics != null){
+			for(Map.Entry<String, Object> e : statics.entrySet()){
+				variableResolvers.put(e.getKey(), new StaticVariableResolver(e.getKey(), e.getValue()));
+			}
+		}
+	}
+
+	@Override
+	public VariableResolver createVariable(String name, Object value) {
+		throw new UnsupportedOperationException("statics are read-only: " + name);
+	}
+
+	@Override
+	public VariableResolver createVariable(String name, Object value, Class<?> type) {
+		throw new UnsupportedOperationException("statics are read-only: " + name);
+	}
+
+	@Override
+	public boolean isTarget(String name) {
+		return variableResolvers.containsKey(name);
+	}
+
+	@Override
+	public boolean isResolveable(String name) {
+		return variableResolvers.containsKey(name);
+	}
+
+	/** shared by all threads, so the flag is tracked by the per evaluation factory instead */
+	@Override
+	public void setTiltFlag(boolean tiltFlag) {
+		//noop
+	}
+
+	@Override
+	public boolean tiltFlag() {
+		return false;
+	}
+
+	private static final class StaticVariableResolver implements VariableResolver {
+		private static final long serialVersionUID = 1L;
+		private final String name;
+		private final Object value;
+		private StaticVariableResolver(String name, Object value) {
+			this.name = name;
+			this.value = value;
+		}
+		@Override
+		public String getName() {
+			return name;
+		}
+		@SuppressWarnings("rawtypes")
+		@Override
+		public Class getType() {
+			return null;
+		}
+		@SuppressWarnings("rawtypes")
+		@Override
+		public void setStaticType(Class type) {
+			//noop
+		}
+		@Override
+		public int getFlags() {
+			return 0;
+		}
+		@Override
+		public Object getValue() {
+			return value;
+		}
+		@Override
+		public void setValue(Object value) {
+			throw new UnsupportedOperationException("statics are read-only: " + name);
+		}
+	}
+}
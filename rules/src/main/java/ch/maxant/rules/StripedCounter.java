@@ -0,0 +1,59 @@
+package ch.maxant.rules;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which many threads can add to without contending with each other, because each thread adds to one
+ * of several cells, chosen by its id, and the cells are only summed when the counter is read.  The same idea as
+ * <code>java.util.concurrent.atomic.LongAdder</code>, which is not available on Java 6.<br>
+ * <br>
+ * Thread safe.  Reading while other threads add returns a value which they have not all finished adding to.
+ */
+final class StripedCounter {
+
+	/** longs per cell, so that neighbouring cells are not in the same cache line */
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray cells;
+	private final int mask;
+
+	StripedCounter() {
+		int stripes = 1;
+		while(stripes < Runtime.getRuntime().availableProcessors()){
+			stripes <<= 1;
+		}
+		cells = new AtomicLongArray(stripes * PADDING);
+		mask = stripes - 1;
+	}
+
+	void increment() {
+		add(1);
+	}
+
+	void add(long x) {
+		cells.addAndGet(cell(), x);
+	}
+
+	long sum() {
+		long sum = 0;
+		for(int i = 0; i < cells.length(); i += PADDING){
+			sum += cells.get(i);
+		}
+		return sum;
+	}
+
+	/** @return the index of the cell which the current thread adds to */
+	private int cell() {
+		return stripe(mask) * PADDING;
+	}
+
+	/**
+	 * @param mask the number of stripes minus one, where the number of stripes is a power of two
+	 * @return the stripe which the current thread uses, so that different threads mostly use different stripes
+	 */
+	static int stripe(int mask) {
+		long id = Thread.currentThread().getId();
+		int h = (int)(id ^ (id >>> 32)) * 0x9E3779B9; //spreads consecutive ids
+		return (h ^ (h >>> 16)) & mask;
+	}
+}
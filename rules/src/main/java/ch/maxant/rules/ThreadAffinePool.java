@@ -0,0 +1,202 @@
+package ch.maxant.rules;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.pool2.PooledObjectFactory;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+
+/**
+ * A pool without locks, in which each idle object waits in one of a fixed number of slots.  Each thread has a home
+ * slot, chosen by its id, where it looks for an object first and returns it to, so that threads which evaluate rules
+ * over and over again tend to use the same script engine, without contending with other threads.  If the home slot
+ * is empty, the other slots are searched, and if none has an object, a new one is created, as long as there are
+ * fewer than the maximum.  So the pool grows as far as the load requires, rather than being filled up front.
+ * Otherwise the thread queues itself as a waiter and parks, until a thread which returns or destroys an object
+ * unparks it.  See {@link JavascriptEngine.Builder#withThreadAffinePool()}.<br>
+ * <br>
+ * The pool neither uses thread locals nor blocks in monitors, so that it also works well with virtual threads,
+ * which there may be many more of than script engines.
+ */
+final class ThreadAffinePool<T> extends MeteredPool<T> {
+
+	/** 
+	 * the longest time a waiting thread parks, before it searches the slots again.  Only a safety net, since 
+	 * waiters are unparked when an object is returned. 
+	 */
+	private static final long MAX_PARK_NANOS = 1000000L;
+
+	private final PooledObjectFactory<T> factory;
+	private final AtomicReferenceArray<T> slots;
+	/** the number of objects which exist, whether idle or borrowed */
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicInteger numActive = new AtomicInteger();
+	/** the threads which are waiting for an object to be returned */
+	private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<Thread>();
+
+	/** @param maxTotal the maximum number of objects, which is also the number of slots */
+	ThreadAffinePool(PooledObjectFactory<T> factory, int maxTotal) {
+		if(maxTotal < 1){
+			throw new IllegalArgumentException("the pool needs a maximum size of at least 1, but it is " + maxTotal);
+		}
+		this.factory = factory;
+		this.slots = new AtomicReferenceArray<T>(maxTotal);
+	}
+
+	@Override
+	public T borrowObject() throws Exception {
+		assertOpen();
+		int home = home();
+		T obj = take(home);
+		if(obj != null){
+			numActive.incrementAndGet();
+			recordBorrow(0);
+			return obj;
+		}
+		long start = System.nanoTime();
+		while(obj == null){
+			int n = size.get();
+			if(n < slots.length()){
+				if(size.compareAndSet(n, n + 1)){
+					try{
+						obj = factory.makeObject().getObject();
+					}catch(Exception e){
+						size.decrementAndGet();
+						throw e;
+					}
+					recordCreate();
+				}
+				continue;
+			}
+			obj = take(home);
+			if(obj == null){
+				obj = await(home);
+			}
+		}
+		numActive.incrementAndGet();
+		recordBorrow(System.nanoTime() - start);
+		return obj;
+	}
+
+	@Override
+	public void returnObject(T obj) throws Exception {
+		numActive.decrementAndGet();
+		int home = home();
+		//there are never more objects than slots, so there is always a free one, although a single pass can miss it,
+		//if another thread frees it behind the one searching
+		while(!isClosed()){
+			for(int i = 0; i < slots.length(); i++){
+				int slot = (home + i) % slots.length();
+				if(slots.get(slot) == null && slots.compareAndSet(slot, null, obj)){
+					if(isClosed() && slots.compareAndSet(slot, obj, null)){
+						//closed while the object was being returned, so it may have been missed
+						destroy(obj);
+					}
+					signal();
+					return;
+				}
+			}
+		}
+		destroy(obj);
+	}
+
+	@Override
+	public void invalidateObject(T obj) throws Exception {
+		numActive.decrementAndGet();
+		destroy(obj);
+	}
+
+	@Override
+	public int getNumIdle() {
+		int numIdle = 0;
+		for(int i = 0; i < slots.length(); i++){
+			if(slots.get(i) != null){
+				numIdle++;
+			}
+		}
+		return numIdle;
+	}
+
+	@Override
+	public int getNumActive() {
+		return numActive.get();
+	}
+
+	@Override
+	int getMaxTotal() {
+		return slots.length();
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		for(int i = 0; i < slots.length(); i++){
+			T obj = slots.getAndSet(i, null);
+			if(obj != null){
+				try{
+					destroy(obj);
+				}catch(Exception e){
+					//ignore, since the pool is being closed anyway
+				}
+			}
+		}
+		//so that they notice that the pool is closed
+		for(Thread waiter : waiters){
+			LockSupport.unpark(waiter);
+		}
+	}
+
+	/** @return an idle object, searching the slots from the given one onwards, or null if there is none */
+	private T take(int home) {
+		for(int i = 0; i < slots.length(); i++){
+			int slot = (home + i) % slots.length();
+			T obj = slots.get(slot);
+			if(obj != null && slots.compareAndSet(slot, obj, null)){
+				return obj;
+			}
+		}
+		return null;
+	}
+
+	private void destroy(T obj) throws Exception {
+		size.decrementAndGet();
+		//a waiter may now create an object
+		signal();
+		recordDestroy();
+		factory.destroyObject(new DefaultPooledObject<T>(obj));
+	}
+
+	/**
+	 * queues the current thread as a waiter and parks it, unless an object was returned in the meantime.
+	 * @return that object, or null if the thread was unparked or its park timed out, after which it must search
+	 * 			the slots, or create an object, again.
+	 */
+	private T await(int home) {
+		assertOpen();
+		Thread current = Thread.currentThread();
+		waiters.add(current);
+		//an object returned before the thread was queued would otherwise be missed, since nobody would unpark it
+		T obj = take(home);
+		if(obj == null){
+			LockSupport.parkNanos(this, MAX_PARK_NANOS);
+		}
+		//still queued, unless a returning thread unparked it
+		waiters.remove(current);
+		return obj;
+	}
+
+	/** unparks a waiting thread, after an object was returned to a slot, or destroyed */
+	private void signal() {
+		Thread waiter = waiters.poll();
+		if(waiter != null){
+			LockSupport.unpark(waiter);
+		}
+	}
+
+	/** @return the slot where the current thread looks for an object first */
+	private int home() {
+		return StripedCounter.stripe(Integer.MAX_VALUE) % slots.length();
+	}
+}
@@ -3,25 +3,41 @@ package ch.maxant.rules.blackbox;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 import javax.script.ScriptException;
 
 import org.junit.Test;
 
 import ch.maxant.rules.AbstractAction;
+import ch.maxant.rules.AbstractEvaluationListener;
+import ch.maxant.rules.ActionDispatcher;
 import ch.maxant.rules.CompileException;
 import ch.maxant.rules.DuplicateNameException;
 import ch.maxant.rules.Engine;
+import ch.maxant.rules.EvaluationListener;
+import ch.maxant.rules.EvaluationMetrics;
+import ch.maxant.rules.MetricsEvaluationListener;
 import ch.maxant.rules.NoActionFoundException;
 import ch.maxant.rules.NoMatchingRuleFoundException;
 import ch.maxant.rules.ParseException;
@@ -34,6 +50,8 @@ public abstract class AbstractEngineTest {
 
 	protected abstract boolean isJavascriptTest();
 
+	protected abstract Engine.Builder getBuilder(List<Rule> rules);
+
 	/**
 	 * similar to {@link #test1()}, but reversed rule priority.
 	 * @throws ParseException 
@@ -144,6 +162,34 @@ public abstract class AbstractEngineTest {
 		}
 	}
 	
+	@Test
+	public void testNamespacePatterns() throws Exception {
+		Rule rule1 = new Rule("R1", "true", "outcome1", 1, "ch.maxant.produkte", "one");
+		Rule rule2 = new Rule("R2", "true", "outcome2", 2, "ch.maxant.fahrplan", "two");
+		Rule rule3 = new Rule("R3", "true", "outcome3", 3, "ch.maxant.produkte.alt", "three");
+		Rule rule4 = new Rule("R4", "true", "outcome4", 4, "chXmaxant.produkte", "four");
+		List<Rule> rules = Arrays.asList(rule1, rule2, rule3, rule4);
+
+		Engine e = getEngine(rules, true);
+		MyInput input = new MyInput();
+
+		//literal
+		assertEquals(Arrays.asList(rule1), e.getMatchingRules("ch\\.maxant\\.produkte", input));
+		//unescaped dots match any character
+		assertEquals(Arrays.asList(rule4, rule1), e.getMatchingRules("ch.maxant.produkte", input));
+		//prefix, with rules from several namespaces being returned in order of priority
+		assertEquals(Arrays.asList(rule3, rule2, rule1), e.getMatchingRules("ch\\.maxant\\..*", input));
+		assertEquals(Arrays.asList(rule4, rule3, rule2, rule1), e.getMatchingRules("ch.maxant.*", input));
+		//full regular expressions
+		assertEquals(Arrays.asList(rule2, rule1), e.getMatchingRules("ch\\.maxant\\.(produkte|fahrplan)", input));
+		assertEquals(Arrays.asList(rule3, rule1), e.getMatchingRules("[c]h\\.maxant\\.produkte.*", input));
+		//nothing
+		assertEquals(0, e.getMatchingRules("ch\\.maxant", input).size());
+		//same again, now that the patterns are cached
+		assertEquals(Arrays.asList(rule4, rule1), e.getMatchingRules("ch.maxant.produkte", input));
+		assertEquals(Arrays.asList(rule3, rule2, rule1), e.getMatchingRules("ch\\.maxant\\..*", input));
+	}
+
 	/**
 	 * tests getting a list of rules associated with {@link StringAction}s.
 	 */
@@ -209,6 +255,48 @@ public abstract class AbstractEngineTest {
 		}
 	}
 	
+	@Test
+	public void testGetBestMatchingRules() throws Exception {
+		Rule rule1 = new Rule("A", "input.distance < 100", "productA", 1, "ch.maxant.produkte");
+		Rule rule2 = new Rule("B", "input.distance > 100", "productB", 2, "ch.maxant.produkte");
+		Rule rule3 = new Rule("C", "input.distance > 150", "productC", 3, "ch.maxant.produkte");
+		Rule rule4 = new Rule("D", "input.distance > 120", "productD", 3, "ch.maxant.produkte");
+		Rule rule5 = new Rule("E", "input.distance > 0", "productE", 0, "ch.maxant.produkte");
+		List<Rule> rules = Arrays.asList(rule1, rule2, rule3, rule4, rule5);
+
+		Engine e = getEngine(rules, true);
+		TravelRequest request = new TravelRequest(152);
+
+		List<Rule> rs = e.getMatchingRules(null, request, 2);
+		assertEquals(2, rs.size());
+		assertEquals(rule3, rs.get(0)); //same priority as D, but defined first
+		assertEquals(rule4, rs.get(1));
+
+		rs = e.getMatchingRules(null, request, 10);
+		assertEquals(Arrays.asList(rule3, rule4, rule2, rule5), rs);
+		assertEquals(rs, e.getMatchingRules(request));
+
+		try{
+			e.getMatchingRules(null, request, 0);
+			fail("no exception");
+		}catch(IllegalArgumentException ex){
+			assertEquals("maxMatches must be at least 1", ex.getMessage());
+		}
+	}
+
+	@Test
+	public void testBestOutcomeDoesNotEvaluateRulesWithLowerPriorityThanTheWinner() throws Exception {
+		Rule rule1 = new Rule("1", "true", "winner", 2, "ch.maxant.produkte");
+		Rule rule2 = new Rule("2", "input.doesNotExist.name == 'John'", "loser", 1, "ch.maxant.produkte");
+		List<Rule> rules = Arrays.asList(rule2, rule1);
+
+		Engine e = getEngine(rules, true);
+
+		//the second rule would fail if it were evaluated
+		assertEquals("winner", e.getBestOutcome(new Person("John")));
+		assertEquals(rule1, e.getMatchingRules(null, new Person("John"), 1).get(0));
+	}
+
 	@Test
 	public void testSwallowELException() throws ScriptException, IOException{
 		Rule rule = new Rule("1", "input eq 345", "SomeCommand", 0, "ch.maxant.produkte");
@@ -454,6 +542,646 @@ public abstract class AbstractEngineTest {
 		}
 	}
 
+	@Test
+	public void testPrepareActions() throws Exception {
+		Rule rule1 = new Rule("1", "input.p1 != null && input.p1.name == 'ant'", "outcome1", 3, "ch.maxant.produkte");
+		Rule rule2 = new Rule("2", "true", "outcome2", 2, "ch.maxant.produkte");
+		Rule rule3 = new Rule("3", "input.p1 != null && input.p1.name == 'ant'", "outcome2", 1, "ch.maxant.produkte");
+		List<Rule> rules = Arrays.asList(rule1, rule2, rule3);
+
+		final List<String> log = new ArrayList<String>();
+		AbstractAction<MyInput, String> action1 = new AbstractAction<AbstractEngineTest.MyInput, String>("outcome1") {
+			@Override
+			public String execute(MyInput input) {
+				log.add("1");
+				return "one";
+			}
+		};
+		AbstractAction<MyInput, String> action2 = new AbstractAction<AbstractEngineTest.MyInput, String>("outcome2") {
+			@Override
+			public String execute(MyInput input) {
+				log.add("2");
+				return "two";
+			}
+		};
+
+		Engine e = getEngine(rules, true);
+
+		try{
+			e.prepareActions(Arrays.asList(action1));
+			fail("no exception");
+		}catch(NoActionFoundException ex){
+			assertEquals("No action has been associated with the outcome \"outcome2\"", ex.getMessage());
+		}
+		try{
+			e.prepareActions(Arrays.asList(action1, action2, action2));
+			fail("no exception");
+		}catch(DuplicateNameException ex){
+			assertEquals("The name outcome2 was found in a different action.  Action names must be unique.", ex.getMessage());
+		}
+
+		ActionDispatcher<MyInput, String> dispatcher = e.prepareActions(Arrays.asList(action1, action2));
+		assertSame(e, dispatcher.getEngine());
+
+		MyInput input = new MyInput();
+		input.setP1(new Person("ant"));
+		assertEquals("one", dispatcher.executeBestAction(input));
+		assertEquals("two", dispatcher.executeBestAction("ch\\.maxant\\.produkte", new MyInput()));
+
+		//every outcome is only executed once, in order of priority
+		log.clear();
+		dispatcher.executeAllActions(input);
+		assertEquals(Arrays.asList("1", "2"), log);
+
+		log.clear();
+		dispatcher.executeAllActions("ch\\.maxant\\.somethingElse", input);
+		assertEquals(0, log.size());
+	}
+
+	@Test
+	public void testGetMatchingRulesInBatch() throws Exception {
+		Rule rule1 = new Rule("1", "input.p1.name == 'ant'", "outcome1", 3, "ch.maxant.produkte");
+		Rule rule2 = new Rule("2", "input.p1.name == 'clare'", "outcome2", 2, "ch.maxant.produkte");
+		Rule rule3 = new Rule("3", "true", "outcome3", 1, "ch.maxant.other");
+		Engine e = getEngine(Arrays.asList(rule1, rule2, rule3), true);
+
+		List<MyInput> inputs = new ArrayList<MyInput>();
+		for(int i = 0; i < 20; i++){
+			MyInput input = new MyInput();
+			input.setP1(new Person(i % 3 == 0 ? "ant" : i % 3 == 1 ? "clare" : "john"));
+			inputs.add(input);
+		}
+
+		List<List<Rule>> results = e.getMatchingRulesInBatch("ch.maxant.produkte", inputs);
+		assertEquals(inputs.size(), results.size());
+		for(int i = 0; i < inputs.size(); i++){
+			assertEquals(e.getMatchingRules("ch.maxant.produkte", inputs.get(i)), results.get(i));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try{
+			results = e.getMatchingRulesInBatch(null, inputs, executor, 4);
+			for(int i = 0; i < inputs.size(); i++){
+				assertEquals(e.getMatchingRules(inputs.get(i)), results.get(i));
+			}
+
+			final List<String> log = new ArrayList<String>();
+			ActionDispatcher<MyInput, Void> dispatcher = e.prepareActions(Arrays.asList(
+					new LoggingAction("outcome1", log), new LoggingAction("outcome2", log), new LoggingAction("outcome3", log)));
+			dispatcher.executeAllActionsInBatch("ch.maxant.produkte", inputs.subList(0, 4), executor, 2);
+			assertEquals(Arrays.asList("outcome1", "outcome2", "outcome1"), log);
+		}finally{
+			executor.shutdown();
+		}
+
+		assertEquals(0, e.getMatchingRulesInBatch(null, new ArrayList<MyInput>()).size());
+	}
+
+	@Test
+	public void testGetMatchingRulesInBatchUsesOneVersionOfTheRules() throws Exception {
+		Rule rule = new Rule("1", "input.p1.name == 'ant'", "outcome1", 1, "ch.maxant.produkte");
+		final Engine e = getEngine(Arrays.asList(rule), true);
+		List<MyInput> inputs = new ArrayList<MyInput>();
+		for(int i = 0; i < 4; i++){
+			MyInput input = new MyInput();
+			input.setP1(new Person("ant"));
+			inputs.add(input);
+		}
+
+		//replaces the rule before each slice is evaluated, which must still use the rules which the batch started with
+		Executor replacingExecutor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				try{
+					e.replaceRules(Arrays.asList(new Rule("1", "false", "outcome1", 1, "ch.maxant.produkte")));
+				}catch(Exception ex){
+					throw new IllegalStateException(ex);
+				}
+				command.run();
+			}
+		};
+		List<List<Rule>> results = e.getMatchingRulesInBatch(null, inputs, replacingExecutor, 4);
+		for(List<Rule> result : results){
+			assertEquals(Arrays.asList(rule), result);
+		}
+		assertEquals(0, e.getMatchingRules(inputs.get(0)).size());
+	}
+
+	private static final class LoggingAction extends AbstractAction<MyInput, Void> {
+		private final List<String> log;
+		private LoggingAction(String name, List<String> log) {
+			super(name);
+			this.log = log;
+		}
+		@Override
+		public Void execute(MyInput input) {
+			log.add(getName());
+			return null;
+		}
+	}
+
+	/** returns the name of the outcome */
+	private static final class OutcomeAction extends AbstractAction<CountingInput, String> {
+		private OutcomeAction(String name) {
+			super(name);
+		}
+		@Override
+		public String execute(CountingInput input) {
+			return getName();
+		}
+	}
+
+	@Test
+	public void testMemoizedSubRules() throws Exception {
+		SubRule adult = new SubRule("adult", "input.age >= 18", "ch.maxant.produkte");
+		SubRule senior = new SubRule("senior", "#adult && input.age >= 65", "ch.maxant.produkte");
+		Rule rule1 = new Rule("1", "#adult && #senior", "senior", 3, "ch.maxant.produkte");
+		Rule rule2 = new Rule("2", "#adult && !#senior", "adult", 2, "ch.maxant.produkte");
+		Rule rule3 = new Rule("3", "false && #adult", "never", 1, "ch.maxant.produkte");
+		List<Rule> rules = Arrays.asList(adult, senior, rule1, rule2, rule3);
+		
+		Engine memoized = getBuilder(rules).withMemoizedSubRules().build();
+		Engine inlined = getEngine(rules, true);
+		
+		CountingInput input = new CountingInput(70);
+		assertEquals(Arrays.asList("1"), names(memoized.getMatchingRules(input)));
+		//adult and senior each read the age once
+		assertEquals(2, input.getCount());
+
+		input = new CountingInput(30);
+		assertEquals(Arrays.asList("2"), names(memoized.getMatchingRules(input)));
+		assertEquals(2, input.getCount());
+
+		//the results are only memoized for a single evaluation
+		assertEquals(Arrays.asList("2"), names(memoized.getMatchingRules(input)));
+		assertEquals(4, input.getCount());
+
+		input = new CountingInput(10);
+		assertEquals(0, memoized.getMatchingRules(input).size());
+		assertEquals(1, input.getCount());
+		
+		//and its the same result as copying the subrules into the rules, which evaluates them more often 
+		for(int age = 0; age < 100; age += 5){
+			input = new CountingInput(age);
+			assertEquals(names(inlined.getMatchingRules(input)), names(memoized.getMatchingRules(input)));
+		}
+		input = new CountingInput(70);
+		inlined.getMatchingRules(input);
+		assertTrue(input.getCount() > 2);
+
+		List<List<Rule>> results = memoized.getMatchingRulesInBatch(null, Arrays.asList(new CountingInput(20), new CountingInput(80)));
+		assertEquals(Arrays.asList("2"), names(results.get(0)));
+		assertEquals(Arrays.asList("1"), names(results.get(1)));
+
+		try{
+			getBuilder(Arrays.asList(new Rule("1", "#unknown", "o", 1, "ch.maxant.produkte"))).withMemoizedSubRules().build();
+			fail("no exception");
+		}catch(ParseException e){
+			assertEquals("Error while attempting to add subrule to rule ch.maxant.produkte.1.  Unable to replace #unknown with subrule ch.maxant.produkte.unknown because no subrule with that fully qualified name was found", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testSubRuleChain() throws Exception {
+		//each subrule references the previous one, so the deepest is resolved via all of the others
+		List<Rule> rules = new ArrayList<Rule>();
+		rules.add(new Rule("1", "#s99", "deep", 1, "ch.maxant.produkte"));
+		for(int i = 99; i > 0; i--){
+			rules.add(new SubRule("s" + i, "#s" + (i - 1) + " && input.age >= " + i, "ch.maxant.produkte"));
+		}
+		rules.add(new SubRule("s0", "input.age >= 0", "ch.maxant.produkte"));
+		
+		Engine inlined = getEngine(rules, true);
+		Engine memoized = getBuilder(rules).withMemoizedSubRules().build();
+		for(Engine e : Arrays.asList(inlined, memoized)){
+			assertEquals(Arrays.asList("1"), names(e.getMatchingRules(new CountingInput(99))));
+			assertEquals(0, e.getMatchingRules(new CountingInput(98)).size());
+		}
+	}
+
+	@Test
+	public void testSubRuleCycle() throws Exception {
+		SubRule a = new SubRule("a", "#b && input.age > 1", "ch.maxant.produkte");
+		SubRule b = new SubRule("b", "input.age < 10 && #c", "ch.maxant.produkte");
+		SubRule c = new SubRule("c", "#a", "ch.maxant.produkte");
+		Rule rule1 = new Rule("1", "#a", "o", 1, "ch.maxant.produkte");
+		List<Rule> rules = Arrays.asList(rule1, a, b, c);
+		String expected = "Error while attempting to add subrule to rule ch.maxant.produkte.c.  Unable to replace #a because the rules reference each other in a cycle: ch.maxant.produkte.a -> ch.maxant.produkte.b -> ch.maxant.produkte.c -> ch.maxant.produkte.a";
+		try{
+			getEngine(rules, true);
+			fail("no exception");
+		}catch(ParseException e){
+			assertEquals(expected, e.getMessage());
+		}
+		try{
+			getBuilder(rules).withMemoizedSubRules().build();
+			fail("no exception");
+		}catch(ParseException e){
+			assertEquals(expected, e.getMessage());
+		}
+
+		//a rule which references itself
+		try{
+			getEngine(Arrays.asList(new Rule("1", "input.age > 1 && #1", "o", 1, "ch.maxant.produkte")), true);
+			fail("no exception");
+		}catch(ParseException e){
+			assertEquals("Error while attempting to add subrule to rule ch.maxant.produkte.1.  Unable to replace #1 because the rules reference each other in a cycle: ch.maxant.produkte.1 -> ch.maxant.produkte.1", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testUpdateRules() throws Exception {
+		assertUpdates(false);
+		assertUpdates(true);
+	}
+
+	private void assertUpdates(boolean memoizeSubRules) throws Exception {
+		SubRule adult = new SubRule("adult", "input.age >= 18", "ch.maxant.produkte");
+		Rule rule1 = new Rule("1", "#adult && input.age < 65", "adult", 2, "ch.maxant.produkte");
+		Rule rule2 = new Rule("2", "input.age >= 60", "senior", 1, "ch.maxant.produkte");
+		final List<String> compiled = new ArrayList<String>();
+		EvaluationListener listener = new AbstractEvaluationListener() {
+			@Override
+			public void onCompile(Rule rule) {
+				compiled.add(rule.getName());
+			}
+		};
+		Engine.Builder builder = getBuilder(Arrays.asList(adult, rule1, rule2)).withEvaluationListener(listener);
+		if(memoizeSubRules){
+			builder.withMemoizedSubRules();
+		}
+		Engine engine = builder.build();
+		assertEquals(Arrays.asList("1", "2"), names(engine.getMatchingRules(new CountingInput(62))));
+		ActionDispatcher<CountingInput, String> dispatcher = engine.prepareActions(Arrays.asList(new OutcomeAction("adult"), new OutcomeAction("senior")));
+
+		//only the new rule is compiled
+		compiled.clear();
+		engine.addRules(Arrays.asList(new Rule("3", "input.age < 18", "child", 3, "ch.maxant.produkte")));
+		assertEquals(Arrays.asList("3"), compiled);
+		assertEquals(Arrays.asList("3"), names(engine.getMatchingRules(new CountingInput(10))));
+		assertEquals("child", engine.getBestOutcome(new CountingInput(10)));
+
+		//a dispatcher which was prepared before the new outcome was added has no action for it
+		assertEquals("adult", dispatcher.executeBestAction(new CountingInput(62)));
+		try{
+			dispatcher.executeBestAction(new CountingInput(10));
+			fail("no exception");
+		}catch(NoActionFoundException e){
+			//expected
+		}
+
+		//replacing a subrule affects the rules which reference it
+		compiled.clear();
+		engine.replaceRules(Arrays.asList((Rule)new SubRule("adult", "input.age >= 21", "ch.maxant.produkte")));
+		//unless subrules are memoized, the subrule is copied into the rule, which must then be compiled again
+		assertEquals(memoizeSubRules ? Collections.<String>emptyList() : Arrays.asList("1"), compiled);
+		assertEquals(0, engine.getMatchingRules(new CountingInput(20)).size());
+		assertEquals(Arrays.asList("1"), names(engine.getMatchingRules(new CountingInput(21))));
+
+		//a new priority changes the order, without needing to compile anything
+		compiled.clear();
+		engine.replaceRules(Arrays.asList(new Rule("2", "input.age >= 60", "senior", 5, "ch.maxant.produkte")));
+		assertEquals(0, compiled.size());
+		assertEquals(Arrays.asList("2", "1"), names(engine.getMatchingRules(new CountingInput(62))));
+		//the dispatcher resolves the actions of the new rules
+		assertEquals("senior", dispatcher.executeBestAction(new CountingInput(62)));
+
+		engine.removeRules(Arrays.asList("ch.maxant.produkte.3"));
+		assertEquals(0, engine.getMatchingRules(new CountingInput(10)).size());
+
+		//failed updates leave the current rules in use
+		try{
+			engine.removeRules(Arrays.asList("ch.maxant.produkte.adult"));
+			fail("no exception");
+		}catch(ParseException e){
+			//expected, since rule 1 still references it
+		}
+		try{
+			engine.addRules(Arrays.asList(new Rule("1", "true", "other", 1, "ch.maxant.produkte")));
+			fail("no exception");
+		}catch(DuplicateNameException e){
+			//expected
+		}
+		try{
+			engine.replaceRules(Arrays.asList(new Rule("4", "true", "other", 1, "ch.maxant.produkte")));
+			fail("no exception");
+		}catch(IllegalArgumentException e){
+			//expected
+		}
+		try{
+			engine.addRules(Arrays.asList(new Rule("4", "input.age >= ", "other", 1, "ch.maxant.produkte")));
+			fail("no exception");
+		}catch(CompileException e){
+			//expected
+		}
+		assertEquals(Arrays.asList("2", "1"), names(engine.getMatchingRules(new CountingInput(62))));
+		assertEquals(0, engine.getMatchingRules(new CountingInput(20)).size());
+	}
+
+	@Test
+	public void testUpdateRulesWhileEvaluating() throws Exception {
+		//in each version, exactly one of the two rules matches
+		final Rule[] positive = {new Rule("a", "input.age > 0", "a", 2, "ch.maxant.produkte"), new Rule("b", "input.age < 0", "b", 1, "ch.maxant.produkte")};
+		final Rule[] negative = {new Rule("a", "input.age < 0", "a", 2, "ch.maxant.produkte"), new Rule("b", "input.age > 0", "b", 1, "ch.maxant.produkte")};
+		final Engine engine = getBuilder(Arrays.asList(positive)).build();
+
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<String> problem = new AtomicReference<String>();
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try{
+			for(int i = 0; i < 3; i++){
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						while(!done.get()){
+							List<Rule> matches = engine.getMatchingRules(new CountingInput(5));
+							if(matches.size() != 1){
+								problem.set("inconsistent rules: " + names(matches));
+							}
+						}
+					}
+				});
+			}
+			for(int i = 0; i < 50; i++){
+				engine.replaceRules(Arrays.asList(i % 2 == 0 ? negative : positive));
+			}
+		}finally{
+			done.set(true);
+			executor.shutdown();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		assertNull(problem.get());
+		assertEquals(Arrays.asList("a"), names(engine.getMatchingRules(new CountingInput(5))));
+	}
+
+	protected static List<String> names(List<Rule> rules) {
+		List<String> names = new ArrayList<String>();
+		for(Rule r : rules){
+			names.add(r.getName());
+		}
+		return names;
+	}
+
+	public static final class CountingInput {
+		private final int age;
+		private int count;
+		public CountingInput(int age) {
+			this.age = age;
+		}
+		public int getAge() {
+			count++;
+			return age;
+		}
+		public int getCount() {
+			return count;
+		}
+	}
+
+	@Test
+	public void testParallelCompilation() throws Exception {
+		List<Rule> rules = new ArrayList<Rule>();
+		rules.add(new SubRule("adult", "input.age >= 18", "ch.maxant.produkte"));
+		for(int i = 0; i < 200; i++){
+			String expression = i == 70 || i == 150 ? "input someIllegalOperator " + i : "#adult && input.age > " + i;
+			rules.add(new Rule("r" + i, expression, "o" + i, i % 7, "ch.maxant.produkte"));
+		}
+		
+		for(boolean memoize : Arrays.asList(false, true)){
+			//without exceptions, the same rules are used, and listeners are notified in the same order
+			List<String> sequentialLog = new ArrayList<String>();
+			Engine sequential = buildRecordingCompilation(rules, memoize, false, 1, sequentialLog);
+			List<String> parallelLog = new ArrayList<String>();
+			Engine parallel = buildRecordingCompilation(rules, memoize, false, 4, parallelLog);
+			assertEquals(sequentialLog, parallelLog);
+			assertTrue(parallelLog.contains("failure r70"));
+			assertTrue(parallelLog.contains("failure r150"));
+			for(int age = 0; age < 220; age += 11){
+				assertEquals(names(sequential.getMatchingRules(new CountingInput(age))), names(parallel.getMatchingRules(new CountingInput(age))));
+			}
+			
+			//with exceptions, the first rule which fails is reported, regardless of which thread compiled it first
+			sequentialLog.clear();
+			parallelLog.clear();
+			String expected = null;
+			try{
+				buildRecordingCompilation(rules, memoize, true, 1, sequentialLog);
+				fail("no exception");
+			}catch(CompileException e){
+				//MVEL mentions the identity of objects in its messages
+				expected = e.getMessage().replaceAll("@[0-9a-f]+", "");
+			}
+			try{
+				buildRecordingCompilation(rules, memoize, true, 4, parallelLog);
+				fail("no exception");
+			}catch(CompileException e){
+				assertEquals(expected, e.getMessage().replaceAll("@[0-9a-f]+", ""));
+			}
+			assertEquals(sequentialLog, parallelLog);
+			assertTrue(parallelLog.get(parallelLog.size() - 1).startsWith("failure "));
+		}
+	}
+	
+	private Engine buildRecordingCompilation(List<Rule> rules, boolean memoize, boolean throwExceptionIfCompilationFails, int threads, final List<String> log) throws Exception {
+		Engine.Builder builder = getBuilder(rules)
+			.withThrowExceptionIfCompilationFails(throwExceptionIfCompilationFails)
+			.withParallelCompilation(threads)
+			.withEvaluationListener(new AbstractEvaluationListener() {
+				@Override
+				public void onCompile(Rule rule) {
+					log.add("compiled " + rule.getName());
+				}
+				@Override
+				public void onCompileFailure(Rule rule, String message) {
+					log.add("failure " + rule.getName());
+				}
+			});
+		if(memoize){
+			builder.withMemoizedSubRules();
+		}
+		return builder.build();
+	}
+
+	@Test
+	public void testLazyCompilation() throws Exception {
+		List<Rule> rules = Arrays.asList(
+				new Rule("x1", "input.age > 10", "x1", 2, "ch.maxant.a.x"),
+				new Rule("x2", "input.age > 20", "x2", 1, "ch.maxant.a.x"),
+				new Rule("y1", "input.age > 30", "y1", 3, "ch.maxant.a.y"),
+				new Rule("b1", "input.age > 40", "b1", 4, "ch.maxant.b"),
+				new Rule("c1", "input someIllegalOperator 3", "c1", 5, "ch.maxant.c"));
+		final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+		Engine e = getBuilder(rules)
+			.withLazyCompilation("ch\\.maxant\\.b")
+			.withEvaluationListener(new AbstractEvaluationListener() {
+				@Override
+				public void onCompile(Rule rule) {
+					log.add(rule.getName());
+				}
+				@Override
+				public void onCompileFailure(Rule rule, String message) {
+					log.add("failure " + rule.getName());
+				}
+			})
+			.build();
+		
+		//only the warm namespace is compiled while building, so the invalid rule does not fail yet
+		assertEquals(Arrays.asList("b1"), log);
+		
+		log.clear();
+		assertEquals(Arrays.asList("x1", "x2"), names(e.getMatchingRules("ch\\.maxant\\.a\\.x", new CountingInput(25))));
+		assertEquals(Arrays.asList("x1", "x2"), log);
+		
+		//each namespace is only compiled once
+		log.clear();
+		assertEquals(Arrays.asList("y1", "x1", "x2"), names(e.getMatchingRules("ch\\.maxant\\.a\\..*", new CountingInput(35))));
+		assertEquals(Arrays.asList("y1"), log);
+		assertEquals("b1", e.getBestOutcome("ch\\.maxant\\.b", new CountingInput(45)));
+		assertEquals(Arrays.asList("y1"), log);
+		
+		//the invalid rule fails when its namespace is first used
+		log.clear();
+		try{
+			e.getMatchingRules(new CountingInput(45));
+			fail("no exception");
+		}catch(IllegalStateException ex){
+			assertTrue(ex.getCause() instanceof CompileException);
+		}
+		assertEquals(Arrays.asList("failure c1"), log);
+		
+		//unless exceptions are not to be thrown, in which case the rule is left out, as usual
+		e = getBuilder(rules).withLazyCompilation().withThrowExceptionIfCompilationFails(false).build();
+		assertEquals(Arrays.asList("b1", "y1", "x1", "x2"), names(e.getMatchingRules(new CountingInput(45))));
+	}
+
+	@Test
+	public void testEvaluationListener() throws Exception {
+		Rule rule1 = new Rule("1", "input.p1.name == 'ant'", "outcome1", 3, "ch.maxant.produkte");
+		Rule rule2 = new Rule("2", "true", "outcome2", 2, "ch.maxant.produkte");
+		Rule rule3 = new Rule("3", "false", "outcome3", 1, "ch.maxant.produkte");
+		List<Rule> rules = Arrays.asList(rule1, rule2, rule3);
+
+		Engine e = getEngine(rules, true);
+
+		final List<String> log = new ArrayList<String>();
+		EvaluationListener listener = new AbstractEvaluationListener() {
+			@Override
+			public void onMatch(Rule rule, Object input, long nanos) {
+				log.add("match " + rule.getName());
+			}
+			@Override
+			public void onNoMatch(Rule rule, Object input, long nanos) {
+				log.add("nomatch " + rule.getName());
+			}
+			@Override
+			public void onError(Rule rule, Object input, Exception ex, long nanos) {
+				log.add("error " + rule.getName());
+			}
+		};
+		e.addEvaluationListener(listener);
+
+		MyInput input = new MyInput();
+		input.setP1(new Person("ant"));
+		assertEquals(2, e.getMatchingRules(input).size());
+		assertEquals(Arrays.asList("match 1", "match 2", "nomatch 3"), log);
+
+		log.clear();
+		try{
+			e.getMatchingRules(new MyInput());
+			fail("no exception");
+		}catch(RuntimeException ex){
+			//expected, since p1 is null
+		}
+		assertEquals(Arrays.asList("error 1"), log);
+
+		log.clear();
+		e.removeEvaluationListener(listener);
+		e.getMatchingRules(input);
+		assertEquals(0, log.size());
+	}
+
+	@Test
+	public void testVariablesHideStatics() throws Exception {
+		Rule rule1 = new Rule("1", "limit == 5", "hidden", 2, "ch.maxant.produkte");
+		Rule rule2 = new Rule("2", "limit == 1", "static", 1, "ch.maxant.produkte");
+		Map<String, Object> statics = new HashMap<String, Object>();
+		statics.put("limit", 1);
+		Engine e = getBuilder(Arrays.asList(rule1, rule2)).withStatics(statics).build();
+
+		Map<String, Object> variables = new HashMap<String, Object>();
+		variables.put("limit", 5);
+		for(int i = 0; i < 2; i++){
+			assertEquals(Arrays.asList(rule1), e.getMatchingRules(null, new MyInput(), variables));
+			//the static is visible again in the next call
+			assertEquals(Arrays.asList(rule2), e.getMatchingRules(new MyInput()));
+		}
+		assertEquals(1, statics.get("limit"));
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		Rule rule1 = new Rule("1", "input.p1.name == 'ant'", "outcome1", 3, "ch.maxant.produkte");
+		Rule rule2 = new Rule("2", "true", "outcome2", 2, "ch.maxant.produkte");
+		Rule rule3 = new Rule("3", "false", "outcome3", 1, "ch.maxant.andere");
+		List<Rule> rules = Arrays.asList(rule1, rule2, rule3);
+
+		Engine e = getEngine(rules, true);
+		MetricsEvaluationListener metrics = new MetricsEvaluationListener();
+		e.addEvaluationListener(metrics);
+
+		MyInput input = new MyInput();
+		input.setP1(new Person("ant"));
+		for(int i = 0; i < 10; i++){
+			assertEquals(2, e.getMatchingRules(input).size());
+		}
+		try{
+			e.getMatchingRules(new MyInput());
+			fail("no exception");
+		}catch(RuntimeException ex){
+			//expected, since p1 is null
+		}
+
+		EvaluationMetrics m = metrics.getRuleMetrics("ch.maxant.produkte.1");
+		assertEquals(11, m.getEvaluations());
+		assertEquals(10, m.getMatches());
+		assertEquals(1, m.getErrors());
+		assertEquals(10.0 / 11, m.getMatchRate(), 0.0001);
+		assertTrue(m.getTotalNanos() > 0);
+		assertTrue(m.getMedianNanos() <= m.getP99Nanos());
+		long count = 0;
+		for(long c : m.getHistogram()){
+			count += c;
+		}
+		assertEquals(11, count);
+
+		assertEquals(3, metrics.getRuleMetrics().size());
+		EvaluationMetrics produkte = metrics.getNamespaceMetrics("ch.maxant.produkte");
+		assertEquals(21, produkte.getEvaluations());
+		assertEquals(20, produkte.getMatches());
+		assertEquals(1, produkte.getErrors());
+		assertEquals(2, metrics.getNamespaceMetrics().size());
+
+		List<EvaluationMetrics> never = metrics.getNeverMatchingRules();
+		assertEquals(1, never.size());
+		assertEquals("ch.maxant.andere.3", never.get(0).getName());
+		assertEquals(2, metrics.getSlowestRules(2).size());
+
+		ObjectName name = new ObjectName("ch.maxant.rules:type=Metrics,name=" + getClass().getSimpleName());
+		metrics.registerMBean(name);
+		try{
+			CompositeData[] namespaces = (CompositeData[])ManagementFactory.getPlatformMBeanServer().getAttribute(name, "NamespaceMetrics");
+			assertEquals(2, namespaces.length);
+			assertEquals("ch.maxant.andere", namespaces[0].get("name"));
+			assertEquals(10L, namespaces[0].get("evaluations"));
+		}finally{
+			metrics.unregisterMBean(name);
+		}
+
+		metrics.reset();
+		assertEquals(0, metrics.getRuleMetrics().size());
+		e.getMatchingRules(input);
+		assertEquals(1, metrics.getRuleMetrics("ch.maxant.andere.3").getEvaluations());
+	}
+
 	public static final class Person {
 		private String name;
 		private Integer age;
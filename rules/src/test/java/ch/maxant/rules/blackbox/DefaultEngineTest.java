@@ -5,15 +5,21 @@ import org.junit.Test;
 import org.mvel2.MVEL;
 
 import javax.script.ScriptException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.lang.System.currentTimeMillis;
 import static java.util.Collections.singletonList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class DefaultEngineTest extends AbstractEngineTest {
@@ -23,6 +29,11 @@ public class DefaultEngineTest extends AbstractEngineTest {
 		return new Engine(rules, throwExceptionIfCompilationFails);
 	}
 
+	@Override
+	protected Engine.Builder getBuilder(List<Rule> rules) {
+		return new Engine.Builder(rules);
+	}
+
 	@Override
 	protected boolean isJavascriptTest() {
 		return false;
@@ -210,6 +221,438 @@ public class DefaultEngineTest extends AbstractEngineTest {
         assertEquals(rule1, matchingRules.get(0));
     }
 
+    @Test
+    public void testTypedCompilation() throws Exception {
+        Map<String, Object> statics = new HashMap<String, Object>();
+        statics.put("minAge", 18);
+        statics.put("someString", MVEL.getStaticMethod(DefaultEngineTest.class, "getSomeString", new Class[0]));
+        Map<String, Class<?>> variableTypes = new HashMap<String, Class<?>>();
+        variableTypes.put("maxAge", Integer.class);
+
+        Rule rule1 = new Rule("1", "input.person.age >= minAge && input.person.age < maxAge", "outcome1", 2, "ch.maxant.produkte");
+        Rule rule2 = new Rule("2", "input.person.name == someString()", "outcome2", 1, "ch.maxant.produkte");
+        Engine e = new Engine.Builder(Arrays.asList(rule1, rule2))
+                .withStatics(statics)
+                .withTypedCompilation(TarifRequest.class, variableTypes)
+                .build();
+
+        TarifRequest request = new TarifRequest();
+        request.setPerson(new Person(getSomeString(), 20));
+        Map<String, Object> variables = new HashMap<String, Object>();
+        variables.put("maxAge", 65);
+        assertEquals(Arrays.asList(rule1, rule2), e.getMatchingRules(null, request, variables));
+
+        //typos are found when the engine is built
+        Rule typo = new Rule("3", "input.person.agee > 3", "outcome3", 1, "ch.maxant.produkte");
+        try{
+            new Engine.Builder(singletonList(typo)).withTypedCompilation(TarifRequest.class).build();
+            fail("no exception");
+        }catch(CompileException ex){
+            //expected
+        }
+        
+        //as are rules which do not evaluate to a boolean
+        Rule notABoolean = new Rule("4", "input.person.age + 1", "outcome4", 1, "ch.maxant.produkte");
+        try{
+            new Engine.Builder(singletonList(notABoolean)).withTypedCompilation(TarifRequest.class).build();
+            fail("no exception");
+        }catch(CompileException ex){
+            assertTrue(ex.getMessage(), ex.getMessage().contains("does not evaluate to a boolean"));
+        }
+    }
+
+    @Test
+    public void testBytecodeCompilation() throws Exception {
+        String[] expressions = {
+                "input.person.age < 26 && input.account.ageInMonths > 3",
+                "input.person.age >= 26 || input.person.name == 'ant'",
+                "input.person.age == 30 and input.person.name != \"clare\"",
+                "input.person.age != 30",
+                "input.person.age <= 25.5",
+                "input.account.ageInMonths == 12.0",
+                "input.account.ageInMonths > -1 && !(input.person.name == null)",
+                "input.person.name == null",
+                "input.account == null || input.account.ageInMonths < 6",
+                "(input.person.age > 20 || input.person.age < 10) && true",
+                "input.person.age == 5 or input.person.age == 30", //mvel's "or" returns its first non-empty operand, so not supported
+                "input.person.age > 20 and input.person.name == 'bob'",
+                "input.person.age == input.person.age", //two null numbers are equal
+                "input.person.age != input.person.age",
+                "input.person.age <= input.person.age",
+                "input.person.age < input.account.ageInMonths",
+                "input.account.ageInMonths != input.person.age",
+                "input.person.age > someStatic", //not supported, so evaluated by MVEL
+                "input.person.name.length() == 3" //not supported, so evaluated by MVEL
+        };
+        List<Rule> rules = new ArrayList<Rule>();
+        for(int i = 0; i < expressions.length; i++){
+            rules.add(new Rule("r" + i, expressions[i], "outcome" + i, expressions.length - i, "ch.maxant.produkte"));
+        }
+        Map<String, Object> statics = new HashMap<String, Object>();
+        statics.put("someStatic", 20);
+        Engine interpreted = new Engine(rules, true, statics);
+        Engine compiled = new Engine.Builder(rules).withStatics(statics).withBytecodeCompilation(TarifRequest.class).build();
+
+        String[] names = {"ant", "clare", "bob", null};
+        Integer[] ages = {5, 15, 25, 26, 30, null};
+        for(String name : names){
+            for(Integer age : ages){
+                for(int months = 0; months < 20; months += 3){
+                    TarifRequest request = new TarifRequest();
+                    Person person = new Person(name);
+                    person.setAge(age);
+                    request.setPerson(person);
+                    Account account = new Account();
+                    account.setAgeInMonths(months);
+                    request.setAccount(months == 18 ? null : account);
+                    try{
+                        List<Rule> expected = interpreted.getMatchingRules(request);
+                        assertEquals(expected, compiled.getMatchingRules(request));
+                    }catch(RuntimeException e){
+                        //e.g. name.length() with a null name, or account.ageInMonths with a null account. both must fail
+                        try{
+                            compiled.getMatchingRules(request);
+                            fail("no exception");
+                        }catch(RuntimeException e2){
+                            //expected
+                        }
+                    }
+                }
+            }
+        }
+
+        //a null property on the way to the compared one is reported by MVEL, whose exceptions differ depending on
+        //whether it has optimised the expression yet, so compare the first evaluations
+        Rule rule = new Rule("r", "input.account.ageInMonths > 3", "outcome", 1, "ch.maxant.produkte");
+        TarifRequest request = new TarifRequest();
+        request.setPerson(new Person("ant"));
+        Class<?> expected = null;
+        try{
+            new Engine(singletonList(rule), true).getMatchingRules(request);
+            fail("no exception");
+        }catch(RuntimeException e){
+            expected = e.getClass();
+        }
+        try{
+            new Engine.Builder(singletonList(rule)).withBytecodeCompilation(TarifRequest.class).build().getMatchingRules(request);
+            fail("no exception");
+        }catch(RuntimeException e){
+            assertEquals(expected, e.getClass());
+        }
+    }
+
+    @Test
+    public void testBytecodeCompilationOfLeadingZeros() throws Exception {
+        //MVEL reads 010 as octal, i.e. 8
+        Rule rule = new Rule("r", "input.person.age > 010", "outcome", 1, "ch.maxant.produkte");
+        Engine interpreted = new Engine(singletonList(rule), true);
+        Engine compiled = new Engine.Builder(singletonList(rule)).withBytecodeCompilation(TarifRequest.class).build();
+        for(int age = 7; age < 12; age++){
+            TarifRequest request = new TarifRequest();
+            request.setPerson(new Person("ant", age));
+            assertEquals(interpreted.getMatchingRules(request), compiled.getMatchingRules(request));
+        }
+        TarifRequest request = new TarifRequest();
+        request.setPerson(new Person("ant", 9));
+        assertEquals(1, compiled.getMatchingRules(request).size());
+    }
+
+    @Test
+    public void testEqualityIndex() throws Exception {
+        String[] expressions = {
+                "input.person.name == \"ant\" && input.person.age < 26",
+                "\"clare\" == input.person.name",
+                "input.person.name == \"bob\" || input.person.age > 20", //not indexed, since it is not a conjunction
+                "(input.person.name == \"ant\" && true) && input.account.ageInMonths > 3",
+                "input.person.name == \"ant\" && input.person.name == \"clare\"",
+                "input.account.ageInMonths > 6 && #bob",
+                "input.person.name == \"ant\" ? input.person.age > 20 : true", //not indexed
+                "input.person.name == \"ant\" and input.person.age > 3", //not indexed
+                "input.person.name == 'clare'", //single quotes are indexed too
+                "input.person.age > 10",
+                "'fred' == input.person.name && input.person.age == null"
+        };
+        List<Rule> rules = new ArrayList<Rule>();
+        for(int i = 0; i < expressions.length; i++){
+            rules.add(new Rule("r" + i, expressions[i], "outcome" + i, expressions.length - i, "ch.maxant.produkte" + (i % 2)));
+        }
+        rules.add(new SubRule("bob", "input.person.name == \"bob\"", "ch.maxant.produkte1"));
+        final int[] evaluations = new int[1];
+        EvaluationListener counter = new AbstractEvaluationListener() {
+            @Override
+            public void onMatch(Rule rule, Object input, long nanos) {
+                evaluations[0]++;
+            }
+            @Override
+            public void onNoMatch(Rule rule, Object input, long nanos) {
+                evaluations[0]++;
+            }
+        };
+        Engine unindexed = new Engine(rules, true);
+        Engine indexed = new Engine.Builder(rules).withEqualityIndex().withEvaluationListener(counter).build();
+
+        String[] names = {"ant", "clare", "bob", "fred", null};
+        Integer[] ages = {5, 25, 30, null};
+        for(String name : names){
+            for(Integer age : ages){
+                for(int months = 0; months < 10; months += 3){
+                    TarifRequest request = new TarifRequest();
+                    Person person = new Person(name);
+                    person.setAge(age);
+                    request.setPerson(person);
+                    Account account = new Account();
+                    account.setAgeInMonths(months);
+                    request.setAccount(account);
+                    assertEquals(names(unindexed.getMatchingRules(request)), names(indexed.getMatchingRules(request)));
+                    assertEquals(names(unindexed.getMatchingRules("ch.maxant.produkte1", request)), names(indexed.getMatchingRules("ch.maxant.produkte1", request)));
+                    assertEquals(names(unindexed.getMatchingRules(null, request, 1)), names(indexed.getMatchingRules(null, request, 1)));
+                }
+            }
+        }
+
+        //only the rules which are not indexed, or which compare the name with "fred", are evaluated
+        evaluations[0] = 0;
+        TarifRequest request = new TarifRequest();
+        request.setPerson(new Person("fred"));
+        request.setAccount(new Account());
+        indexed.getMatchingRules(request);
+        assertEquals(4 + 1, evaluations[0]);
+
+        //the index also applies to batches
+        assertEquals(names(unindexed.getMatchingRules(request)), names(indexed.getMatchingRulesInBatch(null, Arrays.asList(request)).get(0)));
+    }
+
+    @Test
+    public void testIntervalIndex() throws Exception {
+        List<String> expressions = new ArrayList<String>();
+        for(int lower = 0; lower < 60; lower += 5){
+            //overlapping bands
+            expressions.add("input.person.age > " + lower + " && input.person.age <= " + (lower + 12));
+        }
+        expressions.add("18 <= input.person.age");
+        expressions.add("input.person.age == 30");
+        expressions.add("input.person.age < 25.5 && input.account.ageInMonths >= 6");
+        expressions.add("input.person.age > 50 && input.person.age < 40");
+        expressions.add("input.account.ageInMonths > 3 && (input.person.age > -1 && input.person.age < 20)");
+        expressions.add("input.person.name == \"ant\" && input.person.age > 40");
+        expressions.add("input.person.age < 10 || input.person.age > 60"); //not indexed
+        expressions.add("input.person.age != 30"); //not indexed
+        List<Rule> rules = new ArrayList<Rule>();
+        for(int i = 0; i < expressions.size(); i++){
+            rules.add(new Rule("r" + i, expressions.get(i), "outcome" + i, expressions.size() - i, "ch.maxant.produkte" + (i % 3)));
+        }
+        final int[] evaluations = new int[1];
+        EvaluationListener counter = new AbstractEvaluationListener() {
+            @Override
+            public void onMatch(Rule rule, Object input, long nanos) {
+                evaluations[0]++;
+            }
+            @Override
+            public void onNoMatch(Rule rule, Object input, long nanos) {
+                evaluations[0]++;
+            }
+        };
+        Engine unindexed = new Engine(rules, true);
+        Engine indexed = new Engine.Builder(rules).withIntervalIndex().withEvaluationListener(counter).build();
+        Engine both = new Engine.Builder(rules).withIntervalIndex().withEqualityIndex().build();
+
+        List<Integer> ages = new ArrayList<Integer>();
+        for(int age = -2; age < 75; age++){
+            ages.add(age);
+        }
+        ages.add(null);
+        for(String name : new String[]{"ant", "bob"}){
+            for(Integer age : ages){
+                for(int months = 0; months < 10; months += 3){
+                    TarifRequest request = new TarifRequest();
+                    Person person = new Person(name);
+                    person.setAge(age);
+                    request.setPerson(person);
+                    Account account = new Account();
+                    account.setAgeInMonths(months);
+                    request.setAccount(account);
+                    List<String> expected = names(unindexed.getMatchingRules(request));
+                    assertEquals(expected, names(indexed.getMatchingRules(request)));
+                    assertEquals(expected, names(both.getMatchingRules(request)));
+                    assertEquals(names(unindexed.getMatchingRules("ch.maxant.produkte1", request)), names(indexed.getMatchingRules("ch.maxant.produkte1", request)));
+                    assertEquals(names(unindexed.getMatchingRules(null, request, 1)), names(both.getMatchingRules(null, request, 1)));
+                }
+            }
+        }
+
+        //only the bands containing 33, and the rules which are not indexed by the age, are evaluated
+        evaluations[0] = 0;
+        TarifRequest request = new TarifRequest();
+        request.setPerson(new Person("bob", 33));
+        request.setAccount(new Account());
+        indexed.getMatchingRules(request);
+        assertEquals(2 + 1 + 2, evaluations[0]);
+    }
+
+    @Test
+    public void testIntervalIndexWithLeadingZero() throws Exception {
+        //MVEL reads 010 as octal, i.e. 8, so the index must not exclude the rule for the age 9
+        List<Rule> rules = singletonList(new Rule("1", "input.age > 010", "o", 1, "ch.maxant.produkte"));
+        Engine unindexed = new Engine(rules, true);
+        Engine indexed = new Engine.Builder(rules).withIntervalIndex().build();
+        for(int age = 7; age < 12; age++){
+            assertEquals(names(unindexed.getMatchingRules(new Person(age))), names(indexed.getMatchingRules(new Person(age))));
+        }
+        assertEquals(Arrays.asList("1"), names(indexed.getMatchingRules(new Person(9))));
+    }
+
+    @Test
+    public void testParallelEvaluation() throws Exception {
+        List<Rule> rules = new ArrayList<Rule>();
+        for(int i = 0; i < 100; i++){
+            rules.add(new Rule("r" + i, "input.p1.age % " + (i + 2) + " == 0", "outcome" + i, 1000 - i, "ch.maxant.produkte" + (i % 3)));
+        }
+        Engine sequential = new Engine(rules, true);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try{
+            Engine parallel = new Engine.Builder(rules).withParallelEvaluation(executor, 4, 10).build();
+            for(int age = 2; age < 50; age++){
+                MyInput input = new MyInput();
+                input.setP1(new Person(age));
+                assertEquals(sequential.getMatchingRules(input), parallel.getMatchingRules(input));
+                assertEquals(sequential.getMatchingRules("ch.maxant.produkte1", input), parallel.getMatchingRules("ch.maxant.produkte1", input));
+                assertEquals(sequential.getMatchingRules(null, input, 3), parallel.getMatchingRules(null, input, 3));
+                assertEquals(sequential.getBestOutcome(input), parallel.getBestOutcome(input));
+            }
+
+            //a problem in any chunk is reported to the caller
+            try{
+                parallel.getMatchingRules(new MyInput());
+                fail("no exception");
+            }catch(RuntimeException ex){
+                //expected, since p1 is null
+            }
+        }finally{
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testBuilderWithEvaluationListener() throws Exception {
+        Rule rule1 = new Rule("1", "input.p1 != null", "outcome1", 2, "ch.maxant.produkte");
+        Rule rule2 = new Rule("2", "input.p1 !!! null", "outcome2", 1, "ch.maxant.produkte");
+        final List<String> log = new ArrayList<String>();
+        Engine e = new Engine.Builder(Arrays.asList(rule1, rule2))
+                .withThrowExceptionIfCompilationFails(false)
+                .withEvaluationListener(new AbstractEvaluationListener() {
+                    @Override
+                    public void onCompile(Rule rule) {
+                        log.add("compiled " + rule.getName());
+                    }
+                    @Override
+                    public void onCompileFailure(Rule rule, String message) {
+                        log.add("failed " + rule.getName());
+                    }
+                    @Override
+                    public void onMatch(Rule rule, Object input, long nanos) {
+                        log.add("match " + rule.getName());
+                    }
+                })
+                .build();
+        assertEquals(Arrays.asList("compiled 1", "failed 2"), log);
+
+        log.clear();
+        MyInput input = new MyInput();
+        input.setP1(new Person("ant"));
+        assertEquals("outcome1", e.getBestOutcome(input));
+        assertEquals(Arrays.asList("match 1"), log);
+    }
+
+    @Test
+    public void testMetricsWithManyRules() throws Exception {
+        List<Rule> rules = new ArrayList<Rule>();
+        for(int i = 0; i < 200; i++){
+            rules.add(new Rule("r" + i, "input.age > " + i, "o" + i, i, "ch.maxant.demo" + (i % 2)));
+        }
+        final Engine e = new Engine.Builder(rules).build();
+        //added after the rules were compiled, so that the threads race to record each rule first
+        MetricsEvaluationListener metrics = new MetricsEvaluationListener();
+        e.addEvaluationListener(metrics);
+
+        int numThreads = 4;
+        int numCalls = 200;
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try{
+            List<Future<List<Rule>>> results = new ArrayList<Future<List<Rule>>>();
+            for(int i = 0; i < numCalls; i++){
+                results.add(pool.submit(new Callable<List<Rule>>() {
+                    @Override
+                    public List<Rule> call() throws Exception {
+                        return e.getMatchingRules(new Person("ant", 300));
+                    }
+                }));
+            }
+            for(Future<List<Rule>> result : results){
+                assertEquals(200, result.get().size());
+            }
+        }finally{
+            pool.shutdown();
+        }
+
+        List<EvaluationMetrics> ruleMetrics = metrics.getRuleMetrics();
+        assertEquals(200, ruleMetrics.size());
+        for(EvaluationMetrics m : ruleMetrics){
+            assertEquals(numCalls, m.getEvaluations());
+            assertEquals(numCalls, m.getMatches());
+        }
+        assertEquals(100L * numCalls, metrics.getNamespaceMetrics("ch.maxant.demo0").getEvaluations());
+    }
+
+    @Test
+    public void testVariables() throws Exception {
+        Map<String, Object> statics = new HashMap<String, Object>();
+        statics.put("drinkingAge", 18);
+        statics.put("someString", MVEL.getStaticMethod(this.getClass(), "getSomeString", new Class[0]));
+
+        Rule rule1 = new Rule("1", "input.age >= drinkingAge && input.name == someString()", "canDrink", 1, "ch.maxant.demo");
+        Rule rule2 = new Rule("2", "input.age >= bonusAge", "bonus", 2, "ch.maxant.demo");
+        Engine e = new Engine(Arrays.asList(rule1, rule2), true, statics);
+
+        Map<String, Object> variables = new HashMap<String, Object>();
+        variables.put("bonusAge", 65);
+        assertEquals(singletonList(rule1), e.getMatchingRules(null, new Person("THIS_NEVER_CHANGES", 20), variables));
+        assertEquals(Arrays.asList(rule2, rule1), e.getMatchingRules(null, new Person("THIS_NEVER_CHANGES", 70), variables));
+        assertEquals("bonus", e.getBestOutcome(null, new Person("THIS_NEVER_CHANGES", 70), variables));
+
+        //variables hide statics
+        variables.put("drinkingAge", 21);
+        assertEquals(0, e.getMatchingRules(null, new Person("THIS_NEVER_CHANGES", 20), variables).size());
+
+        try{
+            e.getMatchingRules(new Person("THIS_NEVER_CHANGES", 20));
+            fail("no exception");
+        }catch(RuntimeException ex){
+            //bonusAge is unknown
+        }
+    }
+
+    @Test
+    public void testRulesCannotModifyStaticsOrVariables() throws Exception {
+        Map<String, Object> statics = new HashMap<String, Object>();
+        statics.put("drinkingAge", 18);
+
+        Rule rule1 = new Rule("1", "drinkingAge = 99; other = 98; true", "assigns", 2, "ch.maxant.demo");
+        Rule rule2 = new Rule("2", "input.age >= drinkingAge && other == 1", "canDrink", 1, "ch.maxant.demo");
+        Rule rule3 = new Rule("3", "input.age >= drinkingAge && other == 1", "canDrink", 1, "ch.maxant.demo2");
+        Engine e = new Engine(Arrays.asList(rule1, rule2, rule3), true, statics);
+
+        Map<String, Object> variables = new HashMap<String, Object>();
+        variables.put("other", 1);
+
+        //within a single call, later rules see what earlier rules assigned
+        assertEquals(singletonList(rule1), e.getMatchingRules("ch\\.maxant\\.demo", new Person(20), variables));
+
+        //but nothing else does
+        assertEquals(18, statics.get("drinkingAge"));
+        assertEquals(1, variables.get("other"));
+        assertEquals(singletonList(rule3), e.getMatchingRules("ch\\.maxant\\.demo2", new Person(20), variables));
+    }
+
     @Test
     public void testIllegalWords() throws Exception {
         // NOT allowed to use "new " keyword
@@ -247,4 +690,113 @@ public class DefaultEngineTest extends AbstractEngineTest {
             }
         };
     }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        File file = File.createTempFile("rules", ".snapshot");
+        file.deleteOnExit();
+        assertTrue(file.delete());
+
+        List<Rule> rules = new ArrayList<Rule>();
+        rules.add(new SubRule("adult", "input.age >= 18", "ch.maxant.produkte"));
+        rules.add(new Rule("1", "#adult && input.age < 65", "adult", 1, "ch.maxant.produkte"));
+        rules.add(new Rule("2", "#adult && input.age >= 65", "senior", 2, "ch.maxant.produkte"));
+        rules.add(new Rule("3", "input.age < 18", "child", 3, "ch.maxant.produkte"));
+
+        for(boolean memoize : Arrays.asList(false, true)){
+            //the first engine compiles the rules and writes them to the file
+            final AtomicInteger compiled = new AtomicInteger();
+            Engine e = buildWithSnapshot(rules, file, memoize, compiled);
+            assertEquals(3, compiled.get());
+            assertTrue(file.isFile());
+            assertSnapshotEngine(e);
+
+            //the next one restores them
+            compiled.set(0);
+            e = buildWithSnapshot(rules, file, memoize, compiled);
+            assertEquals(0, compiled.get());
+            assertSnapshotEngine(e);
+            assertEquals("senior", e.getBestOutcome(new CountingInput(70)));
+
+            //different rules replace the snapshot
+            List<Rule> changed = new ArrayList<Rule>(rules);
+            changed.set(3, new Rule("3", "input.age < 16", "child", 3, "ch.maxant.produkte"));
+            compiled.set(0);
+            e = buildWithSnapshot(changed, file, memoize, compiled);
+            assertEquals(3, compiled.get());
+            assertEquals(0, e.getMatchingRules(new CountingInput(17)).size());
+            compiled.set(0);
+            buildWithSnapshot(changed, file, memoize, compiled);
+            assertEquals(0, compiled.get());
+
+            //a file which cannot be read is ignored
+            FileOutputStream fos = new FileOutputStream(file);
+            fos.write("not a snapshot".getBytes("UTF-8"));
+            fos.close();
+            compiled.set(0);
+            e = buildWithSnapshot(rules, file, memoize, compiled);
+            assertEquals(3, compiled.get());
+            assertSnapshotEngine(e);
+        }
+    }
+
+    private Engine buildWithSnapshot(List<Rule> rules, File file, boolean memoize, final AtomicInteger compiled) throws Exception {
+        Engine.Builder builder = new Engine.Builder(rules)
+                .withSnapshot(file)
+                .withEvaluationListener(new AbstractEvaluationListener() {
+                    @Override
+                    public void onCompile(Rule rule) {
+                        compiled.incrementAndGet();
+                    }
+                });
+        if(memoize){
+            builder.withMemoizedSubRules();
+        }
+        return builder.build();
+    }
+
+    private void assertSnapshotEngine(Engine e) throws Exception {
+        assertEquals("child", e.getBestOutcome(new CountingInput(10)));
+        assertEquals("adult", e.getBestOutcome(new CountingInput(30)));
+        assertEquals("senior", e.getBestOutcome(new CountingInput(80)));
+    }
+
+    @Test
+    public void testLazyCompilationOfNamespaceUsedConcurrently() throws Exception {
+        List<Rule> rules = new ArrayList<Rule>();
+        for(int i = 0; i < 100; i++){
+            rules.add(new Rule("r" + i, "input.age > " + i, "o" + i, i, "ch.maxant.tenant" + (i % 4)));
+        }
+        final AtomicInteger compiled = new AtomicInteger();
+        final Engine e = new Engine.Builder(rules)
+                .withLazyCompilation()
+                .withEvaluationListener(new AbstractEvaluationListener() {
+                    @Override
+                    public void onCompile(Rule rule) {
+                        compiled.incrementAndGet();
+                    }
+                })
+                .build();
+        assertEquals(0, compiled.get());
+
+        //many threads use the same namespace for the first time at once
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<List<Rule>>> results = new ArrayList<Future<List<Rule>>>();
+        for(int i = 0; i < 8; i++){
+            results.add(executor.submit(new Callable<List<Rule>>() {
+                @Override
+                public List<Rule> call() throws Exception {
+                    start.await();
+                    return e.getMatchingRules("ch\\.maxant\\.tenant1", new CountingInput(50));
+                }
+            }));
+        }
+        start.countDown();
+        for(Future<List<Rule>> result : results){
+            assertEquals(13, result.get().size());
+        }
+        executor.shutdown();
+        assertEquals(25, compiled.get());
+    }
 }
@@ -0,0 +1,146 @@
+package ch.maxant.rules.blackbox;
+
+import ch.maxant.rules.*;
+import org.junit.Test;
+
+import javax.script.ScriptException;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+/** runs the same tests as for the other engines, using GraalJS rather than Nashorn */
+public class GraalJavascriptEngineTest extends AbstractEngineTest {
+
+	@Override
+	public Engine getEngine(List<Rule> rules, boolean throwExceptionIfCompilationFails)
+			throws DuplicateNameException, CompileException, ParseException, ScriptException, IOException {
+		return getBuilder(rules).withThrowExceptionIfCompilationFails(throwExceptionIfCompilationFails).build();
+	}
+
+	@Override
+	protected JavascriptEngine.Builder getBuilder(List<Rule> rules) {
+		return new JavascriptEngine.Builder(rules).withGraalJs();
+	}
+	
+	@Override
+	protected boolean isJavascriptTest() {
+		return true;
+	}
+
+	@Override
+	@Test
+	public void testBadExpression(){
+		//GraalJS reports the position differently than Nashorn does
+		try{
+			getEngine(asList(new Rule("1", "input someIllegalOperator 345", "SomeCommand", 0, "ch.maxant.produkte")), true);
+			fail("no exception found");
+		}catch(Exception ex){
+			assertTrue(ex instanceof CompileException);
+			assertTrue(ex.getMessage(), ex.getMessage().contains("<eval>:1:6 Expected ; but found someIllegalOperator"));
+			assertTrue(ex.getMessage(), ex.getMessage().contains("input someIllegalOperator 345"));
+		}
+	}
+
+	@Test
+	public void testBeanNotationStaticsAndLibraries() throws Exception {
+		Rule r1 = new Rule("young", "input.age < limit && input.getName() == 'John'", "young", 2, "ch.maxant.test");
+		Rule r2 = new Rule("library", "_.includes(['Jane', 'John'], input.name)", "known", 1, "ch.maxant.test");
+		Rule r3 = new Rule("assigns", "limit = 99; true", "assigns", 0, "ch.maxant.test");
+		Map<String, Object> statics = new HashMap<String, Object>();
+		statics.put("limit", 30);
+		JavascriptEngine engine = getBuilder(asList(r1, r2, r3))
+				.withStatics(statics)
+				.withJavascriptFilesToLoad("lodash-3.10.0.js")
+				.build();
+
+		for(int i = 0; i < 2; i++){
+			assertEquals(asList(r1, r2, r3), engine.getMatchingRules(new Person("John", 20)));
+			assertEquals(asList(r2, r3), engine.getMatchingRules(new Person("Jane", 20)));
+			//the assignment does not change the static
+			assertEquals(asList(r3), engine.getMatchingRules(new Person("Jim", 40)));
+		}
+	}
+
+	@Test
+	public void testEachThreadUsesItsOwnContext() throws Exception {
+		List<Rule> rules = new ArrayList<Rule>();
+		for(int i = 0; i < 20; i++){
+			rules.add(new Rule("r" + i, "input.age > " + (i * 5), "o" + i, i, "ch.maxant.test"));
+		}
+		final JavascriptEngine engine = getBuilder(rules).withNamespaceFunctions().withPoolSize(1).withPreloadPool(true).build();
+		assertEquals(0, engine.getPoolSize()[0]);
+
+		int numThreads = 4;
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try{
+			List<Future<String>> outcomes = new ArrayList<Future<String>>();
+			for(int i = 0; i < 200; i++){
+				final int age = 1 + i % 100;
+				outcomes.add(pool.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						return engine.getBestOutcome(new Person("John", age));
+					}
+				}));
+			}
+			for(int i = 0; i < outcomes.size(); i++){
+				int age = 1 + i % 100;
+				assertEquals("o" + Math.min(19, (age - 1) / 5), outcomes.get(i).get());
+			}
+		}finally{
+			pool.shutdown();
+		}
+
+		//the pool size does not apply, since each thread keeps its own context
+		int[] poolSize = engine.getPoolSize();
+		assertEquals(0, poolSize[0]);
+		assertTrue(poolSize[1] <= numThreads + 1);
+
+		//closing destroys the contexts which the other threads keep
+		engine.close();
+		PoolMetrics metrics = engine.getPoolMetrics();
+		assertEquals(0, metrics.getNumIdle());
+		assertEquals(metrics.getCreatedCount(), metrics.getDestroyedCount());
+		try{
+			engine.getBestOutcome(new Person("John", 20));
+			fail("no exception");
+		}catch(RuntimeException e){
+			//expected, since the pool is closed
+		}
+	}
+
+	@Test
+	public void testScriptEngineOptions() throws Exception {
+		List<Rule> rules = asList(new Rule("adult", "input.age > 18", "adult", 1, "ch.maxant.test"));
+		Engine engine = getBuilder(rules)
+				.withScriptEngineOptions("js.strict=true", "engine.WarnInterpreterOnly=false")
+				.withOptimisticTypes(true) //ignored
+				.build();
+		assertEquals("adult", engine.getBestOutcome(new Person("John", 40)));
+
+		try{
+			getBuilder(rules).withScriptEngineOptions("js.no-such-option=true").build();
+			fail("no exception");
+		}catch(CompileException e){
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Failed to create GraalJS with the given options: "));
+		}
+		try{
+			getBuilder(rules).withScriptEngineOptions("--language=es6").build();
+			fail("no exception");
+		}catch(CompileException e){
+			assertEquals("GraalJS options must be given as name=value, but got '--language=es6'", e.getMessage());
+		}
+		try{
+			getBuilder(rules).withScriptEngineOptions("js.strict").build();
+			fail("no exception");
+		}catch(CompileException e){
+			assertEquals("GraalJS options must be given as name=value, but got 'js.strict'", e.getMessage());
+		}
+	}
+}
@@ -4,11 +4,15 @@ import ch.maxant.rules.*;
 import org.junit.Test;
 
 import javax.script.ScriptException;
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.util.Arrays.asList;
@@ -21,6 +25,11 @@ public class JavascriptEngineTest extends AbstractEngineTest {
 			throws DuplicateNameException, CompileException, ParseException, ScriptException, IOException {
 		return new JavascriptEngine(rules, throwExceptionIfCompilationFails);
 	}
+
+	@Override
+	protected Engine.Builder getBuilder(List<Rule> rules) {
+		return new JavascriptEngine.Builder(rules);
+	}
 	
 	@Override
 	protected boolean isJavascriptTest() {
@@ -358,4 +367,309 @@ public class JavascriptEngineTest extends AbstractEngineTest {
         }
     }
 
+    @Test
+    public void testVariables() throws Exception {
+        Collection<Rule> rules = asList(
+                new Rule("1", "input.getAge() >= drinkingAge", "canDrink", 1, "ch.maxant.test"),
+                new Rule("2", "typeof bonusAge !== 'undefined' && input.getAge() >= bonusAge", "bonus", 2, "ch.maxant.test"));
+        Map<String, Object> statics = new HashMap<String, Object>();
+        statics.put("drinkingAge", 18);
+        JavascriptEngine engine = new JavascriptEngine(rules, "input", true, 1, false, statics);
+
+        Map<String, Object> variables = new HashMap<String, Object>();
+        variables.put("bonusAge", 65);
+        assertEquals("bonus", engine.getBestOutcome(null, new Person("John", 70), variables));
+        assertEquals(1, engine.getMatchingRules(null, new Person("John", 20), variables).size());
+
+        //variables do not leak into the next call, even though the pool only contains one engine
+        assertEquals("canDrink", engine.getBestOutcome(new Person("John", 70)));
+    }
+
+    @Test
+    public void testVariablesHideStaticsWithSharedScripts() throws Exception {
+        Rule rule1 = new Rule("1", "limit == 5", "hidden", 2, "ch.maxant.test");
+        Rule rule2 = new Rule("2", "limit == 1", "static", 1, "ch.maxant.test");
+        Map<String, Object> statics = new HashMap<String, Object>();
+        statics.put("limit", 1);
+        JavascriptEngine engine = new JavascriptEngine.Builder(asList(rule1, rule2))
+                .withStatics(statics)
+                .withPoolSize(1)
+                .withSharedScripts()
+                .build();
+
+        Map<String, Object> variables = new HashMap<String, Object>();
+        variables.put("limit", 5);
+        for(int i = 0; i < 2; i++){
+            assertEquals(asList(rule1), engine.getMatchingRules(null, new Person("John", 20), variables));
+            assertEquals(asList(rule2), engine.getMatchingRules(new Person("John", 20)));
+        }
+    }
+
+    @Test
+    public void testRulesCannotModifyStatics() throws Exception {
+        Collection<Rule> rules = asList(
+                new Rule("1", "drinkingAge = 99; true", "assigns", 2, "ch.maxant.test"),
+                new Rule("2", "input.getAge() >= drinkingAge", "canDrink", 1, "ch.maxant.test"));
+        Map<String, Object> statics = new HashMap<String, Object>();
+        statics.put("drinkingAge", 18);
+        JavascriptEngine engine = new JavascriptEngine(rules, "input", true, 1, false, statics);
+
+        //the statics are bound once per pooled engine, so neither later rules nor later calls see the assignment
+        for(int i = 0; i < 2; i++){
+            assertEquals(2, engine.getMatchingRules(new Person("John", 20)).size());
+        }
+        assertEquals(18, statics.get("drinkingAge"));
+    }
+
+    @Test
+    public void testNamespaceFunctions() throws Exception {
+        List<Rule> rules = new ArrayList<Rule>();
+        for(int i = 0; i < 20; i++){
+            rules.add(new Rule("a" + i, "input.age > " + (i * 5), "a" + i, i, "ch.maxant.a"));
+            rules.add(new Rule("b" + i, "input.age < " + (i * 5) + " ? 'true' : 1", "b" + i, i, "ch.maxant.b"));
+        }
+        rules.add(new Rule("statements", "var limit = 50; input.age > limit", "s", 7, "ch.maxant.c"));
+        rules.add(new Rule("broken", "input.age >>> >", "x", 5, "ch.maxant.c"));
+        JavascriptEngine oneByOne = new JavascriptEngine.Builder(rules).withThrowExceptionIfCompilationFails(false).build();
+        JavascriptEngine namespaces = new JavascriptEngine.Builder(rules).withThrowExceptionIfCompilationFails(false).withNamespaceFunctions().withPoolSize(1).build();
+
+        for(String pattern : asList("ch.maxant.a", "ch.maxant.b", "ch.maxant.c", "ch.maxant.*", null)){
+            for(int age : asList(0, 27, 51, 200)){
+                Person p = new Person("John", age);
+                assertEquals(oneByOne.getMatchingRules(pattern, p), namespaces.getMatchingRules(pattern, p));
+                for(int max : asList(1, 3)){
+                    assertEquals(oneByOne.getMatchingRules(pattern, p, max), namespaces.getMatchingRules(pattern, p, max));
+                }
+            }
+        }
+        assertEquals(oneByOne.getMatchingRules(asList(new Person("A", 3), new Person("B", 60))),
+                namespaces.getMatchingRules(asList(new Person("A", 3), new Person("B", 60))));
+
+        //failures name the rule which failed
+        Rule failing = new Rule("undefined", "input.age > 10 && doesNotExist.foo", "u", 100, "ch.maxant.a");
+        List<Rule> withFailing = new ArrayList<Rule>(rules);
+        withFailing.add(failing);
+        namespaces = new JavascriptEngine.Builder(withFailing).withThrowExceptionIfCompilationFails(false).withNamespaceFunctions().build();
+        assertEquals(asList(rules.get(0)), namespaces.getMatchingRules("ch.maxant.a", new Person("John", 3)));
+        try{
+            namespaces.getMatchingRules("ch.maxant.a", new Person("John", 20));
+            fail("no exception");
+        }catch(IllegalArgumentException e){
+            assertEquals("Failed to run script ch.maxant.a.undefined", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testThreadAffinePoolWithStatefulRules() throws Exception {
+        Rule r1 = new Rule("valueIsCorrect", "rule420() === 40000.0", "threadSafe", 1, "ch.maxant.rules");
+        Rule r2 = new Rule("default", "true" , "notThreadSafe", 0, "ch.maxant.rules");
+        final JavascriptEngine engine = new JavascriptEngine.Builder(asList(r1, r2))
+                .withJavascriptFilesToLoad("bad-stateful-rule.js")
+                .withPoolSize(4)
+                .withThreadAffinePool()
+                .build();
+
+        int numTasks = 2000;
+        ExecutorService pool = Executors.newFixedThreadPool(20);
+        try{
+            List<Future<String>> outcomes = new ArrayList<Future<String>>();
+            for(int i = 0; i < numTasks; i++){
+                outcomes.add(pool.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return engine.getBestOutcome(0);
+                    }
+                }));
+            }
+            for(Future<String> outcome : outcomes){
+                assertEquals("threadSafe", outcome.get());
+            }
+        }finally{
+            pool.shutdown();
+        }
+
+        PoolMetrics metrics = engine.getPoolMetrics();
+        assertEquals(0, metrics.getNumActive());
+        assertEquals(4, metrics.getMaxTotal());
+        assertTrue(metrics.getCreatedCount() <= 4);
+        assertEquals(0, metrics.getDestroyedCount());
+        assertEquals(metrics.getCreatedCount(), metrics.getNumIdle());
+        assertEquals(numTasks + 1, metrics.getBorrowedCount()); //including compiling the rules
+        assertTrue(metrics.getMaxBorrowWaitNanos() >= metrics.getMeanBorrowWaitNanos());
+        assertEquals(0.0, metrics.getUtilisation(), 0.0);
+    }
+
+    @Test
+    public void testPoolMetricsOfDefaultPool() throws Exception {
+        JavascriptEngine engine = new JavascriptEngine.Builder(asList(new Rule("1", "true", "ok", 1, "ch.maxant.test")))
+                .withPoolSize(3)
+                .withPreloadPool(true)
+                .build();
+        assertEquals("ok", engine.getBestOutcome(0));
+        PoolMetrics metrics = engine.getPoolMetrics();
+        assertEquals(0, metrics.getNumActive());
+        assertEquals(3, metrics.getNumIdle());
+        assertEquals(3, metrics.getMaxTotal());
+        assertEquals(3, metrics.getCreatedCount());
+        assertEquals(1 + 3 + 1, metrics.getBorrowedCount()); //compiling, preloading and evaluating
+    }
+
+    @Test
+    public void testParallelPreload() throws Exception {
+        List<Rule> rules = new ArrayList<Rule>();
+        for(int i = 0; i < 50; i++){
+            rules.add(new Rule("r" + i, "input.age > " + i, "o" + i, i, "ch.maxant.test"));
+        }
+        final AtomicInteger compiled = new AtomicInteger();
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        JavascriptEngine engine = new JavascriptEngine.Builder(rules)
+                .withPoolSize(4)
+                .withPreloadPool(true)
+                .withParallelCompilation(4)
+                .withEvaluationListener(new AbstractEvaluationListener() {
+                    @Override
+                    public void onCompile(Rule rule) {
+                        compiled.incrementAndGet();
+                        threads.add(Thread.currentThread().getName());
+                    }
+                })
+                .build();
+
+        //once into the engine which compiled the rules while building, and once into each engine created when preloading
+        assertEquals(4 * 50, compiled.get());
+        assertTrue(threads.size() > 1);
+        assertEquals("o49", engine.getBestOutcome(new Person("John", 70)));
+    }
+
+    @Test
+    public void testSharedScripts() throws Exception {
+        List<Rule> rules = new ArrayList<Rule>();
+        for(int i = 0; i < 50; i++){
+            rules.add(new Rule("r" + i, "olderThan(input, " + i + ")", "o" + i, i, "ch.maxant.test"));
+        }
+        final AtomicInteger compiled = new AtomicInteger();
+        final JavascriptEngine engine = new JavascriptEngine.Builder(rules)
+                .withPoolSize(4)
+                .withPreloadPool(true)
+                .withJavascriptFilesToLoad("function olderThan(p, age){ return p.age > age; }")
+                .withSharedScripts()
+                .withEvaluationListener(new AbstractEvaluationListener() {
+                    @Override
+                    public void onCompile(Rule rule) {
+                        compiled.incrementAndGet();
+                    }
+                })
+                .build();
+
+        //compiled once, even though the pool contains several engines
+        assertEquals(50, compiled.get());
+
+        //each engine has its own globals, with the library, so they can be used concurrently
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try{
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for(int i = 0; i < 200; i++){
+                final int age = 1 + i % 51;
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return engine.getBestOutcome(new Person("John", age));
+                    }
+                }));
+            }
+            for(int i = 0; i < 200; i++){
+                int age = 1 + i % 51;
+                assertEquals("o" + Math.min(age - 1, 49), results.get(i).get());
+            }
+        }finally{
+            executor.shutdown();
+        }
+        assertEquals(50, compiled.get());
+    }
+
+    @Test
+    public void testScriptEngineOptions() throws Exception {
+        File cache = File.createTempFile("codecache", "");
+        assertTrue(cache.delete());
+        String previous = System.getProperty("nashorn.persistent.code.cache");
+        try{
+            List<Rule> rules = new ArrayList<Rule>();
+            rules.add(new Rule("adult", "input.age * 2 > 36", "adult", 2, "ch.maxant.test"));
+            rules.add(new Rule("child", "input.age * 2 <= 36", "child", 1, "ch.maxant.test"));
+            JavascriptEngine engine = new JavascriptEngine.Builder(rules)
+                    .withPoolSize(2)
+                    .withPreloadPool(true)
+                    .withOptimisticTypes(true)
+                    .withNashornLazyCompilation(true)
+                    .withPersistentCodeCache(cache)
+                    .withScriptEngineOptions("--language=es5")
+                    .build();
+
+            assertEquals("adult", engine.getBestOutcome(new Person("John", 40)));
+            assertEquals("child", engine.getBestOutcome(new Person("John", 10)));
+
+            //the compiled rules were written to the cache, and the system property was restored
+            assertTrue(cache.isDirectory());
+            assertTrue(cache.list().length > 0);
+            assertEquals(previous, System.getProperty("nashorn.persistent.code.cache"));
+        }finally{
+            if(cache.isDirectory()){
+                for(File f : cache.listFiles()){
+                    f.delete();
+                }
+            }
+            cache.delete();
+        }
+    }
+
+    @Test
+    public void testInvalidScriptEngineOptions() throws Exception {
+        List<Rule> rules = asList(new Rule("adult", "input.age > 18", "adult", 1, "ch.maxant.test"));
+        try{
+            new JavascriptEngine.Builder(rules).withScriptEngineOptions("--no-such-option").build();
+            fail("no exception");
+        }catch(CompileException e){
+            assertEquals("Failed to create a JavaScript engine with the options [--no-such-option]: --no-such-option", e.getMessage());
+        }
+        try{
+            //nashorn does not support eager compilation with optimistic types
+            new JavascriptEngine.Builder(rules).withOptimisticTypes(true).withNashornLazyCompilation(false).build();
+            fail("no exception");
+        }catch(CompileException e){
+            assertTrue(e.getMessage(), e.getMessage().contains("not compatible"));
+        }
+    }
+
+    @Test
+    public void testUnsupportedBuilderOptions() throws Exception {
+        List<Rule> rules = asList(new Rule("adult", "input.age > 18", "adult", 1, "ch.maxant.test"));
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        List<Engine.Builder> builders = new ArrayList<Engine.Builder>();
+        builders.add(new JavascriptEngine.Builder(rules).withParallelEvaluation(executor, 4, 1));
+        builders.add(new JavascriptEngine.Builder(rules).withBytecodeCompilation(Person.class));
+        builders.add(new JavascriptEngine.Builder(rules).withTypedCompilation(Person.class));
+        builders.add(new JavascriptEngine.Builder(rules).withEqualityIndex());
+        builders.add(new JavascriptEngine.Builder(rules).withIntervalIndex());
+        String[] options = {"withParallelEvaluation", "withBytecodeCompilation", "withTypedCompilation", "withEqualityIndex", "withIntervalIndex"};
+        for(int i = 0; i < options.length; i++){
+            try{
+                builders.get(i).build();
+                fail("no exception for " + options[i]);
+            }catch(CompileException e){
+                assertEquals("The JavascriptEngine does not support [" + options[i] + "]", e.getMessage());
+            }
+        }
+        try{
+            new JavascriptEngine.Builder(rules).withEqualityIndex().withIntervalIndex().build();
+            fail("no exception");
+        }catch(CompileException e){
+            assertEquals("The JavascriptEngine does not support [withEqualityIndex, withIntervalIndex]", e.getMessage());
+        }
+    }
+
 }